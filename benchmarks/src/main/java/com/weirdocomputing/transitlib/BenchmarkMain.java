@@ -0,0 +1,23 @@
+package com.weirdocomputing.transitlib;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Runs the benchmarks with the GC profiler, so that allocation rates are
+ * reported along with times. Takes the same arguments as JMH's own main.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Scaling of concurrent put() with writer thread count
+ *
+ * Each invocation splits the same number of positions, for a fixed set of
+ * vehicles, among the writers, and has them put into a new collection at
+ * once. Run on a machine with at least as many cores as the most writers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentPutBenchmark {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    @Param({"1", "2", "4", "8", "16"})
+    int threadCount;
+
+    @Param({"2000"})
+    int vehicleCount;
+
+    @Param({"400000"})
+    int totalPositions;
+
+    private VehiclePosition[][] inputs;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long now = Instant.now().getEpochSecond();
+        Random random = new Random(threadCount);
+        inputs = new VehiclePosition[threadCount][totalPositions / threadCount];
+        for (VehiclePosition[] input: inputs) {
+            for (int i = 0; i < input.length; i++) {
+                input[i] = new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                        .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder()
+                                .setId(Integer.toString(random.nextInt(vehicleCount))))
+                        .setTimestamp(now - random.nextInt((int) STALE_AGE.getSeconds() / 2))
+                        .build());
+            }
+        }
+        executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public VehiclePositionCollection put() throws Exception {
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (VehiclePosition[] input: inputs) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (VehiclePosition p: input) {
+                    collection.put(p);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future: futures) {
+            future.get();
+        }
+        return collection;
+    }
+}
@@ -0,0 +1,77 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Scaling of parallel putAll with pool size, for a statewide-sized feed
+ *
+ * Compare each parallelism with the sequential putAll at parallelism 1;
+ * speedup is limited by the cores available, so run on a machine with at
+ * least as many cores as the largest parallelism. On fewer cores it
+ * measures only the overhead of sharding, not scaling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelPutAllBenchmark {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    @Param({"1", "2", "4", "8", "16"})
+    int parallelism;
+
+    @Param({"500000"})
+    int fleetSize;
+
+    private VehiclePosition[] positions;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        GtfsRealtime.FeedMessage feedMessage = new SyntheticFeedGenerator(23, 20, 5000, fleetSize).nextFeed();
+        positions = new VehiclePosition[feedMessage.getEntityCount()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new VehiclePosition(feedMessage.getEntity(i).getVehicle());
+        }
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public VehiclePositionCollection putAll() {
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        if (parallelism == 1) {
+            collection.putAll(positions);
+        } else {
+            collection.putAll(positions, pool);
+        }
+        return collection;
+    }
+}
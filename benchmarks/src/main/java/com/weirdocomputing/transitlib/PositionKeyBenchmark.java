@@ -0,0 +1,97 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Compares string and 64-bit position keys for deduplicating one feed
+ * cycle against the next: key every position of the previous cycle into a
+ * set, then key every position of the current cycle and look it up.
+ *
+ * Positions are wrapped fresh on each invocation, as they are when a feed
+ * is parsed, so the string key cached in each VehiclePosition is rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PositionKeyBenchmark {
+    @Param({"1000", "10000"})
+    int vehicleCount;
+
+    private GtfsRealtime.VehiclePosition[] previousCycle;
+    private GtfsRealtime.VehiclePosition[] currentCycle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long timestamp = 1_580_000_000L;
+        previousCycle = new GtfsRealtime.VehiclePosition[vehicleCount];
+        currentCycle = new GtfsRealtime.VehiclePosition[vehicleCount];
+        for (int i = 0; i < vehicleCount; i++) {
+            // half of the vehicles have not reported since the previous cycle
+            previousCycle[i] = newVehiclePosition(i, timestamp);
+            currentCycle[i] = newVehiclePosition(i, i % 2 == 0 ? timestamp : timestamp + 30);
+        }
+    }
+
+    @Benchmark
+    public int stringKeys() {
+        Set<String> previousKeys = new HashSet<>(vehicleCount * 2);
+        for (GtfsRealtime.VehiclePosition vp: previousCycle) {
+            previousKeys.add(new VehiclePosition(vp).getHashString());
+        }
+        int duplicateCount = 0;
+        for (GtfsRealtime.VehiclePosition vp: currentCycle) {
+            if (previousKeys.contains(new VehiclePosition(vp).getHashString())) {
+                duplicateCount++;
+            }
+        }
+        return duplicateCount;
+    }
+
+    @Benchmark
+    public int longKeys() {
+        LongHashSet previousKeys = new LongHashSet(vehicleCount);
+        for (GtfsRealtime.VehiclePosition vp: previousCycle) {
+            previousKeys.add(new VehiclePosition(vp).getHashKey());
+        }
+        int duplicateCount = 0;
+        for (GtfsRealtime.VehiclePosition vp: currentCycle) {
+            if (previousKeys.contains(new VehiclePosition(vp).getHashKey())) {
+                duplicateCount++;
+            }
+        }
+        return duplicateCount;
+    }
+
+    private static GtfsRealtime.VehiclePosition newVehiclePosition(int vehicleNumber, long timestamp) {
+        return GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(String.format("%04d", vehicleNumber)))
+                .setPosition(GtfsRealtime.Position.newBuilder()
+                        .setLatitude(30.27f + vehicleNumber * 1e-4f)
+                        .setLongitude(-97.74f - vehicleNumber * 1e-4f))
+                .setTimestamp(timestamp)
+                .build();
+    }
+}
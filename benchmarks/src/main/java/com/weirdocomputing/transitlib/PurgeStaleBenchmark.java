@@ -0,0 +1,86 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Purging a collection in which half of the fleet has gone stale
+ *
+ * The collection is rebuilt before each purge, so iterations are short
+ * and many; the rebuild is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PurgeStaleBenchmark {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    @Param({"1000", "10000", "100000"})
+    int fleetSize;
+
+    private VehiclePosition[] stalePositions;
+    private VehiclePosition[] currentPositions;
+    private VehiclePositionCollection collection;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(19, 10, 500, fleetSize);
+        generator.setStaleAge(STALE_AGE);
+        generator.setOutOfOrderRate(0);
+        generator.setDuplicateRate(0);
+        generator.setChurnRate(0);
+        // every report in the first feed is stale, and none in the second
+        generator.setStaleRate(1);
+        stalePositions = wrap(generator.nextFeed(), 0, fleetSize / 2);
+        generator.setStaleRate(0);
+        currentPositions = wrap(generator.nextFeed(), fleetSize / 2, fleetSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        collection = new VehiclePositionCollection(STALE_AGE);
+        for (VehiclePosition position: stalePositions) {
+            // accepted, as if put before they went stale
+            collection.put(position, Instant.EPOCH);
+        }
+        // the other half of the fleet is current
+        for (VehiclePosition position: currentPositions) {
+            collection.put(position);
+        }
+    }
+
+    @Benchmark
+    public int purgeStale() {
+        return collection.purgeStale();
+    }
+
+    private static VehiclePosition[] wrap(GtfsRealtime.FeedMessage feedMessage, int from, int to) {
+        VehiclePosition[] result = new VehiclePosition[to - from];
+        for (int i = from; i < to; i++) {
+            result[i - from] = new VehiclePosition(feedMessage.getEntity(i).getVehicle());
+        }
+        return result;
+    }
+}
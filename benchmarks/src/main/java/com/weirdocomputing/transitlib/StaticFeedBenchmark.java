@@ -0,0 +1,65 @@
+package com.weirdocomputing.transitlib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Loading agency.txt and routes.txt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StaticFeedBenchmark {
+    @Param({"100", "10000"})
+    int routeCount;
+
+    private static final int AGENCY_COUNT = 20;
+
+    private byte[] agencyTxt;
+    private byte[] routesTxt;
+    private AgencyCollection agencies;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(19, AGENCY_COUNT, routeCount, 0);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        generator.writeAgencyTxt(outputStream);
+        agencyTxt = outputStream.toByteArray();
+        outputStream.reset();
+        generator.writeRoutesTxt(outputStream);
+        routesTxt = outputStream.toByteArray();
+        agencies = new AgencyCollection(new ByteArrayInputStream(agencyTxt));
+    }
+
+    @Benchmark
+    public AgencyCollection loadAgencies() throws IOException {
+        return new AgencyCollection(new ByteArrayInputStream(agencyTxt));
+    }
+
+    @Benchmark
+    public RouteCollection loadRoutes() throws IOException {
+        return new RouteCollection(agencies, new ByteArrayInputStream(routesTxt));
+    }
+}
@@ -0,0 +1,65 @@
+package com.weirdocomputing.transitlib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Steady-state ingest of a statewide fleet: each invocation streams the
+ * generator's next feed, with stale, duplicate and replaced vehicles, into
+ * a collection that already holds the previous ones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class SyntheticFeedBenchmark {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    @Param({"200000"})
+    int fleetSize;
+
+    private SyntheticFeedGenerator generator;
+    private VehiclePositionCollection collection;
+    private byte[] feedBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        generator = new SyntheticFeedGenerator(20, 10, 2000, fleetSize);
+        generator.setStaleRate(0.01);
+        generator.setDuplicateRate(0.02);
+        collection = new VehiclePositionCollection(STALE_AGE);
+        collection.update(generator.openFeed());
+    }
+
+    @Setup(Level.Invocation)
+    public void nextFeed() throws IOException {
+        // generated outside the measured time
+        feedBytes = generator.openFeed().readAllBytes();
+    }
+
+    @Benchmark
+    public VehiclePositionCollection update() throws Exception {
+        return collection.update(new ByteArrayInputStream(feedBytes));
+    }
+}
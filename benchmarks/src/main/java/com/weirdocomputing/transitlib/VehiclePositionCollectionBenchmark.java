@@ -0,0 +1,134 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Ingest and serialization of a VehiclePositionCollection, by fleet size
+ *
+ * Each ingest benchmark applies one full feed to an empty collection, the
+ * cost of the first poll; copy, snapshot and serialization benchmarks read
+ * a collection that holds the whole fleet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VehiclePositionCollectionBenchmark {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    @Param({"1000", "10000", "100000"})
+    int fleetSize;
+
+    private byte[] feedBytes;
+    private VehiclePosition[] positions;
+    private VehiclePositionCollection fullCollection;
+    private byte[] compactBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        GtfsRealtime.FeedMessage feedMessage = new SyntheticFeedGenerator(19, 10, 500, fleetSize).nextFeed();
+        feedBytes = feedMessage.toByteArray();
+        positions = new VehiclePosition[feedMessage.getEntityCount()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new VehiclePosition(feedMessage.getEntity(i).getVehicle());
+        }
+        fullCollection = new VehiclePositionCollection(STALE_AGE, positions);
+        fullCollection.enableSnapshots();
+        compactBytes = fullCollection.toCompact(CompactPositionCodec.ALL_FIELDS);
+    }
+
+    @Benchmark
+    public VehiclePositionCollection parseAndUpdate() throws Exception {
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.update(new ByteArrayInputStream(feedBytes));
+        return collection;
+    }
+
+    @Benchmark
+    public VehiclePositionCollection parseFeedMessageAndUpdate() throws Exception {
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.update(GtfsRealtime.FeedMessage.parseFrom(feedBytes));
+        return collection;
+    }
+
+    @Benchmark
+    public GtfsRealtime.FeedMessage parseFeedMessage() throws InvalidProtocolBufferException {
+        return GtfsRealtime.FeedMessage.parseFrom(feedBytes);
+    }
+
+    @Benchmark
+    public VehiclePositionCollection put() {
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        for (VehiclePosition position: positions) {
+            collection.put(position);
+        }
+        return collection;
+    }
+
+    @Benchmark
+    public VehiclePositionCollection putAll() {
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.putAll(positions);
+        return collection;
+    }
+
+    @Benchmark
+    public VehiclePositionCollection copy() {
+        return new VehiclePositionCollection(fullCollection);
+    }
+
+    @Benchmark
+    public VehiclePositionSnapshot snapshot() {
+        return fullCollection.snapshot();
+    }
+
+    @Benchmark
+    public GtfsRealtime.FeedMessage toFeedMessage() {
+        return fullCollection.toFeedMessage(false);
+    }
+
+    @Benchmark
+    public Object toJsonObject() {
+        return fullCollection.toJsonObject();
+    }
+
+    @Benchmark
+    public void writeJson() throws IOException {
+        fullCollection.writeJson(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public byte[] toCompact() {
+        return fullCollection.toCompact(CompactPositionCodec.ALL_FIELDS);
+    }
+
+    @Benchmark
+    public VehiclePositionColumns decodeCompact() throws IOException {
+        return CompactPositionCodec.decode(compactBytes);
+    }
+}
@@ -1,5 +1,6 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -7,6 +8,7 @@ import org.apache.commons.validator.routines.EmailValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Locale;
@@ -141,6 +143,30 @@ public class Agency {
         return o;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonObject()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("id", this.id);
+        g.writeStringField("name", this.name);
+        g.writeStringField("url", this.url.toString());
+        g.writeStringField("timezone", this.timezone.toZoneId().toString());
+        g.writeStringField("lang", this.locale.toLanguageTag());
+        if (this.phone != null) {
+            g.writeStringField("phone", this.phone);
+        }
+        if (this.fareUrl != null) {
+            g.writeStringField("fare_url", this.fareUrl.toString());
+        }
+        if (this.email != null) {
+            g.writeStringField("email", this.email);
+        }
+        g.writeEndObject();
+    }
+
     public String getId() {
         return id;
     }
@@ -0,0 +1,162 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * A collection of real-time service alerts, indexed by feed entity ID
+ *
+ * Alerts carry no timestamp, so an alert is replaced whenever its entity
+ * arrives again, and is removed when a full-dataset feed no longer
+ * includes it. Safe for concurrent use.
+ */
+public class AlertCollection {
+
+    /**
+     * Map of alerts indexed by entity ID
+     */
+    @NotNull
+    private final ConcurrentHashMap<String, GtfsRealtime.Alert> alerts = new ConcurrentHashMap<>();
+
+    /**
+     * Add or replace an alert
+     * @param entityId ID of the feed entity carrying the alert
+     * @param alert alert
+     * @return true if the collection changed
+     */
+    public boolean put(@NotNull String entityId, @NotNull GtfsRealtime.Alert alert) {
+        return !alert.equals(this.alerts.put(entityId, alert));
+    }
+
+    /**
+     * Remove an alert
+     * @param entityId ID of the feed entity carrying the alert
+     * @return alert or null, if no such entry
+     */
+    @Nullable
+    public GtfsRealtime.Alert remove(@NotNull String entityId) {
+        return this.alerts.remove(entityId);
+    }
+
+    /**
+     * Remove the alerts not in a set, such as those missing from a full-dataset feed
+     * @param entityIds IDs of the alerts to keep
+     * @return number of alerts removed
+     */
+    public int retainAll(@NotNull Set<String> entityIds) {
+        int removeCount = 0;
+        for (String entityId: this.alerts.keySet()) {
+            if (!entityIds.contains(entityId) && this.alerts.remove(entityId) != null) {
+                removeCount++;
+            }
+        }
+        return removeCount;
+    }
+
+    /**
+     * Get an alert
+     * @param entityId ID of the feed entity carrying the alert
+     * @return alert, or null if none
+     */
+    @Nullable
+    public GtfsRealtime.Alert get(@NotNull String entityId) {
+        return this.alerts.get(entityId);
+    }
+
+    /**
+     * Find the alerts in effect at a time
+     * @param instant time
+     * @return alerts with no active period, or an active period that includes the time
+     */
+    @NotNull
+    public List<GtfsRealtime.Alert> findActive(@NotNull Instant instant) {
+        long second = instant.getEpochSecond();
+        return this.find(alert -> {
+            if (alert.getActivePeriodCount() == 0) {
+                return true;
+            }
+            for (GtfsRealtime.TimeRange period: alert.getActivePeriodList()) {
+                if ((!period.hasStart() || period.getStart() <= second)
+                        && (!period.hasEnd() || second <= period.getEnd())) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Find the alerts that inform about a route
+     * @param routeId route ID
+     * @return alerts with an informed entity for the route
+     */
+    @NotNull
+    public List<GtfsRealtime.Alert> findByRoute(@NotNull String routeId) {
+        return this.findByInformedEntity(selector -> routeId.equals(selector.getRouteId())
+                || routeId.equals(selector.getTrip().getRouteId()));
+    }
+
+    /**
+     * Find the alerts that inform about a stop
+     * @param stopId stop ID
+     * @return alerts with an informed entity for the stop
+     */
+    @NotNull
+    public List<GtfsRealtime.Alert> findByStop(@NotNull String stopId) {
+        return this.findByInformedEntity(selector -> stopId.equals(selector.getStopId()));
+    }
+
+    @NotNull
+    private List<GtfsRealtime.Alert> findByInformedEntity(@NotNull Predicate<GtfsRealtime.EntitySelector> matches) {
+        return this.find(alert -> {
+            for (GtfsRealtime.EntitySelector selector: alert.getInformedEntityList()) {
+                if (matches.test(selector)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    @NotNull
+    private List<GtfsRealtime.Alert> find(@NotNull Predicate<GtfsRealtime.Alert> matches) {
+        List<GtfsRealtime.Alert> result = new ArrayList<>();
+        for (GtfsRealtime.Alert alert: this.alerts.values()) {
+            if (matches.test(alert)) {
+                result.add(alert);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get collection size
+     * @return number of alerts in collection
+     */
+    public int size() {
+        return alerts.size();
+    }
+
+    /**
+     * Get alerts
+     * @return unmodifiable view of the alerts
+     */
+    @NotNull
+    public Collection<GtfsRealtime.Alert> values() {
+        return Collections.unmodifiableCollection(alerts.values());
+    }
+}
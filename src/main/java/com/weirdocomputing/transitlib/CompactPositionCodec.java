@@ -0,0 +1,388 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Compact binary encoding of vehicle positions, for map clients
+ *
+ * Rows are sorted by vehicle ID and stored column by column. Vehicle IDs
+ * are front-coded against the previous row, so a row's index is its
+ * vehicle's code. Latitude and longitude are fixed-point at 10^-5 degrees
+ * (about a meter), stored as zigzag varint deltas from the previous row.
+ * Bearing is quantized to 1/256 of a turn, speed to 0.1 m/s, and timestamps
+ * are offsets from the earliest. Route IDs are coded into a sorted
+ * dictionary; trip IDs are front-coded like vehicle IDs. The field mask
+ * leaves out any of the optional columns.
+ *
+ * All integers are protobuf varints; strings are UTF-8.
+ */
+public final class CompactPositionCodec {
+    public static final int BEARING = 1;
+    public static final int SPEED = 1 << 1;
+    public static final int TIMESTAMP = 1 << 2;
+    public static final int ROUTE_ID = 1 << 3;
+    public static final int TRIP_ID = 1 << 4;
+    public static final int ALL_FIELDS = BEARING | SPEED | TIMESTAMP | ROUTE_ID | TRIP_ID;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Fixed-point units per degree
+     */
+    private static final double DEGREE_SCALE = 1e5;
+    private static final float BEARING_SCALE = 256 / 360f;
+    private static final float SPEED_SCALE = 10;
+
+    private CompactPositionCodec() {
+    }
+
+    /**
+     * Encode positions
+     * @param positions positions, at most one per vehicle
+     * @param fieldMask optional columns to include, a combination of BEARING,
+     *                  SPEED, TIMESTAMP, ROUTE_ID and TRIP_ID
+     * @return encoded positions
+     */
+    @NotNull
+    public static byte[] encode(@NotNull Collection<VehiclePosition> positions, int fieldMask) {
+        GtfsRealtime.VehiclePosition[] rows = new GtfsRealtime.VehiclePosition[positions.size()];
+        int n = 0;
+        for (VehiclePosition position: positions) {
+            if (n == rows.length) {
+                // the collection grew while we were copying it
+                rows = Arrays.copyOf(rows, n * 2 + 1);
+            }
+            rows[n++] = position.getGoogleVehiclePosition();
+        }
+        rows = Arrays.copyOf(rows, n);
+        Arrays.sort(rows, Comparator.comparing(vp -> vp.getVehicle().getId()));
+        fieldMask &= ALL_FIELDS;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(n * 24 + 16);
+        CodedOutputStream output = CodedOutputStream.newInstance(outputStream, 1 << 12);
+        try {
+            output.writeUInt32NoTag(FORMAT_VERSION);
+            output.writeUInt32NoTag(fieldMask);
+            output.writeUInt32NoTag(n);
+
+            String previous = "";
+            for (GtfsRealtime.VehiclePosition vp: rows) {
+                String vehicleId = vp.getVehicle().getId();
+                writeFrontCoded(output, previous, vehicleId);
+                previous = vehicleId;
+            }
+
+            boolean[] present = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                present[i] = rows[i].getPosition().hasLatitude() && rows[i].getPosition().hasLongitude();
+            }
+            writePresence(output, present);
+            int previousLatitude = 0;
+            int previousLongitude = 0;
+            for (int i = 0; i < n; i++) {
+                if (present[i]) {
+                    int latitude = toFixed(rows[i].getPosition().getLatitude());
+                    int longitude = toFixed(rows[i].getPosition().getLongitude());
+                    output.writeSInt32NoTag(latitude - previousLatitude);
+                    output.writeSInt32NoTag(longitude - previousLongitude);
+                    previousLatitude = latitude;
+                    previousLongitude = longitude;
+                }
+            }
+
+            if ((fieldMask & BEARING) != 0) {
+                for (int i = 0; i < n; i++) {
+                    present[i] = rows[i].getPosition().hasBearing();
+                }
+                writePresence(output, present);
+                for (int i = 0; i < n; i++) {
+                    if (present[i]) {
+                        float bearing = rows[i].getPosition().getBearing() % 360;
+                        output.writeRawByte(Math.round((bearing < 0 ? bearing + 360 : bearing) * BEARING_SCALE));
+                    }
+                }
+            }
+
+            if ((fieldMask & SPEED) != 0) {
+                for (int i = 0; i < n; i++) {
+                    present[i] = rows[i].getPosition().hasSpeed();
+                }
+                writePresence(output, present);
+                for (int i = 0; i < n; i++) {
+                    if (present[i]) {
+                        output.writeUInt32NoTag(Math.max(0, Math.round(rows[i].getPosition().getSpeed() * SPEED_SCALE)));
+                    }
+                }
+            }
+
+            if ((fieldMask & TIMESTAMP) != 0) {
+                long baseTimestamp = Long.MAX_VALUE;
+                for (GtfsRealtime.VehiclePosition vp: rows) {
+                    baseTimestamp = Math.min(baseTimestamp, vp.getTimestamp());
+                }
+                baseTimestamp = n == 0 ? 0 : baseTimestamp;
+                output.writeUInt64NoTag(baseTimestamp);
+                for (GtfsRealtime.VehiclePosition vp: rows) {
+                    output.writeUInt64NoTag(vp.getTimestamp() - baseTimestamp);
+                }
+            }
+
+            if ((fieldMask & ROUTE_ID) != 0) {
+                TreeSet<String> routeIds = new TreeSet<>();
+                for (GtfsRealtime.VehiclePosition vp: rows) {
+                    if (vp.getTrip().hasRouteId()) {
+                        routeIds.add(vp.getTrip().getRouteId());
+                    }
+                }
+                output.writeUInt32NoTag(routeIds.size());
+                HashMap<String, Integer> routeCodes = new HashMap<>();
+                previous = "";
+                for (String routeId: routeIds) {
+                    routeCodes.put(routeId, routeCodes.size());
+                    writeFrontCoded(output, previous, routeId);
+                    previous = routeId;
+                }
+                for (GtfsRealtime.VehiclePosition vp: rows) {
+                    // 0 for none
+                    output.writeUInt32NoTag(vp.getTrip().hasRouteId() ? routeCodes.get(vp.getTrip().getRouteId()) + 1 : 0);
+                }
+            }
+
+            if ((fieldMask & TRIP_ID) != 0) {
+                for (int i = 0; i < n; i++) {
+                    present[i] = rows[i].getTrip().hasTripId();
+                }
+                writePresence(output, present);
+                previous = "";
+                for (int i = 0; i < n; i++) {
+                    if (present[i]) {
+                        String tripId = rows[i].getTrip().getTripId();
+                        writeFrontCoded(output, previous, tripId);
+                        previous = tripId;
+                    }
+                }
+            }
+            output.flush();
+        } catch (IOException e) {
+            // writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Decode positions
+     * @param bytes encoded positions
+     * @return columns, in vehicle ID order, with vehicle codes equal to row
+     *         numbers; columns left out by the field mask are NaN, 0 or NO_CODE
+     * @throws IOException if the bytes are not valid
+     */
+    @NotNull
+    public static VehiclePositionColumns decode(@NotNull byte[] bytes) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(bytes);
+        int formatVersion = input.readUInt32();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException(String.format("unsupported compact position format %d", formatVersion));
+        }
+        int fieldMask = input.readUInt32();
+        int n = input.readUInt32();
+        // each row takes at least two bytes
+        if (n < 0 || n > bytes.length) {
+            throw new IOException(String.format("invalid position count %d", n));
+        }
+
+        String[] vehicleIds = new String[n];
+        int[] vehicleCodes = new int[n];
+        String previous = "";
+        for (int i = 0; i < n; i++) {
+            previous = readFrontCoded(input, previous);
+            vehicleIds[i] = previous;
+            vehicleCodes[i] = i;
+        }
+
+        float[] latitudes = new float[n];
+        float[] longitudes = new float[n];
+        boolean[] present = readPresence(input, n);
+        int latitude = 0;
+        int longitude = 0;
+        for (int i = 0; i < n; i++) {
+            if (present[i]) {
+                latitude += input.readSInt32();
+                longitude += input.readSInt32();
+                latitudes[i] = (float) (latitude / DEGREE_SCALE);
+                longitudes[i] = (float) (longitude / DEGREE_SCALE);
+            } else {
+                latitudes[i] = Float.NaN;
+                longitudes[i] = Float.NaN;
+            }
+        }
+
+        float[] bearings = new float[n];
+        Arrays.fill(bearings, Float.NaN);
+        if ((fieldMask & BEARING) != 0) {
+            present = readPresence(input, n);
+            for (int i = 0; i < n; i++) {
+                if (present[i]) {
+                    bearings[i] = ((input.readRawByte() & 0xff) / BEARING_SCALE) % 360;
+                }
+            }
+        }
+
+        float[] speeds = new float[n];
+        Arrays.fill(speeds, Float.NaN);
+        if ((fieldMask & SPEED) != 0) {
+            present = readPresence(input, n);
+            for (int i = 0; i < n; i++) {
+                if (present[i]) {
+                    speeds[i] = input.readUInt32() / SPEED_SCALE;
+                }
+            }
+        }
+
+        long[] timestamps = new long[n];
+        if ((fieldMask & TIMESTAMP) != 0) {
+            long baseTimestamp = input.readUInt64();
+            for (int i = 0; i < n; i++) {
+                timestamps[i] = baseTimestamp + input.readUInt64();
+            }
+        }
+
+        String[] routeIds = new String[0];
+        int[] routeCodes = new int[n];
+        Arrays.fill(routeCodes, VehiclePositionColumns.NO_CODE);
+        if ((fieldMask & ROUTE_ID) != 0) {
+            int routeCount = input.readUInt32();
+            if (routeCount < 0 || routeCount > bytes.length) {
+                throw new IOException(String.format("invalid route count %d", routeCount));
+            }
+            routeIds = new String[routeCount];
+            previous = "";
+            for (int i = 0; i < routeCount; i++) {
+                previous = readFrontCoded(input, previous);
+                routeIds[i] = previous;
+            }
+            for (int i = 0; i < n; i++) {
+                int code = input.readUInt32() - 1;
+                if (code < VehiclePositionColumns.NO_CODE || code >= routeCount) {
+                    throw new IOException(String.format("invalid route code %d", code));
+                }
+                routeCodes[i] = code;
+            }
+        }
+
+        String[] tripIds = new String[0];
+        int[] tripCodes = new int[n];
+        Arrays.fill(tripCodes, VehiclePositionColumns.NO_CODE);
+        if ((fieldMask & TRIP_ID) != 0) {
+            present = readPresence(input, n);
+            HashMap<String, Integer> codes = new HashMap<>();
+            String[] values = new String[n];
+            previous = "";
+            for (int i = 0; i < n; i++) {
+                if (present[i]) {
+                    previous = readFrontCoded(input, previous);
+                    Integer code = codes.get(previous);
+                    if (code == null) {
+                        code = codes.size();
+                        codes.put(previous, code);
+                        values[code] = previous;
+                    }
+                    tripCodes[i] = code;
+                }
+            }
+            tripIds = Arrays.copyOf(values, codes.size());
+        }
+
+        return new VehiclePositionColumns(n, latitudes, longitudes, bearings, speeds, timestamps,
+                vehicleCodes, tripCodes, routeCodes, vehicleIds, tripIds, routeIds);
+    }
+
+    private static int toFixed(float degrees) {
+        return (int) Math.round(degrees * DEGREE_SCALE);
+    }
+
+    /**
+     * Write which rows have a column, as the count and delta-coded indexes
+     * of the rows that do not, since those are usually few
+     */
+    private static void writePresence(@NotNull CodedOutputStream output, @NotNull boolean[] present)
+            throws IOException {
+        int missingCount = 0;
+        for (boolean isPresent: present) {
+            missingCount += isPresent ? 0 : 1;
+        }
+        output.writeUInt32NoTag(missingCount);
+        int previous = -1;
+        for (int i = 0; i < present.length; i++) {
+            if (!present[i]) {
+                output.writeUInt32NoTag(i - previous - 1);
+                previous = i;
+            }
+        }
+    }
+
+    @NotNull
+    private static boolean[] readPresence(@NotNull CodedInputStream input, int n) throws IOException {
+        boolean[] present = new boolean[n];
+        Arrays.fill(present, true);
+        int missingCount = input.readUInt32();
+        int row = -1;
+        for (int i = 0; i < missingCount; i++) {
+            row += input.readUInt32() + 1;
+            if (row < 0 || row >= n) {
+                throw new IOException(String.format("invalid row %d", row));
+            }
+            present[row] = false;
+        }
+        return present;
+    }
+
+    /**
+     * Write a string as the length of the prefix it shares with the previous
+     * string, and the rest
+     */
+    private static void writeFrontCoded(@NotNull CodedOutputStream output, @NotNull String previous,
+                                        @NotNull String value) throws IOException {
+        int limit = Math.min(previous.length(), value.length());
+        int prefix = 0;
+        while (prefix < limit && previous.charAt(prefix) == value.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(value.charAt(prefix - 1))) {
+            // don't split a surrogate pair
+            prefix--;
+        }
+        byte[] suffix = value.substring(prefix).getBytes(StandardCharsets.UTF_8);
+        output.writeUInt32NoTag(prefix);
+        output.writeUInt32NoTag(suffix.length);
+        output.writeRawBytes(suffix);
+    }
+
+    @NotNull
+    private static String readFrontCoded(@NotNull CodedInputStream input, @NotNull String previous)
+            throws IOException {
+        int prefix = input.readUInt32();
+        if (prefix < 0 || prefix > previous.length()) {
+            throw new IOException(String.format("invalid prefix length %d", prefix));
+        }
+        int length = input.readUInt32();
+        return previous.substring(0, prefix) + new String(input.readRawBytes(length), StandardCharsets.UTF_8);
+    }
+}
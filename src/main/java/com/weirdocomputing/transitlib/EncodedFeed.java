@@ -0,0 +1,125 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Serialized form of a VehiclePositionCollection at a given version,
+ * ready to be sent to clients as is
+ */
+public class EncodedFeed {
+    /**
+     * Serialization formats
+     */
+    public enum Format {
+        /**
+         * GTFS realtime FeedMessage protobuf, as from toFeedMessage(false)
+         */
+        PROTOBUF("application/x-protobuf", "pb"),
+        /**
+         * JSON array, as from toJsonObject()
+         */
+        JSON("application/json", "json"),
+        /**
+         * Quantized binary, as from toCompact(CompactPositionCodec.ALL_FIELDS)
+         */
+        COMPACT("application/x-transitlib-compact", "cp");
+
+        @NotNull
+        private final String contentType;
+        @NotNull
+        private final String etagTag;
+
+        Format(@NotNull String contentType, @NotNull String etagTag) {
+            this.contentType = contentType;
+            this.etagTag = etagTag;
+        }
+
+        @NotNull
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    @NotNull
+    private final Format format;
+    private final boolean isGzipped;
+    private final long version;
+    @NotNull
+    private final byte[] bytes;
+    @NotNull
+    private final String etag;
+
+    EncodedFeed(@NotNull Format format, boolean isGzipped, long version, @NotNull byte[] bytes, long instanceId) {
+        this.format = format;
+        this.isGzipped = isGzipped;
+        this.version = version;
+        this.bytes = bytes;
+        this.etag = String.format("\"%x-%d-%s%s\"", instanceId, version, format.etagTag, isGzipped ? "-gz" : "");
+    }
+
+    @NotNull
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Get whether the bytes are gzip-compressed
+     * @return true for Content-Encoding: gzip
+     */
+    public boolean isGzipped() {
+        return isGzipped;
+    }
+
+    /**
+     * Get the collection version that was serialized
+     * @return collection version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get a strong entity tag for the bytes, including the surrounding quotes.
+     * Tags are unique to the collection instance, version, format and encoding.
+     * @return ETag header value
+     */
+    @NotNull
+    public String getEtag() {
+        return etag;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * Write the serialized feed
+     * @param outputStream stream to write to
+     * @throws IOException if unable to write
+     */
+    public void writeTo(@NotNull OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Get a copy of the serialized feed
+     * @return serialized feed
+     */
+    @NotNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, bytes.length);
+    }
+
+    @NotNull
+    byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,225 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.apache.commons.io.input.TeeInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Reads a GTFS realtime feed once, routing each entity to the collection
+ * for its kind: vehicle positions, trip updates or alerts
+ *
+ * Any of the collections may be null, in which case entities of that kind
+ * are skipped. A full-dataset feed replaces the alerts collection's
+ * contents, so give the dispatcher an alerts collection only if the feed
+ * carries alerts.
+ */
+public class FeedDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(FeedDispatcher.class);
+
+    @Nullable
+    private final VehiclePositionCollection vehiclePositions;
+    @Nullable
+    private final TripUpdateCollection tripUpdates;
+    @Nullable
+    private final AlertCollection alerts;
+
+    /**
+     * Journal of received feeds, or null if not journaling
+     */
+    @Nullable
+    private volatile FeedJournal journal = null;
+
+    /**
+     * Construct dispatcher
+     * @param vehiclePositions collection for vehicle positions, or null to skip them
+     * @param tripUpdates collection for trip updates, or null to skip them
+     * @param alerts collection for alerts, or null to skip them
+     */
+    public FeedDispatcher(@Nullable VehiclePositionCollection vehiclePositions,
+                          @Nullable TripUpdateCollection tripUpdates,
+                          @Nullable AlertCollection alerts) {
+        this.vehiclePositions = vehiclePositions;
+        this.tripUpdates = tripUpdates;
+        this.alerts = alerts;
+    }
+
+    /**
+     * Update the collections from a feed input stream, decoding and routing
+     * entities one at a time as they are read
+     * @param inputStream An input stream that contains a Gtfs feed
+     * @return number of entities read
+     * @throws Exception If unable to fetch or if data fails validation
+     */
+    public int update(@NotNull InputStream inputStream) throws Exception {
+        FeedJournal journal = this.journal;
+        if (journal == null) {
+            return this.update(new FeedMessageReader(inputStream));
+        }
+        // journal the bytes as they are read, and keep them only if they parse
+        FeedJournal.RecordOutputStream record = journal.openRecord(Instant.now());
+        boolean isParsed = false;
+        int entityCount;
+        try {
+            entityCount = this.update(new FeedMessageReader(new TeeInputStream(inputStream, record)));
+            isParsed = true;
+        } finally {
+            if (!isParsed) {
+                record.abort();
+            }
+        }
+        record.close();
+        return entityCount;
+    }
+
+    /**
+     * Update the collections from a feed message
+     * @param feedMessage feed message
+     * @return number of entities read
+     * @throws Exception If unable to journal the feed
+     */
+    public int update(@NotNull GtfsRealtime.FeedMessage feedMessage) throws Exception {
+        FeedJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(Instant.now(), feedMessage);
+        }
+        Batch batch = new Batch();
+        for (GtfsRealtime.FeedEntity entity: feedMessage.getEntityList()) {
+            batch.dispatch(entity);
+        }
+        batch.finish(feedMessage.hasHeader() ? feedMessage.getHeader() : null);
+        return feedMessage.getEntityCount();
+    }
+
+    /**
+     * Update the collections from a feed reader
+     * @param reader reader positioned at the start of a feed
+     * @return number of entities read
+     * @throws Exception If unable to read or if data fails validation
+     */
+    int update(@NotNull FeedMessageReader reader) throws Exception {
+        Batch batch = new Batch();
+        GtfsRealtime.FeedEntity entity;
+        while ((entity = reader.next()) != null) {
+            batch.dispatch(entity);
+        }
+        batch.finish(reader.getHeader());
+        return reader.getEntityCount();
+    }
+
+    /**
+     * Record every feed passed to update() in a journal, from now on.
+     * Streamed feeds are recorded once read, if they parse.
+     * @param journal journal, or null to stop journaling
+     */
+    public void setJournal(@Nullable FeedJournal journal) {
+        this.journal = journal;
+    }
+
+    @Nullable
+    public VehiclePositionCollection getVehiclePositions() {
+        return vehiclePositions;
+    }
+
+    @Nullable
+    public TripUpdateCollection getTripUpdates() {
+        return tripUpdates;
+    }
+
+    @Nullable
+    public AlertCollection getAlerts() {
+        return alerts;
+    }
+
+    /**
+     * State for dispatching the entities of one feed
+     */
+    private final class Batch {
+        private final Instant now = Instant.now();
+        @Nullable
+        private final Instant vehicleStaleTimestamp = vehiclePositions == null
+                ? null
+                : now.minus(vehiclePositions.getStaleAge());
+        private final long tripUpdateStaleSecond = tripUpdates == null
+                ? 0
+                : now.minus(tripUpdates.getStaleAge()).getEpochSecond();
+        @NotNull
+        private final Set<String> alertIds = new HashSet<>();
+        private int skippedCount = 0;
+
+        private void dispatch(@NotNull GtfsRealtime.FeedEntity entity) {
+            if (entity.getIsDeleted()) {
+                this.delete(entity);
+            } else if (entity.hasVehicle()) {
+                if (vehiclePositions == null) {
+                    skippedCount++;
+                } else {
+                    vehiclePositions.put(new VehiclePosition(entity.getVehicle()), vehicleStaleTimestamp);
+                }
+            } else if (entity.hasTripUpdate()) {
+                if (tripUpdates == null) {
+                    skippedCount++;
+                } else {
+                    tripUpdates.put(entity.getTripUpdate(), tripUpdateStaleSecond);
+                }
+            } else if (entity.hasAlert()) {
+                if (alerts == null) {
+                    skippedCount++;
+                } else {
+                    alerts.put(entity.getId(), entity.getAlert());
+                    alertIds.add(entity.getId());
+                }
+            } else {
+                logger.debug("{}: unrecognized entity; skipped", entity.getId());
+                skippedCount++;
+            }
+        }
+
+        /**
+         * Apply a deleted entity, which identifies what to delete by its
+         * payload if it has one, otherwise by its ID
+         * @param entity deleted entity
+         */
+        private void delete(@NotNull GtfsRealtime.FeedEntity entity) {
+            if (entity.hasVehicle()) {
+                String vehicleId = VehiclePositionCollection.deletedVehicleId(entity);
+                if (vehiclePositions != null && vehicleId != null) {
+                    vehiclePositions.removeVehicle(vehicleId);
+                }
+            } else if (entity.hasTripUpdate()) {
+                if (tripUpdates != null && entity.getTripUpdate().getTrip().hasTripId()) {
+                    tripUpdates.remove(entity.getTripUpdate().getTrip().getTripId());
+                }
+            } else if (alerts != null) {
+                alerts.remove(entity.getId());
+            }
+        }
+
+        private void finish(@Nullable GtfsRealtime.FeedHeader header) {
+            if (vehiclePositions != null) {
+                vehiclePositions.publishSnapshot();
+            }
+            if (alerts != null && header != null
+                    && header.getIncrementality() == GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET) {
+                int removeCount = alerts.retainAll(alertIds);
+                if (removeCount > 0) {
+                    logger.debug("{} alerts no longer in feed; removed", removeCount);
+                }
+            }
+            if (skippedCount > 0) {
+                logger.debug("{} entities skipped", skippedCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Polls many realtime feeds on a bounded pool of worker threads
+ *
+ * Each feed is polled on its own interval. A feed never has more than one
+ * poll queued or running, so a slow or failing feed holds at most one
+ * worker; intervals that come due while its poll is still outstanding are
+ * skipped and counted in its queue depth. Failing feeds back off as their
+ * poller directs.
+ */
+public class FeedIngestScheduler implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FeedIngestScheduler.class);
+
+    @NotNull
+    private final ScheduledExecutorService timer;
+    @NotNull
+    private final ExecutorService workers;
+    @NotNull
+    private final ConcurrentHashMap<String, Feed> feeds = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    /**
+     * Construct scheduler
+     * @param workerCount number of feeds that can be polled at once
+     */
+    public FeedIngestScheduler(int workerCount) {
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("feed-timer"));
+        this.workers = Executors.newFixedThreadPool(workerCount, daemonThreadFactory("feed-worker"));
+    }
+
+    /**
+     * Start polling a feed. The first poll comes at a random point within the
+     * first interval, to spread out feeds registered together.
+     * @param feedId unique ID for the feed
+     * @param poller poller for the feed; not used by anyone else
+     * @param interval time between polls
+     */
+    public void register(@NotNull String feedId, @NotNull VehiclePositionFeedPoller poller,
+                         @NotNull Duration interval) {
+        Feed feed = new Feed(feedId, poller, interval);
+        // schedule before publishing the feed, so that unregister() always
+        // finds its future; tick() ignores it until it is published
+        long intervalNanos = interval.toNanos();
+        feed.future = this.timer.scheduleAtFixedRate(() -> this.tick(feed),
+                ThreadLocalRandom.current().nextLong(intervalNanos), intervalNanos, TimeUnit.NANOSECONDS);
+        if (this.feeds.putIfAbsent(feedId, feed) != null) {
+            feed.future.cancel(false);
+            throw new IllegalArgumentException(String.format("feed \"%s\" is already registered", feedId));
+        }
+    }
+
+    /**
+     * Stop polling a feed. A poll already running is allowed to finish.
+     * @param feedId ID of the feed
+     * @return the feed's poller, or null if not registered
+     */
+    @Nullable
+    public VehiclePositionFeedPoller unregister(@NotNull String feedId) {
+        Feed feed = this.feeds.remove(feedId);
+        if (feed == null) {
+            return null;
+        }
+        feed.future.cancel(false);
+        return feed.poller;
+    }
+
+    /**
+     * Called by the timer when a feed's interval comes due
+     * @param feed feed
+     */
+    private void tick(@NotNull Feed feed) {
+        if (this.feeds.get(feed.feedId) != feed) {
+            // not yet registered, or rejected as a duplicate
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - feed.notBeforeNanos < 0) {
+            // backing off after failures
+            return;
+        }
+        if (feed.isOutstanding) {
+            feed.skippedTicks.incrementAndGet();
+            return;
+        }
+        feed.isOutstanding = true;
+        feed.dueNanos = now;
+        this.queuedCount.incrementAndGet();
+        this.workers.execute(() -> this.poll(feed));
+    }
+
+    /**
+     * Run on a worker to poll a feed
+     * @param feed feed
+     */
+    private void poll(@NotNull Feed feed) {
+        this.queuedCount.decrementAndGet();
+        long startNanos = System.nanoTime();
+        feed.lastStartLagNanos = startNanos - feed.dueNanos;
+        try {
+            if (feed.poller.poll() == null) {
+                feed.notModifiedCount.incrementAndGet();
+            }
+            feed.lastSuccess = Instant.now();
+            feed.lastError = null;
+        } catch (Exception e) {
+            feed.lastError = e.toString();
+            logger.warn("{}: poll failed: {}", feed.feedId, e.toString());
+        } finally {
+            feed.pollCount.incrementAndGet();
+            long endNanos = System.nanoTime();
+            feed.lastPollNanos = endNanos - startNanos;
+            feed.notBeforeNanos = endNanos + feed.poller.getNextDelay(feed.interval).toNanos()
+                    - feed.interval.toNanos();
+            feed.skippedTicks.set(0);
+            feed.isOutstanding = false;
+        }
+    }
+
+    /**
+     * Get the status of a feed
+     * @param feedId ID of the feed
+     * @return status, or null if not registered
+     */
+    @Nullable
+    public FeedStatus getStatus(@NotNull String feedId) {
+        Feed feed = this.feeds.get(feedId);
+        return feed == null ? null : new FeedStatus(feed);
+    }
+
+    /**
+     * Get the status of every registered feed
+     * @return statuses, in no particular order
+     */
+    @NotNull
+    public List<FeedStatus> getStatuses() {
+        List<FeedStatus> result = new ArrayList<>(this.feeds.size());
+        for (Feed feed: this.feeds.values()) {
+            result.add(new FeedStatus(feed));
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of polls waiting for a worker
+     * @return number of queued polls
+     */
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * Stop polling all feeds. Running polls are interrupted.
+     * Pollers are not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        this.timer.shutdownNow();
+        this.workers.shutdownNow();
+        this.feeds.clear();
+    }
+
+    @NotNull
+    static ThreadFactory daemonThreadFactory(@NotNull String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Scheduling state for one feed
+     */
+    private static final class Feed {
+        @NotNull
+        private final String feedId;
+        @NotNull
+        private final VehiclePositionFeedPoller poller;
+        @NotNull
+        private final Duration interval;
+        private volatile ScheduledFuture<?> future;
+
+        /**
+         * A poll is queued or running; only the timer thread sets this,
+         * and only the worker running the poll clears it
+         */
+        private volatile boolean isOutstanding = false;
+        private volatile long dueNanos = 0;
+        private volatile long notBeforeNanos = System.nanoTime();
+        private volatile long lastStartLagNanos = 0;
+        private volatile long lastPollNanos = 0;
+        @Nullable
+        private volatile Instant lastSuccess = null;
+        @Nullable
+        private volatile String lastError = null;
+        private final AtomicInteger skippedTicks = new AtomicInteger();
+        private final AtomicLong pollCount = new AtomicLong();
+        private final AtomicLong notModifiedCount = new AtomicLong();
+
+        private Feed(@NotNull String feedId, @NotNull VehiclePositionFeedPoller poller, @NotNull Duration interval) {
+            this.feedId = feedId;
+            this.poller = poller;
+            this.interval = interval;
+        }
+    }
+
+    /**
+     * Point-in-time status of a feed
+     */
+    public static class FeedStatus {
+        @NotNull
+        private final String feedId;
+        @NotNull
+        private final Duration interval;
+        private final boolean isOutstanding;
+        private final int queueDepth;
+        @NotNull
+        private final Duration lag;
+        @NotNull
+        private final Duration lastPollDuration;
+        @Nullable
+        private final Instant lastSuccess;
+        @Nullable
+        private final String lastError;
+        private final int consecutiveFailures;
+        private final long pollCount;
+        private final long notModifiedCount;
+
+        private FeedStatus(@NotNull Feed feed) {
+            this.feedId = feed.feedId;
+            this.interval = feed.interval;
+            this.isOutstanding = feed.isOutstanding;
+            // the outstanding poll, plus the intervals that came due behind it
+            this.queueDepth = (this.isOutstanding ? 1 : 0) + feed.skippedTicks.get();
+            this.lag = Duration.ofNanos(this.isOutstanding
+                    ? System.nanoTime() - feed.dueNanos
+                    : feed.lastStartLagNanos);
+            this.lastPollDuration = Duration.ofNanos(feed.lastPollNanos);
+            this.lastSuccess = feed.lastSuccess;
+            this.lastError = feed.lastError;
+            this.consecutiveFailures = feed.poller.getConsecutiveFailures();
+            this.pollCount = feed.pollCount.get();
+            this.notModifiedCount = feed.notModifiedCount.get();
+        }
+
+        @NotNull
+        public String getFeedId() {
+            return feedId;
+        }
+
+        @NotNull
+        public Duration getInterval() {
+            return interval;
+        }
+
+        /**
+         * Get whether a poll is queued or running
+         * @return true if a poll is outstanding
+         */
+        public boolean isOutstanding() {
+            return isOutstanding;
+        }
+
+        /**
+         * Get the number of polls due but not yet completed: the outstanding
+         * poll, if any, and the intervals that came due behind it
+         * @return queue depth
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Get how far behind schedule the feed is: the age of the outstanding
+         * poll, or how long the last poll waited for a worker
+         * @return lag
+         */
+        @NotNull
+        public Duration getLag() {
+            return lag;
+        }
+
+        @NotNull
+        public Duration getLastPollDuration() {
+            return lastPollDuration;
+        }
+
+        @Nullable
+        public Instant getLastSuccess() {
+            return lastSuccess;
+        }
+
+        @Nullable
+        public String getLastError() {
+            return lastError;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public long getPollCount() {
+            return pollCount;
+        }
+
+        public long getNotModifiedCount() {
+            return notModifiedCount;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Append-only journal of received feeds, for crash recovery and forensics
+ *
+ * The journal is a directory of segment files, each named for the receive
+ * time of its first record and written through a memory mapping. A record
+ * is a 4-byte length, an 8-byte receive time in epoch milliseconds, and the
+ * serialized FeedMessage. The length is written last, so a record is either
+ * complete or, after a crash, reads as the end of the segment. Receive times
+ * never decrease; a record received "earlier" than its predecessor is
+ * stamped with its predecessor's time.
+ *
+ * Appends copy into the mapping and return; data reaches the disk when the
+ * operating system writes it back, or on force(), which writes back the
+ * current segment. A process crash loses nothing appended; a system crash
+ * may lose what the operating system had not yet written back.
+ */
+public class FeedJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FeedJournal.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    @NotNull
+    private final Path directory;
+    private final int segmentSize;
+    @NotNull
+    private final Duration retention;
+
+    /**
+     * Guards everything below
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Paths of all segments, indexed by the receive time of their first record
+     */
+    @NotNull
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+
+    /**
+     * Segment being written, or null until the first append
+     */
+    @Nullable
+    private MappedByteBuffer current = null;
+    /**
+     * Receive time of the first record in the current segment
+     */
+    private long currentStartMillis = 0;
+    private int position = 0;
+    private long lastMillis = Long.MIN_VALUE;
+    private boolean isClosed = false;
+
+    /**
+     * Open a journal, creating the directory if needed
+     * @param directory directory for segment files
+     * @param retention how long to keep segments after they are filled
+     * @throws IOException if unable to read the directory
+     */
+    public FeedJournal(@NotNull Path directory, @NotNull Duration retention) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, retention);
+    }
+
+    /**
+     * Open a journal, creating the directory if needed
+     * @param directory directory for segment files
+     * @param segmentSize size of each segment file; larger records get a segment of their own
+     * @param retention how long to keep segments after they are filled
+     * @throws IOException if unable to read the directory
+     */
+    public FeedJournal(@NotNull Path directory, int segmentSize, @NotNull Duration retention) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException(String.format("segmentSize must be more than %d", HEADER_SIZE));
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path: paths) {
+                String name = path.getFileName().toString();
+                try {
+                    this.segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+                            path);
+                } catch (NumberFormatException e) {
+                    logger.warn("{}: not a journal segment; ignored", path);
+                }
+            }
+        }
+        if (!this.segments.isEmpty()) {
+            // new records go in a new segment, after the last record of the last one
+            this.lastMillis = this.segments.lastKey();
+            forEachRecord(this.segments.lastEntry().getValue(), Integer.MAX_VALUE,
+                    (receivedMillis, feed) -> this.lastMillis = receivedMillis);
+        }
+    }
+
+    /**
+     * Append a feed
+     * @param received when the feed was received
+     * @param feedMessage feed
+     * @throws IOException if unable to create a segment
+     */
+    public void append(@NotNull Instant received, @NotNull GtfsRealtime.FeedMessage feedMessage)
+            throws IOException {
+        this.lock.lock();
+        try {
+            int length = feedMessage.getSerializedSize();
+            ByteBuffer record = this.reserve(received, length);
+            // serialize straight into the mapping
+            CodedOutputStream output = CodedOutputStream.newInstance(record);
+            feedMessage.writeTo(output);
+            output.flush();
+            this.commit(length);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Append a serialized feed
+     * @param received when the feed was received
+     * @param bytes buffer holding the serialized FeedMessage
+     * @param offset start of the feed in the buffer
+     * @param length length of the feed
+     * @throws IOException if unable to create a segment
+     */
+    public void append(@NotNull Instant received, @NotNull byte[] bytes, int offset, int length)
+            throws IOException {
+        this.lock.lock();
+        try {
+            this.reserve(received, length).put(bytes, offset, length);
+            this.commit(length);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Start a record whose feed is written as it arrives. The feed is
+     * buffered by the record, and appended when the record is closed, so a
+     * slow feed holds up no other appends.
+     * @param received when the feed was received
+     * @return stream to write the serialized FeedMessage to
+     */
+    @NotNull
+    RecordOutputStream openRecord(@NotNull Instant received) {
+        return new RecordOutputStream(received);
+    }
+
+    /**
+     * Make room for a record, and write its receive time
+     * @param received when the feed was received
+     * @param length length of the feed
+     * @return buffer to write the feed into
+     * @throws IOException if unable to create a segment
+     */
+    @NotNull
+    private ByteBuffer reserve(@NotNull Instant received, int length) throws IOException {
+        if (this.isClosed) {
+            throw new IllegalStateException("journal is closed");
+        }
+        if (length < 1) {
+            throw new IllegalArgumentException("cannot journal an empty feed");
+        }
+        long receivedMillis = Math.max(this.lastMillis, received.toEpochMilli());
+        if (this.current == null || this.current.capacity() - this.position < HEADER_SIZE + length) {
+            receivedMillis = this.roll(receivedMillis, HEADER_SIZE + length);
+        }
+        this.lastMillis = receivedMillis;
+        MappedByteBuffer segment = this.current;
+        segment.putLong(this.position + Integer.BYTES, receivedMillis);
+        ByteBuffer record = segment.duplicate();
+        record.position(this.position + HEADER_SIZE);
+        record.limit(this.position + HEADER_SIZE + length);
+        return record.slice();
+    }
+
+    /**
+     * Complete the record started by reserve()
+     * @param length length of the feed
+     */
+    private void commit(int length) {
+        this.current.putInt(this.position, length);
+        this.position += HEADER_SIZE + length;
+    }
+
+    /**
+     * Start a new segment, and delete segments past retention. The segment
+     * being left is written back by the operating system in its own time.
+     * @param startMillis receive time of the segment's first record
+     * @param minimumSize room needed for the first record
+     * @return receive time of the segment's first record, made unique among segment names
+     * @throws IOException if unable to create the segment
+     */
+    private long roll(long startMillis, int minimumSize) throws IOException {
+        if (!this.segments.isEmpty() && startMillis <= this.segments.lastKey()) {
+            startMillis = this.segments.lastKey() + 1;
+        }
+        Path path = this.directory.resolve(String.format("%020d%s", startMillis, SEGMENT_SUFFIX));
+        MappedByteBuffer segment;
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentSize, minimumSize));
+        }
+        this.current = segment;
+        this.currentStartMillis = startMillis;
+        this.position = 0;
+        this.segments.put(startMillis, path);
+        logger.debug("{}: new journal segment", path);
+
+        // a segment can go once the segment after it starts before the cutoff
+        long cutoffMillis = startMillis - this.retention.toMillis();
+        Map.Entry<Long, Path> oldest;
+        Long next;
+        while ((oldest = this.segments.firstEntry()) != null
+                && (next = this.segments.higherKey(oldest.getKey())) != null && next < cutoffMillis) {
+            this.segments.remove(oldest.getKey());
+            Files.deleteIfExists(oldest.getValue());
+            logger.debug("{}: journal segment past retention; deleted", oldest.getValue());
+        }
+        return startMillis;
+    }
+
+    /**
+     * Write appended records to the disk
+     */
+    public void force() {
+        this.lock.lock();
+        try {
+            if (this.current != null) {
+                this.current.force();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Pass each feed received in a time range to a consumer, in the order appended.
+     * Records appended while the replay runs are not included.
+     * @param from earliest receive time, inclusive
+     * @param to latest receive time, inclusive
+     * @param consumer consumer of feeds
+     * @return number of feeds replayed
+     * @throws Exception If unable to read, or as thrown by the consumer
+     */
+    public int replay(@NotNull Instant from, @NotNull Instant to, @NotNull RecordConsumer consumer)
+            throws Exception {
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        TreeMap<Long, Path> segments;
+        long endSegmentMillis;
+        int endPosition;
+        this.lock.lock();
+        try {
+            segments = new TreeMap<>(this.segments);
+            endSegmentMillis = this.current == null ? Long.MIN_VALUE : this.currentStartMillis;
+            endPosition = this.position;
+        } finally {
+            this.lock.unlock();
+        }
+        // a segment's records are no later than the start of the next segment
+        Long firstKey = segments.floorKey(fromMillis - 1);
+        int[] count = {0};
+        for (Map.Entry<Long, Path> entry: segments.tailMap(firstKey == null ? Long.MIN_VALUE : firstKey).entrySet()) {
+            if (entry.getKey() > toMillis) {
+                break;
+            }
+            int limit = entry.getKey() == endSegmentMillis ? endPosition : Integer.MAX_VALUE;
+            forEachRecord(entry.getValue(), limit, (receivedMillis, feed) -> {
+                if (receivedMillis >= fromMillis && receivedMillis <= toMillis) {
+                    consumer.accept(Instant.ofEpochMilli(receivedMillis), feed);
+                    count[0]++;
+                }
+            });
+        }
+        return count[0];
+    }
+
+    /**
+     * Apply each feed received in a time range to a collection, in the order
+     * appended. The collection's staleAge applies as usual, relative to now,
+     * so to replay old feeds use a collection with a long staleAge.
+     * @param from earliest receive time, inclusive
+     * @param to latest receive time, inclusive
+     * @param collection collection to update
+     * @return number of feeds replayed
+     * @throws Exception If unable to read or if data fails validation
+     */
+    public int replay(@NotNull Instant from, @NotNull Instant to, @NotNull VehiclePositionCollection collection)
+            throws Exception {
+        return this.replay(from, to, (received, feed) -> collection.update(new FeedMessageReader(feed)));
+    }
+
+    /**
+     * Walk the records of a segment, mapped read-only
+     * @param path segment file
+     * @param limit offset at which to stop
+     * @param visitor visitor
+     * @param <E> type of exception thrown by the visitor
+     * @throws IOException If unable to read
+     * @throws E as thrown by the visitor
+     */
+    private static <E extends Exception> void forEachRecord(@NotNull Path path, int limit,
+                                                            @NotNull RecordVisitor<E> visitor)
+            throws IOException, E {
+        MappedByteBuffer segment;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int end = Math.min(limit, segment.capacity());
+        int position = 0;
+        while (end - position >= HEADER_SIZE) {
+            int length = segment.getInt(position);
+            if (length <= 0 || length > end - position - HEADER_SIZE) {
+                // end of segment, or a record cut short by a crash
+                break;
+            }
+            ByteBuffer feed = segment.duplicate();
+            feed.position(position + HEADER_SIZE);
+            feed.limit(position + HEADER_SIZE + length);
+            visitor.visit(segment.getLong(position + Integer.BYTES), feed.slice());
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    @NotNull
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Force appended records to the disk, and stop accepting new ones
+     */
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            if (!this.isClosed) {
+                this.force();
+                this.isClosed = true;
+                this.current = null;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Record being written as its feed arrives, from openRecord(). The feed
+     * is collected in a buffer of the record's own, and goes into the
+     * journal only when the record is closed.
+     */
+    final class RecordOutputStream extends OutputStream {
+        private static final int INITIAL_SIZE = 1 << 16;
+
+        @NotNull
+        private final Instant received;
+        @Nullable
+        private byte[] bytes = new byte[INITIAL_SIZE];
+        private int length = 0;
+
+        private RecordOutputStream(@NotNull Instant received) {
+            this.received = received;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.ensureRoom(1)[this.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(@NotNull byte[] bytes, int offset, int count) throws IOException {
+            System.arraycopy(bytes, offset, this.ensureRoom(count), this.length, count);
+            this.length += count;
+        }
+
+        @NotNull
+        private byte[] ensureRoom(int count) throws IOException {
+            byte[] buffer = this.bytes;
+            if (buffer == null) {
+                throw new IOException("journal record is closed");
+            }
+            long needed = (long) this.length + count;
+            if (needed > buffer.length) {
+                if (needed > Integer.MAX_VALUE - HEADER_SIZE) {
+                    throw new IOException("feed too large to journal");
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - HEADER_SIZE,
+                        Math.max(needed, 2L * buffer.length)));
+                this.bytes = buffer;
+            }
+            return buffer;
+        }
+
+        /**
+         * Append the record to the journal; a record with nothing written is dropped
+         * @throws IOException if unable to create a segment
+         */
+        @Override
+        public void close() throws IOException {
+            byte[] buffer = this.bytes;
+            this.bytes = null;
+            if (buffer != null && this.length > 0) {
+                append(this.received, buffer, 0, this.length);
+            }
+        }
+
+        /**
+         * Drop the record, for a feed that failed to arrive or parse
+         */
+        void abort() {
+            this.bytes = null;
+        }
+    }
+
+    /**
+     * Consumer of replayed feeds
+     */
+    @FunctionalInterface
+    public interface RecordConsumer {
+        /**
+         * Accept a feed
+         * @param received when the feed was received
+         * @param feed the serialized FeedMessage; valid only for the duration of the call
+         * @throws Exception to stop the replay
+         */
+        void accept(@NotNull Instant received, @NotNull ByteBuffer feed) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor<E extends Exception> {
+        void visit(long receivedMillis, @NotNull ByteBuffer feed) throws E;
+    }
+}
@@ -0,0 +1,98 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Streaming reader for a serialized GTFS realtime FeedMessage
+ *
+ * Entities are decoded one at a time as they are read from the stream,
+ * so memory use is bounded by the largest single entity rather than by
+ * the whole feed.
+ */
+public class FeedMessageReader {
+    /**
+     * FeedMessage field tags, (field_number << 3) | wire_type (See gtfs-realtime.proto)
+     */
+    private static final int HEADER_TAG = (1 << 3) | 2;
+    private static final int ENTITY_TAG = (2 << 3) | 2;
+
+    @NotNull
+    private final CodedInputStream input;
+
+    @Nullable
+    private GtfsRealtime.FeedHeader header = null;
+
+    private int entityCount = 0;
+
+    /**
+     * Construct reader
+     * @param inputStream An input stream that contains a serialized FeedMessage
+     */
+    public FeedMessageReader(@NotNull InputStream inputStream) {
+        this.input = CodedInputStream.newInstance(inputStream);
+        this.input.setSizeLimit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Construct reader over a buffer, without copying it
+     * @param buffer A buffer that contains a serialized FeedMessage, from its position to its limit
+     */
+    public FeedMessageReader(@NotNull ByteBuffer buffer) {
+        this.input = CodedInputStream.newInstance(buffer);
+        this.input.setSizeLimit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read the next entity from the stream
+     * @return the next entity, or null at the end of the feed
+     * @throws IOException If unable to read or if data fails validation
+     */
+    @Nullable
+    public GtfsRealtime.FeedEntity next() throws IOException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            // the size limit applies per field, not to the feed as a whole
+            input.resetSizeCounter();
+            if (tag == ENTITY_TAG) {
+                entityCount++;
+                return input.readMessage(GtfsRealtime.FeedEntity.parser(), ExtensionRegistryLite.getEmptyRegistry());
+            } else if (tag == HEADER_TAG) {
+                header = input.readMessage(GtfsRealtime.FeedHeader.parser(), ExtensionRegistryLite.getEmptyRegistry());
+            } else {
+                input.skipField(tag);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the feed header.
+     * Publishers serialize the header ahead of the entities, so it is normally
+     * available once the first entity has been read.
+     * @return feed header, or null if not yet read
+     */
+    @Nullable
+    public GtfsRealtime.FeedHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Get the number of entities read so far
+     * @return entity count
+     */
+    public int getEntityCount() {
+        return entityCount;
+    }
+}
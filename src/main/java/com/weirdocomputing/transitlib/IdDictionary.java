@@ -0,0 +1,219 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Bounded dictionary of identifiers (vehicle, trip, route and stop IDs)
+ *
+ * The first instance of each identifier seen becomes the canonical one, so
+ * that collections holding the same IDs feed after feed can share one copy
+ * of each. Collections key on those canonical strings, not on codes.
+ * Each identifier is also assigned a dense int code, for callers that keep
+ * their own int-keyed structures.
+ * IDs that come and go, such as trip IDs, would eventually fill the
+ * dictionary with ones no longer in use, so once it is full it starts a new
+ * generation: it empties, and the IDs still in use are added again as they
+ * next arrive. Codes are never reassigned within a generation, and are
+ * meaningless in any other: a code held across a new generation may decode
+ * to a different ID. Callers that keep codes should use encodeKey(), which
+ * carries the generation with the code, and decodeKey(), which rejects
+ * keys from a past generation.
+ * Safe for concurrent use, and may be shared between collections.
+ */
+public class IdDictionary {
+    public static final int NO_CODE = -1;
+    public static final long NO_KEY = -1L;
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final int capacity;
+    @NotNull
+    private final AtomicReference<Generation> generation;
+
+    public IdDictionary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct dictionary
+     * @param capacity most identifiers to hold
+     */
+    public IdDictionary(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.generation = new AtomicReference<>(new Generation(0, capacity));
+    }
+
+    /**
+     * Get the code for an identifier, assigning one if new. If the
+     * dictionary is full, this starts a new generation.
+     * @param id identifier
+     * @return code, or NO_CODE if id is null
+     */
+    public int encode(@Nullable String id) {
+        return id == null ? NO_CODE : this.entry(id).code;
+    }
+
+    /**
+     * Get the code for an identifier, with the generation it belongs to,
+     * assigning one if new. If the dictionary is full, this starts a new
+     * generation.
+     * @param id identifier
+     * @return generation in the high 32 bits and code in the low 32 bits,
+     *         or NO_KEY if id is null
+     */
+    public long encodeKey(@Nullable String id) {
+        if (id == null) {
+            return NO_KEY;
+        }
+        Entry entry = this.entry(id);
+        return (entry.generation << 32) | entry.code;
+    }
+
+    /**
+     * Get the identifier for a code
+     * @param code code from encode(), in the current generation
+     * @return identifier, or null for NO_CODE. A code from a past
+     *         generation decodes to whatever ID now has it, if any.
+     */
+    @Nullable
+    public String decode(int code) {
+        return code == NO_CODE ? null : this.generation.get().values.get(code);
+    }
+
+    /**
+     * Get the identifier for a key from encodeKey()
+     * @param key key
+     * @return identifier, or null for NO_KEY or a key from a past generation
+     */
+    @Nullable
+    public String decodeKey(long key) {
+        Generation g = this.generation.get();
+        if (key == NO_KEY || generationOf(key) != (int) g.number) {
+            return null;
+        }
+        return g.values.get(codeOf(key));
+    }
+
+    /**
+     * Get the code part of a key from encodeKey()
+     * @param key key
+     * @return code, or NO_CODE for NO_KEY
+     */
+    public static int codeOf(long key) {
+        return key == NO_KEY ? NO_CODE : (int) key;
+    }
+
+    /**
+     * Get the generation part of a key from encodeKey(), modulo 2^32
+     * @param key key
+     * @return generation, or -1 for NO_KEY
+     */
+    public static int generationOf(long key) {
+        return key == NO_KEY ? -1 : (int) (key >>> 32);
+    }
+
+    /**
+     * Get the canonical instance of an identifier
+     * @param id identifier
+     * @return canonical instance
+     */
+    @Nullable
+    public String canonicalize(@Nullable String id) {
+        return id == null ? null : this.entry(id).id;
+    }
+
+    /**
+     * Get the number of identifiers held in the current generation
+     * @return number of identifiers
+     */
+    public int size() {
+        return Math.min(this.generation.get().size.get(), this.capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of times the dictionary has filled and started over
+     * @return generation
+     */
+    public long getGeneration() {
+        return this.generation.get().number;
+    }
+
+    /**
+     * Look up an identifier, adding it if new
+     * @param id identifier
+     * @return code and canonical instance
+     */
+    @NotNull
+    private Entry entry(@NotNull String id) {
+        while (true) {
+            Generation g = this.generation.get();
+            Entry entry = g.codes.get(id);
+            if (entry != null) {
+                return entry;
+            }
+            entry = g.codes.computeIfAbsent(id, key -> {
+                int newCode = g.size.getAndIncrement();
+                if (newCode >= this.capacity) {
+                    return null;
+                }
+                g.values.set(newCode, key);
+                return new Entry(g.number, newCode, key);
+            });
+            if (entry != null) {
+                return entry;
+            }
+            // full; whoever gets here first starts the next generation
+            this.generation.compareAndSet(g, new Generation(g.number + 1, this.capacity));
+        }
+    }
+
+    /**
+     * An identifier's code, the generation it belongs to, and canonical instance
+     */
+    private static final class Entry {
+        private final long generation;
+        private final int code;
+        @NotNull
+        private final String id;
+
+        private Entry(long generation, int code, @NotNull String id) {
+            this.generation = generation;
+            this.code = code;
+            this.id = id;
+        }
+    }
+
+    /**
+     * The identifiers added since the dictionary was last emptied
+     */
+    private static final class Generation {
+        private final long number;
+        @NotNull
+        private final ConcurrentHashMap<String, Entry> codes = new ConcurrentHashMap<>();
+        @NotNull
+        private final AtomicReferenceArray<String> values;
+        @NotNull
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Generation(long number, int capacity) {
+            this.number = number;
+            this.values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+}
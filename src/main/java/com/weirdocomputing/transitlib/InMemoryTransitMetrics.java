@@ -0,0 +1,142 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Metrics kept in memory, in counters and histograms, for an application
+ * to read and export as it likes
+ */
+public class InMemoryTransitMetrics implements TransitMetrics {
+    private final LogLinearHistogram parseNanos = new LogLinearHistogram();
+    private final LogLinearHistogram feedLagMillis = new LogLinearHistogram();
+    private final LogLinearHistogram purgeNanos = new LogLinearHistogram();
+    private final LogLinearHistogram[] serializeNanos = newHistograms(EncodedFeed.Format.values().length);
+    private final LogLinearHistogram[] serializedBytes = newHistograms(EncodedFeed.Format.values().length);
+    private final LongAdder entityCount = new LongAdder();
+    private final LongAdder totalParseNanos = new LongAdder();
+    private final LongAdder[] dropCounts = newAdders(DropReason.values().length);
+    private final LongAdder purgeCount = new LongAdder();
+
+    @Override
+    public void feedParsed(long nanos, int entityCount) {
+        this.parseNanos.record(nanos);
+        this.totalParseNanos.add(nanos);
+        this.entityCount.add(entityCount);
+    }
+
+    @Override
+    public void feedLag(long lagMillis) {
+        this.feedLagMillis.record(lagMillis);
+    }
+
+    @Override
+    public void positionDropped(@NotNull DropReason reason) {
+        this.dropCounts[reason.ordinal()].increment();
+    }
+
+    @Override
+    public void purged(long nanos, int purgeCount) {
+        this.purgeNanos.record(nanos);
+        this.purgeCount.add(purgeCount);
+    }
+
+    @Override
+    public void serialized(@NotNull EncodedFeed.Format format, long nanos, long byteCount) {
+        this.serializeNanos[format.ordinal()].record(nanos);
+        if (byteCount >= 0) {
+            this.serializedBytes[format.ordinal()].record(byteCount);
+        }
+    }
+
+    /**
+     * Get time to parse and apply each feed
+     * @return histogram of nanoseconds per feed
+     */
+    @NotNull
+    public LogLinearHistogram getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * Get how old feeds were when read, by their header timestamps
+     * @return histogram of milliseconds
+     */
+    @NotNull
+    public LogLinearHistogram getFeedLagMillis() {
+        return feedLagMillis;
+    }
+
+    /**
+     * Get time taken by each purge of stale positions
+     * @return histogram of nanoseconds per purge
+     */
+    @NotNull
+    public LogLinearHistogram getPurgeNanos() {
+        return purgeNanos;
+    }
+
+    /**
+     * Get time taken to serialize collections
+     * @param format format
+     * @return histogram of nanoseconds per serialization
+     */
+    @NotNull
+    public LogLinearHistogram getSerializeNanos(@NotNull EncodedFeed.Format format) {
+        return serializeNanos[format.ordinal()];
+    }
+
+    /**
+     * Get size of serialized collections, where known
+     * @param format format
+     * @return histogram of bytes per serialization
+     */
+    @NotNull
+    public LogLinearHistogram getSerializedBytes(@NotNull EncodedFeed.Format format) {
+        return serializedBytes[format.ordinal()];
+    }
+
+    public long getEntityCount() {
+        return entityCount.sum();
+    }
+
+    /**
+     * Get the parse rate, over all feeds parsed
+     * @return entities parsed and applied per second of parse time
+     */
+    public double getEntitiesPerSecond() {
+        long nanos = totalParseNanos.sum();
+        return nanos == 0 ? 0 : entityCount.sum() * 1e9 / nanos;
+    }
+
+    public long getDropCount(@NotNull DropReason reason) {
+        return dropCounts[reason.ordinal()].sum();
+    }
+
+    public long getPurgeCount() {
+        return purgeCount.sum();
+    }
+
+    @NotNull
+    private static LogLinearHistogram[] newHistograms(int count) {
+        LogLinearHistogram[] histograms = new LogLinearHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LogLinearHistogram();
+        }
+        return histograms;
+    }
+
+    @NotNull
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -0,0 +1,122 @@
+package com.weirdocomputing.transitlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Histogram of non-negative long values with bounded relative error
+ *
+ * Like HdrHistogram, each power of two is split into a fixed number of
+ * linear sub-buckets (32 here, for a relative error of about 3%), so the
+ * whole range of long fits in 1920 counters. Recording is lock-free and
+ * allocates nothing. Reads while values are being recorded are weakly
+ * consistent.
+ */
+public class LogLinearHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a value
+     * @param value value; negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        this.counts.incrementAndGet(bucketIndex(value));
+        this.totalCount.incrementAndGet();
+        this.totalValue.addAndGet(value);
+        this.min.accumulate(value);
+        this.max.accumulate(value);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Get the smallest value recorded
+     * @return smallest value, or 0 if none
+     */
+    public long getMin() {
+        return this.getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the mean of the values recorded
+     * @return mean, or 0 if none
+     */
+    public double getMean() {
+        long count = this.getCount();
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * Get the value at a percentile
+     * @param percentile percentile, from 0 to 100
+     * @return the highest value equivalent to the value at the percentile, or 0 if none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = this.getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    /**
+     * Forget all values. Values recorded during a reset may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts.set(i, 0);
+        }
+        this.totalCount.set(0);
+        this.totalValue.set(0);
+        this.min.reset();
+        this.max.reset();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // value >>> shift keeps the top SUB_BUCKET_BITS + 1 bits
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index - (long) shift * SUB_BUCKET_COUNT;
+        long next = (subBucket + 1) << shift;
+        // the top bucket's range ends at Long.MAX_VALUE
+        return next < 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
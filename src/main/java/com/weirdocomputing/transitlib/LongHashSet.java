@@ -0,0 +1,164 @@
+package com.weirdocomputing.transitlib;
+
+import java.util.Arrays;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Set of primitive long values
+ *
+ * Open addressing with linear probing over a single long array, so adding
+ * and looking up values allocates nothing unless the table grows.
+ * Not safe for concurrent modification.
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Slots, with 0 marking an empty slot; the value 0 is tracked separately
+     */
+    private long[] table;
+    private boolean hasZero = false;
+    private int size = 0;
+    private int resizeThreshold;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Construct set
+     * @param expectedSize number of values to hold without resizing
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expectedSize) {
+            capacity *= 2;
+        }
+        this.allocate(capacity);
+    }
+
+    /**
+     * Add a value
+     * @param value value to add
+     * @return true if the set changed
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            boolean changed = !hasZero;
+            hasZero = true;
+            size += changed ? 1 : 0;
+            return changed;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        long current;
+        while ((current = table[i]) != 0) {
+            if (current == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if (++size > resizeThreshold) {
+            this.resize(table.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return hasZero;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        long current;
+        while ((current = table[i]) != 0) {
+            if (current == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Remove a value
+     * @param value value to remove
+     * @return true if the set changed
+     */
+    public boolean remove(long value) {
+        if (value == 0) {
+            boolean changed = hasZero;
+            hasZero = false;
+            size -= changed ? 1 : 0;
+            return changed;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        long current;
+        while ((current = table[i]) != value) {
+            if (current == 0) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // shift later members of the probe run back, so that lookups don't stop short
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = slot(table[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = 0;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all values, keeping the current capacity
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldTable = table;
+        this.allocate(capacity);
+        int mask = table.length - 1;
+        for (long value: oldTable) {
+            if (value != 0) {
+                int i = slot(value, mask);
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        resizeThreshold = capacity / 2;
+    }
+
+    private static int slot(long value, int mask) {
+        // values may be well mixed already, but mix anyway so sequential values spread out
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -1,9 +1,13 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
 
 /*
  * © 2020 Daniel Norton
@@ -51,4 +55,39 @@ public class Position {
         return o;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonObject()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        writeJson(this.gglPos, g);
+    }
+
+    static void writeJson(@NotNull GtfsRealtime.Position gglPos, @NotNull JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        if (gglPos.hasLatitude()) {
+            g.writeNumberField("latitude", gglPos.getLatitude());
+        }
+        if (gglPos.hasLongitude()) {
+            g.writeNumberField("longitude", gglPos.getLongitude());
+        }
+        if (gglPos.hasBearing()) {
+            g.writeNumberField("bearing", gglPos.getBearing());
+        }
+        if (gglPos.hasOdometer()) {
+            double odometer = gglPos.getOdometer();
+            if (odometer > 0) {
+                g.writeNumberField("odometer", odometer);
+            }
+        }
+        if (gglPos.hasSpeed()) {
+            float speed = gglPos.getSpeed();
+            if (speed > 0) {
+                g.writeNumberField("speed", speed);
+            }
+        }
+        g.writeEndObject();
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -9,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.*;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -158,6 +160,40 @@ public class Route {
         return o;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonObject()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("id", this.id);
+        g.writeStringField("agencyId", this.agencyId);
+        if (this.shortName != null) {
+            g.writeStringField("shortName", this.shortName);
+        }
+        if (this.longName != null) {
+            g.writeStringField("longName", this.longName);
+        }
+        if (this.desc != null) {
+            g.writeStringField("desc", this.desc);
+        }
+        g.writeNumberField("type", this.type.getIndex());
+        if (this.url != null) {
+            g.writeStringField("url", this.url.toString());
+        }
+        if (this.color != null) {
+            g.writeStringField("color", String.format("%06X", this.color.getRGB() & 0xFFFFFF));
+        }
+        if (this.textColor != null) {
+            g.writeStringField("textColor", String.format("%06X", this.textColor.getRGB() & 0xFFFFFF));
+        }
+        if (this.sortOrder > 0) {
+            g.writeNumberField("sortOrder", this.sortOrder);
+        }
+        g.writeEndObject();
+    }
+
     @NotNull
     public String getId() {
         return id;
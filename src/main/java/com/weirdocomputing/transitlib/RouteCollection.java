@@ -1,5 +1,7 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.opencsv.CSVReader;
@@ -9,6 +11,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.HashMap;
 
 /*
@@ -23,6 +26,7 @@ public class RouteCollection {
     private HashMap <String,Route> routes = new HashMap<>();
 
     private static final JsonNodeFactory jnf = JsonNodeFactory.instance;
+    private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
     RouteCollection(final AgencyCollection agencies, final InputStream inputStream) throws IOException {
         final CSVReader reader = new CSVReader(new InputStreamReader(inputStream));
@@ -55,6 +59,30 @@ public class RouteCollection {
         return a;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonArray()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        g.writeStartArray();
+        for (Route route: routes.values()) {
+            route.writeJson(g);
+        }
+        g.writeEndArray();
+    }
+
+    /**
+     * Serialize to JSON, writing the same output as toJsonArray()
+     * @param outputStream stream to write UTF-8 JSON to; left open
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull OutputStream outputStream) throws IOException {
+        try (JsonGenerator g = jsonFactory.createGenerator(outputStream)) {
+            this.writeJson(g);
+        }
+    }
+
     @NotNull
     public HashMap<String, Route> getAll() {
         return routes;
@@ -0,0 +1,536 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Generates synthetic static and realtime feeds for load and soak tests
+ *
+ * Routes are random polylines around a city center, and each vehicle runs
+ * trips back and forth along one route. Each feed advances the simulation
+ * by one interval and reports every vehicle in service, with configurable
+ * rates of stale timestamps, timestamps older than the vehicle's previous
+ * report, duplicated entities, and vehicles leaving service to be replaced
+ * by new ones.
+ *
+ * Output depends only on the seed, the constructor arguments and the
+ * settings, so a failing run can be reproduced. State is kept in primitive
+ * arrays and feeds can be streamed entity by entity, so fleets of millions
+ * of vehicles are practical. Not safe for concurrent use; each feed must be
+ * read to the end, or abandoned, before the next is generated.
+ */
+public class SyntheticFeedGenerator {
+    public static final Duration DEFAULT_INTERVAL = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_STALE_AGE = Duration.ofMinutes(60);
+
+    private static final double CENTER_LATITUDE = 30.27;
+    private static final double CENTER_LONGITUDE = -97.74;
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final int POINTS_PER_ROUTE = 16;
+    private static final float MAX_SPEED = 20;
+
+    /**
+     * Protobuf field numbers in FeedMessage
+     */
+    private static final int HEADER_FIELD = 1;
+    private static final int ENTITY_FIELD = 2;
+
+    private final long seed;
+    private final int agencyCount;
+
+    // routes, indexed by route number - 1
+    private final int[] routeAgencies;
+    private final int[] routeTypes;
+    private final double[][] routeLatitudes;
+    private final double[][] routeLongitudes;
+    private final float[][] routeBearings;
+    /**
+     * Distance along the route of each point, in meters
+     */
+    private final double[][] routeDistances;
+
+    // vehicles in service, indexed by slot
+    private final long[] vehicleNumbers;
+    private final int[] vehicleRoutes;
+    private final int[] vehicleTrips;
+    private final boolean[] vehicleReversed;
+    private final double[] vehicleProgress;
+    private final float[] vehicleSpeeds;
+    private final long[] vehicleLastTimestamps;
+    private long nextVehicleNumber = 1;
+    private int nextTripNumber = 1;
+
+    private long tick = -1;
+    private long epochSecond;
+
+    @NotNull
+    private Duration interval = DEFAULT_INTERVAL;
+    @NotNull
+    private Duration staleAge = DEFAULT_STALE_AGE;
+    private double staleRate = 0.005;
+    private double outOfOrderRate = 0.01;
+    private double duplicateRate = 0.01;
+    private double churnRate = 0.001;
+
+    /**
+     * Construct generator whose first feed is timestamped now
+     * @param seed random seed
+     * @param agencyCount number of agencies
+     * @param routeCount number of routes
+     * @param fleetSize number of vehicles in service at any time
+     */
+    public SyntheticFeedGenerator(long seed, int agencyCount, int routeCount, int fleetSize) {
+        this(seed, agencyCount, routeCount, fleetSize, Instant.now());
+    }
+
+    /**
+     * Construct generator
+     * @param seed random seed
+     * @param agencyCount number of agencies
+     * @param routeCount number of routes
+     * @param fleetSize number of vehicles in service at any time
+     * @param start time of the first feed
+     */
+    public SyntheticFeedGenerator(long seed, int agencyCount, int routeCount, int fleetSize,
+                                  @NotNull Instant start) {
+        if (agencyCount < 1 || routeCount < 1 || fleetSize < 0) {
+            throw new IllegalArgumentException("at least one agency and one route are required");
+        }
+        this.seed = seed;
+        this.agencyCount = agencyCount;
+        this.epochSecond = start.getEpochSecond();
+        SplittableRandom random = new SplittableRandom(seed);
+
+        this.routeAgencies = new int[routeCount];
+        this.routeTypes = new int[routeCount];
+        this.routeLatitudes = new double[routeCount][];
+        this.routeLongitudes = new double[routeCount][];
+        this.routeBearings = new float[routeCount][];
+        this.routeDistances = new double[routeCount][];
+        for (int route = 0; route < routeCount; route++) {
+            this.newRoute(route, random);
+        }
+
+        this.vehicleNumbers = new long[fleetSize];
+        this.vehicleRoutes = new int[fleetSize];
+        this.vehicleTrips = new int[fleetSize];
+        this.vehicleReversed = new boolean[fleetSize];
+        this.vehicleProgress = new double[fleetSize];
+        this.vehicleSpeeds = new float[fleetSize];
+        this.vehicleLastTimestamps = new long[fleetSize];
+        for (int slot = 0; slot < fleetSize; slot++) {
+            this.newVehicle(slot, random);
+        }
+    }
+
+    /**
+     * Lay out a route as a wandering line of POINTS_PER_ROUTE points
+     * @param route route index
+     * @param random random source
+     */
+    private void newRoute(int route, @NotNull SplittableRandom random) {
+        // most agencies run buses
+        this.routeAgencies[route] = random.nextInt(this.agencyCount);
+        this.routeTypes[route] = random.nextInt(10) < 8 ? 3 : random.nextInt(3);
+        double[] latitudes = new double[POINTS_PER_ROUTE];
+        double[] longitudes = new double[POINTS_PER_ROUTE];
+        float[] bearings = new float[POINTS_PER_ROUTE];
+        double[] distances = new double[POINTS_PER_ROUTE];
+        latitudes[0] = CENTER_LATITUDE + (random.nextDouble() - 0.5) * 0.4;
+        longitudes[0] = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * 0.4;
+        double heading = random.nextDouble() * 360;
+        for (int i = 1; i < POINTS_PER_ROUTE; i++) {
+            heading = (heading + (random.nextDouble() - 0.5) * 60 + 360) % 360;
+            double length = 300 + random.nextDouble() * 1200;
+            double radians = Math.toRadians(heading);
+            latitudes[i] = latitudes[i - 1] + length * Math.cos(radians) / METERS_PER_DEGREE;
+            longitudes[i] = longitudes[i - 1] + length * Math.sin(radians)
+                    / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitudes[i - 1])));
+            bearings[i - 1] = (float) heading;
+            distances[i] = distances[i - 1] + length;
+        }
+        bearings[POINTS_PER_ROUTE - 1] = bearings[POINTS_PER_ROUTE - 2];
+        this.routeLatitudes[route] = latitudes;
+        this.routeLongitudes[route] = longitudes;
+        this.routeBearings[route] = bearings;
+        this.routeDistances[route] = distances;
+    }
+
+    /**
+     * Put a new vehicle into service somewhere along a random route
+     * @param slot vehicle slot
+     * @param random random source
+     */
+    private void newVehicle(int slot, @NotNull SplittableRandom random) {
+        int route = random.nextInt(this.routeAgencies.length);
+        this.vehicleNumbers[slot] = this.nextVehicleNumber++;
+        this.vehicleRoutes[slot] = route;
+        this.vehicleTrips[slot] = this.nextTripNumber++;
+        this.vehicleReversed[slot] = random.nextBoolean();
+        this.vehicleProgress[slot] = random.nextDouble() * this.routeDistances[route][POINTS_PER_ROUTE - 1];
+        this.vehicleSpeeds[slot] = (float) random.nextDouble() * MAX_SPEED;
+        this.vehicleLastTimestamps[slot] = 0;
+    }
+
+    /**
+     * Move the simulation to the time of the next feed
+     */
+    private void advance() {
+        this.tick++;
+        if (this.tick == 0) {
+            // the first feed reports the starting positions
+            return;
+        }
+        long intervalSeconds = this.interval.getSeconds();
+        this.epochSecond += intervalSeconds;
+        SplittableRandom random = this.tickRandom(0);
+        for (int slot = 0; slot < this.vehicleNumbers.length; slot++) {
+            if (random.nextDouble() < this.churnRate) {
+                this.newVehicle(slot, random);
+                continue;
+            }
+            float speed = this.vehicleSpeeds[slot] + (float) (random.nextDouble() - 0.5) * 4;
+            this.vehicleSpeeds[slot] = Math.max(0, Math.min(MAX_SPEED, speed));
+            double progress = this.vehicleProgress[slot] + this.vehicleSpeeds[slot] * intervalSeconds;
+            double length = this.routeDistances[this.vehicleRoutes[slot]][POINTS_PER_ROUTE - 1];
+            if (progress >= length) {
+                // end of the line; turn around and start the next trip
+                progress = Math.min(progress - length, length);
+                this.vehicleReversed[slot] = !this.vehicleReversed[slot];
+                this.vehicleTrips[slot] = this.nextTripNumber++;
+            }
+            this.vehicleProgress[slot] = progress;
+        }
+    }
+
+    /**
+     * Get an independent random source for the current tick, so that what
+     * one feed draws does not change the next
+     * @param stream which source
+     * @return random source
+     */
+    @NotNull
+    private SplittableRandom tickRandom(int stream) {
+        return new SplittableRandom(this.seed ^ (this.tick * 2 + stream + 1) * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Generate the next feed as a message. Fine for fleets of thousands;
+     * use openFeed() for larger ones.
+     * @return FULL_DATASET feed message
+     */
+    @NotNull
+    public GtfsRealtime.FeedMessage nextFeed() {
+        this.advance();
+        GtfsRealtime.FeedMessage.Builder builder = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(this.newHeader());
+        for (Iterator<GtfsRealtime.FeedEntity> entities = new EntityIterator(); entities.hasNext(); ) {
+            builder.addEntity(entities.next());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Generate the next feed as a stream of serialized protobuf. Each entity
+     * is generated as it is read, so the feed is never held in memory.
+     * The bytes are the same as nextFeed() would have returned.
+     * @return input stream of the serialized feed message
+     */
+    @NotNull
+    public InputStream openFeed() {
+        this.advance();
+        return new FeedInputStream(this.newHeader(), new EntityIterator());
+    }
+
+    @NotNull
+    private GtfsRealtime.FeedHeader newHeader() {
+        return GtfsRealtime.FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion("2.0")
+                .setIncrementality(GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET)
+                .setTimestamp(this.epochSecond)
+                .build();
+    }
+
+    /**
+     * Write an agency.txt file
+     * @param outputStream where to write UTF-8 CSV; left open
+     * @throws IOException if unable to write
+     */
+    public void writeAgencyTxt(@NotNull OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        writer.write("agency_id,agency_name,agency_url,agency_timezone,agency_lang,agency_phone\n");
+        for (int agency = 1; agency <= this.agencyCount; agency++) {
+            writer.write(String.format("%d,Synthetic Transit %d,https://agency%d.example.com/,America/Chicago,en,"
+                    + "512-555-%04d\n", agency, agency, agency, agency % 10_000));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write a routes.txt file for the agencies of writeAgencyTxt()
+     * @param outputStream where to write UTF-8 CSV; left open
+     * @throws IOException if unable to write
+     */
+    public void writeRoutesTxt(@NotNull OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        writer.write("route_id,agency_id,route_short_name,route_long_name,route_type,route_color,route_text_color\n");
+        for (int route = 0; route < this.routeAgencies.length; route++) {
+            int routeNumber = route + 1;
+            writer.write(String.format("%d,%d,%d,Synthetic Line %d,%d,%06X,FFFFFF\n",
+                    routeNumber, this.routeAgencies[route] + 1, routeNumber, routeNumber,
+                    this.routeTypes[route], (int) ((this.seed + routeNumber) * 0x9E3779B9L) & 0xFFFFFF));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Get the time of the last feed generated
+     * @return time of the last feed, or of the first feed if none yet
+     */
+    @NotNull
+    public Instant getTime() {
+        return Instant.ofEpochSecond(this.epochSecond);
+    }
+
+    public int getFleetSize() {
+        return vehicleNumbers.length;
+    }
+
+    public int getRouteCount() {
+        return routeAgencies.length;
+    }
+
+    @NotNull
+    public Duration getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set the time between feeds
+     * @param interval interval, of at least one second
+     */
+    public void setInterval(@NotNull Duration interval) {
+        if (interval.getSeconds() < 1) {
+            throw new IllegalArgumentException("interval must be at least one second");
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * Set how old stale reports are
+     * @param staleAge reports are older than this
+     */
+    public void setStaleAge(@NotNull Duration staleAge) {
+        this.staleAge = staleAge;
+    }
+
+    /**
+     * Set the fraction of reports older than staleAge
+     * @param staleRate rate, from 0 to 1
+     */
+    public void setStaleRate(double staleRate) {
+        this.staleRate = checkRate(staleRate);
+    }
+
+    /**
+     * Set the fraction of reports older than the vehicle's previous report
+     * @param outOfOrderRate rate, from 0 to 1
+     */
+    public void setOutOfOrderRate(double outOfOrderRate) {
+        this.outOfOrderRate = checkRate(outOfOrderRate);
+    }
+
+    /**
+     * Set the fraction of entities repeated in the same feed
+     * @param duplicateRate rate, from 0 to 1
+     */
+    public void setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = checkRate(duplicateRate);
+    }
+
+    /**
+     * Set the fraction of vehicles replaced by new vehicles at each interval
+     * @param churnRate rate, from 0 to 1
+     */
+    public void setChurnRate(double churnRate) {
+        this.churnRate = checkRate(churnRate);
+    }
+
+    private static double checkRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("rate must be from 0 to 1");
+        }
+        return rate;
+    }
+
+    /**
+     * Reports every vehicle in service, in slot order
+     */
+    private final class EntityIterator implements Iterator<GtfsRealtime.FeedEntity> {
+        private final SplittableRandom random = tickRandom(1);
+        private int slot = 0;
+        private GtfsRealtime.FeedEntity duplicate = null;
+
+        @Override
+        public boolean hasNext() {
+            return duplicate != null || slot < vehicleNumbers.length;
+        }
+
+        @Override
+        public GtfsRealtime.FeedEntity next() {
+            if (duplicate != null) {
+                GtfsRealtime.FeedEntity entity = duplicate;
+                duplicate = null;
+                return entity;
+            }
+            if (slot >= vehicleNumbers.length) {
+                throw new NoSuchElementException();
+            }
+            GtfsRealtime.FeedEntity entity = newEntity(slot++);
+            if (random.nextDouble() < duplicateRate) {
+                duplicate = entity;
+            }
+            return entity;
+        }
+
+        @NotNull
+        private GtfsRealtime.FeedEntity newEntity(int slot) {
+            long intervalSeconds = interval.getSeconds();
+            long timestamp = epochSecond - random.nextInt((int) Math.min(intervalSeconds, Integer.MAX_VALUE));
+            long lastTimestamp = vehicleLastTimestamps[slot];
+            double draw = random.nextDouble();
+            if (draw < staleRate) {
+                timestamp = epochSecond - staleAge.getSeconds() - 1 - random.nextInt(3600);
+            } else if (draw < staleRate + outOfOrderRate && lastTimestamp > 0) {
+                timestamp = lastTimestamp - 1 - random.nextInt((int) Math.min(intervalSeconds, Integer.MAX_VALUE));
+            } else {
+                vehicleLastTimestamps[slot] = timestamp;
+            }
+
+            int route = vehicleRoutes[slot];
+            double[] distances = routeDistances[route];
+            double length = distances[POINTS_PER_ROUTE - 1];
+            double distance = vehicleReversed[slot] ? length - vehicleProgress[slot] : vehicleProgress[slot];
+            int point = 0;
+            while (point < POINTS_PER_ROUTE - 2 && distances[point + 1] < distance) {
+                point++;
+            }
+            double fraction = Math.max(0, Math.min(1,
+                    (distance - distances[point]) / (distances[point + 1] - distances[point])));
+            double[] latitudes = routeLatitudes[route];
+            double[] longitudes = routeLongitudes[route];
+            float bearing = routeBearings[route][point];
+            if (vehicleReversed[slot]) {
+                bearing = (bearing + 180) % 360;
+            }
+
+            String vehicleId = Long.toString(vehicleNumbers[slot]);
+            String routeId = Integer.toString(route + 1);
+            return GtfsRealtime.FeedEntity.newBuilder()
+                    .setId(vehicleId)
+                    .setVehicle(GtfsRealtime.VehiclePosition.newBuilder()
+                            .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder()
+                                    .setId(vehicleId)
+                                    .setLabel(vehicleId))
+                            .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                                    .setTripId(routeId + "_" + vehicleTrips[slot])
+                                    .setRouteId(routeId)
+                                    .setDirectionId(vehicleReversed[slot] ? 1 : 0))
+                            .setPosition(GtfsRealtime.Position.newBuilder()
+                                    .setLatitude((float) (latitudes[point]
+                                            + (latitudes[point + 1] - latitudes[point]) * fraction))
+                                    .setLongitude((float) (longitudes[point]
+                                            + (longitudes[point + 1] - longitudes[point]) * fraction))
+                                    .setBearing(bearing)
+                                    .setSpeed(vehicleSpeeds[slot]))
+                            .setTimestamp(timestamp))
+                    .build();
+        }
+    }
+
+    /**
+     * Serializes a feed message one field at a time, as it is read
+     */
+    private static final class FeedInputStream extends InputStream {
+        @NotNull
+        private final Iterator<GtfsRealtime.FeedEntity> entities;
+        @NotNull
+        private byte[] buffer;
+        private int position = 0;
+
+        private FeedInputStream(@NotNull GtfsRealtime.FeedHeader header,
+                                @NotNull Iterator<GtfsRealtime.FeedEntity> entities) {
+            this.entities = entities;
+            this.buffer = serializeField(HEADER_FIELD, header);
+        }
+
+        @Override
+        public int read() {
+            if (!this.fill()) {
+                return -1;
+            }
+            return this.buffer[this.position++] & 0xff;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.fill()) {
+                return -1;
+            }
+            int count = Math.min(len, this.buffer.length - this.position);
+            System.arraycopy(this.buffer, this.position, b, off, count);
+            this.position += count;
+            return count;
+        }
+
+        /**
+         * Make sure there is something in the buffer to read
+         * @return false at the end of the feed
+         */
+        private boolean fill() {
+            while (this.position == this.buffer.length) {
+                if (!this.entities.hasNext()) {
+                    return false;
+                }
+                this.buffer = serializeField(ENTITY_FIELD, this.entities.next());
+                this.position = 0;
+            }
+            return true;
+        }
+
+        @NotNull
+        private static byte[] serializeField(int fieldNumber, @NotNull MessageLite message) {
+            byte[] bytes = new byte[CodedOutputStream.computeMessageSize(fieldNumber, message)];
+            CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+            try {
+                output.writeMessage(fieldNumber, message);
+            } catch (IOException e) {
+                // writing to an array of the exact size
+                throw new IllegalStateException(e);
+            }
+            output.checkNoSpaceLeft();
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Receives measurements from the hot paths of the library
+ *
+ * Every method has an empty default, so implementations override only what
+ * they record. Methods are called on ingest and serving threads, some while
+ * a collection holds an entry lock, and must be quick and thread-safe.
+ */
+public interface TransitMetrics {
+    /**
+     * Metrics that record nothing
+     */
+    TransitMetrics NOOP = new TransitMetrics() { };
+
+    /**
+     * Why a position was not stored
+     */
+    enum DropReason {
+        /**
+         * Older than the collection's staleAge
+         */
+        STALE,
+        /**
+         * Not newer than the position already held for the vehicle, including duplicates
+         */
+        OUT_OF_ORDER,
+        /**
+         * Shed by an overloaded VehiclePositionIngestQueue
+         */
+        SHED
+    }
+
+    /**
+     * A feed was parsed and applied
+     * @param nanos time taken
+     * @param entityCount number of entities in the feed
+     */
+    default void feedParsed(long nanos, int entityCount) {
+    }
+
+    /**
+     * A feed header was read
+     * @param lagMillis time from the header timestamp to now
+     */
+    default void feedLag(long lagMillis) {
+    }
+
+    /**
+     * A position was not stored
+     * @param reason reason
+     */
+    default void positionDropped(@NotNull DropReason reason) {
+    }
+
+    /**
+     * Stale positions were purged
+     * @param nanos time taken
+     * @param purgeCount number of positions purged
+     */
+    default void purged(long nanos, int purgeCount) {
+    }
+
+    /**
+     * A collection was serialized
+     * @param format format
+     * @param nanos time taken
+     * @param byteCount size of the serialized form, or -1 if not known
+     */
+    default void serialized(@NotNull EncodedFeed.Format format, long nanos, long byteCount) {
+    }
+}
@@ -1,9 +1,13 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
 
 /*
  * © 2020 Daniel Norton
@@ -48,6 +52,38 @@ public class TripDescriptor {
         return o;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonObject()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        writeJson(this.gglTD, g);
+    }
+
+    static void writeJson(@NotNull GtfsRealtime.TripDescriptor gglTD, @NotNull JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        if (gglTD.hasDirectionId()) {
+            g.writeNumberField("directionId", gglTD.getDirectionId());
+        }
+        if (gglTD.hasRouteId()) {
+            g.writeStringField("routeId", gglTD.getRouteId());
+        }
+        if (gglTD.hasScheduleRelationship()) {
+            g.writeNumberField("scheduleRelationship", gglTD.getScheduleRelationship().getNumber());
+        }
+        if (gglTD.hasStartDate()) {
+            g.writeStringField("startDate", gglTD.getStartDate());
+        }
+        if (gglTD.hasStartTime()) {
+            g.writeStringField("startTime", gglTD.getStartTime());
+        }
+        if (gglTD.hasTripId()) {
+            g.writeStringField("tripId", gglTD.getTripId());
+        }
+        g.writeEndObject();
+    }
+
     public GtfsRealtime.TripDescriptor getGglTD() {
         return gglTD;
     }
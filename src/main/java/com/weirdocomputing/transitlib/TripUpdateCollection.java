@@ -0,0 +1,209 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * A collection of real-time trip updates, indexed by trip ID and by stop ID
+ *
+ * Like VehiclePositionCollection, the collection is safe for concurrent use,
+ * the newest timestamp wins, and updates older than staleAge are discarded.
+ * Trip updates without a trip ID cannot be indexed and are discarded.
+ */
+public class TripUpdateCollection {
+
+    /**
+     * Map of trip updates indexed by trip ID
+     */
+    @NotNull
+    private final ConcurrentHashMap<String, GtfsRealtime.TripUpdate> tripUpdates = new ConcurrentHashMap<>();
+
+    /**
+     * IDs of the trips with updates for each stop, indexed by stop ID
+     */
+    @NotNull
+    private final ConcurrentHashMap<String, Set<String>> tripIdsByStop = new ConcurrentHashMap<>();
+
+    /**
+     * Ignore trip updates older than this age
+     */
+    @NotNull
+    private final Duration staleAge;
+
+    /**
+     * Construct empty collection
+     * @param staleAge How long a trip update is considered current
+     */
+    public TripUpdateCollection(@NotNull Duration staleAge) {
+        this.staleAge = staleAge;
+    }
+
+    /**
+     * Add the given trip update to the collection if it's new information
+     * @param tripUpdate The trip update to add
+     * @return true if the collection changed
+     */
+    public boolean put(@NotNull GtfsRealtime.TripUpdate tripUpdate) {
+        return this.put(tripUpdate, Instant.now().minus(staleAge).getEpochSecond());
+    }
+
+    /**
+     * Add the given trip update to the collection if it's new information
+     * @param tripUpdate The trip update to add
+     * @param staleSecond Trip updates timestamped before this are discarded
+     * @return true if the collection changed
+     */
+    boolean put(@NotNull GtfsRealtime.TripUpdate tripUpdate, long staleSecond) {
+        if (!tripUpdate.getTrip().hasTripId()
+                || (tripUpdate.hasTimestamp() && tripUpdate.getTimestamp() < staleSecond)) {
+            return false;
+        }
+        boolean[] changed = {false};
+        this.tripUpdates.compute(tripUpdate.getTrip().getTripId(), (tripId, current) -> {
+            // an update without a timestamp can't be ordered, so it replaces whatever we have
+            if (current == null || !tripUpdate.hasTimestamp() || !current.hasTimestamp()
+                    || tripUpdate.getTimestamp() > current.getTimestamp()) {
+                changed[0] = true;
+                if (current != null) {
+                    this.unindexStops(tripId, current);
+                }
+                this.indexStops(tripId, tripUpdate);
+                return tripUpdate;
+            }
+            return current;
+        });
+        return changed[0];
+    }
+
+    /**
+     * Remove the specified trip's update from the collection
+     * @param tripId trip ID
+     * @return trip update or null, if no such entry
+     */
+    @Nullable
+    public GtfsRealtime.TripUpdate remove(@NotNull String tripId) {
+        GtfsRealtime.TripUpdate[] removed = {null};
+        this.tripUpdates.computeIfPresent(tripId, (key, current) -> {
+            removed[0] = current;
+            this.unindexStops(key, current);
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Get a trip's update
+     * @param tripId trip ID
+     * @return trip update, or null if none
+     */
+    @Nullable
+    public GtfsRealtime.TripUpdate get(@NotNull String tripId) {
+        return this.tripUpdates.get(tripId);
+    }
+
+    /**
+     * Find the updates of trips that call at a stop
+     * @param stopId stop ID
+     * @return trip updates with a stop time update for the stop, in no particular order
+     */
+    @NotNull
+    public List<GtfsRealtime.TripUpdate> findByStop(@NotNull String stopId) {
+        List<GtfsRealtime.TripUpdate> result = new ArrayList<>();
+        Set<String> tripIds = this.tripIdsByStop.get(stopId);
+        if (tripIds != null) {
+            for (String tripId: tripIds) {
+                GtfsRealtime.TripUpdate tripUpdate = this.tripUpdates.get(tripId);
+                if (tripUpdate != null) {
+                    result.add(tripUpdate);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Purge stale trip updates from the collection
+     * @return number of trip updates purged
+     */
+    public int purgeStale() {
+        long staleSecond = Instant.now().minus(staleAge).getEpochSecond();
+        int purgeCount = 0;
+        for (GtfsRealtime.TripUpdate tripUpdate: this.tripUpdates.values()) {
+            if (tripUpdate.hasTimestamp() && tripUpdate.getTimestamp() < staleSecond) {
+                String tripId = tripUpdate.getTrip().getTripId();
+                boolean[] removed = {false};
+                this.tripUpdates.computeIfPresent(tripId, (key, current) -> {
+                    if (current != tripUpdate) {
+                        return current;
+                    }
+                    removed[0] = true;
+                    this.unindexStops(key, current);
+                    return null;
+                });
+                purgeCount += removed[0] ? 1 : 0;
+            }
+        }
+        return purgeCount;
+    }
+
+    /**
+     * Get collection size
+     * @return number of trip updates in collection
+     */
+    public int size() {
+        return tripUpdates.size();
+    }
+
+    /**
+     * Get trip updates
+     * @return unmodifiable view of the trip updates
+     */
+    @NotNull
+    public Collection<GtfsRealtime.TripUpdate> values() {
+        return Collections.unmodifiableCollection(tripUpdates.values());
+    }
+
+    @NotNull
+    public Duration getStaleAge() {
+        return staleAge;
+    }
+
+    private void indexStops(@NotNull String tripId, @NotNull GtfsRealtime.TripUpdate tripUpdate) {
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate: tripUpdate.getStopTimeUpdateList()) {
+            if (stopTimeUpdate.hasStopId()) {
+                this.tripIdsByStop.compute(stopTimeUpdate.getStopId(), (stopId, tripIds) -> {
+                    if (tripIds == null) {
+                        tripIds = ConcurrentHashMap.newKeySet();
+                    }
+                    tripIds.add(tripId);
+                    return tripIds;
+                });
+            }
+        }
+    }
+
+    private void unindexStops(@NotNull String tripId, @NotNull GtfsRealtime.TripUpdate tripUpdate) {
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate: tripUpdate.getStopTimeUpdateList()) {
+            if (stopTimeUpdate.hasStopId()) {
+                this.tripIdsByStop.computeIfPresent(stopTimeUpdate.getStopId(), (stopId, tripIds) -> {
+                    tripIds.remove(tripId);
+                    return tripIds.isEmpty() ? null : tripIds;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Index of vehicle positions by one string attribute, such as route ID
+ *
+ * Positions without the attribute are not indexed. As with
+ * VehicleSpatialIndex, updates for any one vehicle must not run
+ * concurrently; queries may run at any time and see a weakly consistent
+ * view.
+ */
+class VehicleAttributeIndex {
+    /**
+     * Gets the attribute of a position, or null if it has none
+     */
+    @NotNull
+    private final Function<GtfsRealtime.VehiclePosition, String> attribute;
+
+    /**
+     * Positions for each attribute value that has any
+     */
+    @NotNull
+    private final ConcurrentHashMap<String, Set<VehiclePosition>> buckets = new ConcurrentHashMap<>();
+
+    VehicleAttributeIndex(@NotNull Function<GtfsRealtime.VehiclePosition, String> attribute) {
+        this.attribute = attribute;
+    }
+
+    /**
+     * Replace a vehicle's previous position, if any, with its new one
+     * @param previous previous position
+     * @param position new position
+     */
+    void put(@Nullable VehiclePosition previous, @NotNull VehiclePosition position) {
+        String key = this.attribute.apply(position.getGoogleVehiclePosition());
+        if (previous != null) {
+            if (key != null && key.equals(this.attribute.apply(previous.getGoogleVehiclePosition()))) {
+                // same bucket: swap in place, without locking the bucket's entry.
+                // The bucket cannot empty and be dropped meanwhile, because
+                // only this vehicle's updates remove its previous position.
+                Set<VehiclePosition> bucket = this.buckets.get(key);
+                if (bucket != null && bucket.contains(previous)) {
+                    bucket.add(position);
+                    bucket.remove(previous);
+                    return;
+                }
+            }
+            this.remove(previous);
+        }
+        if (key != null) {
+            this.buckets.compute(key, (k, bucket) -> {
+                if (bucket == null) {
+                    bucket = ConcurrentHashMap.newKeySet();
+                }
+                bucket.add(position);
+                return bucket;
+            });
+        }
+    }
+
+    /**
+     * Remove a vehicle's position
+     * @param position position to remove
+     */
+    void remove(@NotNull VehiclePosition position) {
+        String key = this.attribute.apply(position.getGoogleVehiclePosition());
+        if (key != null) {
+            this.buckets.computeIfPresent(key, (k, bucket) -> {
+                bucket.remove(position);
+                return bucket.isEmpty() ? null : bucket;
+            });
+        }
+    }
+
+    /**
+     * Find positions with an attribute value
+     * @param key attribute value
+     * @return positions, in no particular order
+     */
+    @NotNull
+    List<VehiclePosition> find(@NotNull String key) {
+        Set<VehiclePosition> bucket = this.buckets.get(key);
+        return bucket == null ? new ArrayList<>() : new ArrayList<>(bucket);
+    }
+
+    /**
+     * Find positions with any of several attribute values
+     * @param keys attribute values
+     * @return positions, in no particular order
+     */
+    @NotNull
+    List<VehiclePosition> findAny(@NotNull Collection<String> keys) {
+        List<VehiclePosition> result = new ArrayList<>();
+        for (String key: keys) {
+            Set<VehiclePosition> bucket = this.buckets.get(key);
+            if (bucket != null) {
+                result.addAll(bucket);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the attribute values that currently have positions
+     * @return weakly consistent view of the values
+     */
+    @NotNull
+    Set<String> keys() {
+        return this.buckets.keySet();
+    }
+}
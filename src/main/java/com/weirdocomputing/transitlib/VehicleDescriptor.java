@@ -1,11 +1,14 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.transit.realtime.GtfsRealtime;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+
 /*
  * © 2020 Daniel Norton
  */
@@ -40,6 +43,30 @@ public class VehicleDescriptor {
         return o;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonObject()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        writeJson(this.gglVehicle, g);
+    }
+
+    static void writeJson(@NotNull GtfsRealtime.VehicleDescriptor gglVehicle, @NotNull JsonGenerator g)
+            throws IOException {
+        g.writeStartObject();
+        if (gglVehicle.hasId()) {
+            g.writeStringField("id", gglVehicle.getId());
+        }
+        if (gglVehicle.hasLabel()) {
+            g.writeStringField("label", gglVehicle.getLabel());
+        }
+        if (gglVehicle.hasLicensePlate()) {
+            g.writeStringField("licensePlate", gglVehicle.getLicensePlate());
+        }
+        g.writeEndObject();
+    }
+
     @NotNull
     public String getId() {
         return this.gglVehicle.getId();
@@ -0,0 +1,143 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * The last few positions of each vehicle, in fixed-size primitive ring buffers
+ *
+ * Each vehicle's buffer is allocated once, on its first position, and holds
+ * depth × BYTES_PER_POSITION bytes of data; appending after that allocates
+ * nothing. Appends and removals for any one vehicle must not run
+ * concurrently (VehiclePositionCollection makes them under the entry's map
+ * lock); trails may be read at any time.
+ */
+class VehicleHistory {
+    /**
+     * Latitude, longitude and bearing floats and a long timestamp
+     */
+    static final int BYTES_PER_POSITION = 3 * Float.BYTES + Long.BYTES;
+
+    private final int depth;
+    @NotNull
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    VehicleHistory(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.depth = depth;
+    }
+
+    /**
+     * Record a vehicle's new position. Positions without a location are ignored.
+     * @param vehicleId vehicle ID
+     * @param position new position, more recent than any recorded
+     */
+    void append(@NotNull String vehicleId, @NotNull VehiclePosition position) {
+        GtfsRealtime.VehiclePosition vp = position.getGoogleVehiclePosition();
+        if (!vp.hasPosition()) {
+            return;
+        }
+        Ring ring = this.rings.get(vehicleId);
+        if (ring == null) {
+            ring = new Ring(this.depth);
+            this.rings.put(vehicleId, ring);
+        }
+        GtfsRealtime.Position p = vp.getPosition();
+        ring.append(p.getLatitude(), p.getLongitude(), p.hasBearing() ? p.getBearing() : Float.NaN,
+                vp.getTimestamp());
+    }
+
+    /**
+     * Forget a vehicle
+     * @param vehicleId vehicle ID
+     */
+    void remove(@NotNull String vehicleId) {
+        this.rings.remove(vehicleId);
+    }
+
+    /**
+     * Get a vehicle's recent positions
+     * @param vehicleId vehicle ID
+     * @return trail, or null if none recorded
+     */
+    @Nullable
+    VehicleTrail getTrail(@NotNull String vehicleId) {
+        Ring ring = this.rings.get(vehicleId);
+        return ring == null ? null : ring.toTrail(vehicleId);
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Get the number of vehicles with recorded positions
+     * @return number of vehicles
+     */
+    int size() {
+        return this.rings.size();
+    }
+
+    /**
+     * Positions of one vehicle. The lock keeps readers from seeing a
+     * half-written position; it is only ever contended by a reader.
+     */
+    private static final class Ring {
+        @NotNull
+        private final float[] latitudes;
+        @NotNull
+        private final float[] longitudes;
+        @NotNull
+        private final float[] bearings;
+        @NotNull
+        private final long[] timestamps;
+        /**
+         * Index of the next slot to write
+         */
+        private int next = 0;
+        private int count = 0;
+
+        private Ring(int depth) {
+            this.latitudes = new float[depth];
+            this.longitudes = new float[depth];
+            this.bearings = new float[depth];
+            this.timestamps = new long[depth];
+        }
+
+        private synchronized void append(float latitude, float longitude, float bearing, long timestamp) {
+            this.latitudes[this.next] = latitude;
+            this.longitudes[this.next] = longitude;
+            this.bearings[this.next] = bearing;
+            this.timestamps[this.next] = timestamp;
+            this.next = (this.next + 1) % this.timestamps.length;
+            this.count = Math.min(this.count + 1, this.timestamps.length);
+        }
+
+        @NotNull
+        private synchronized VehicleTrail toTrail(@NotNull String vehicleId) {
+            float[] latitudes = new float[this.count];
+            float[] longitudes = new float[this.count];
+            float[] bearings = new float[this.count];
+            long[] timestamps = new long[this.count];
+            // the oldest position is count slots behind the next one
+            int start = Math.floorMod(this.next - this.count, this.timestamps.length);
+            for (int i = 0; i < this.count; i++) {
+                int slot = (start + i) % this.timestamps.length;
+                latitudes[i] = this.latitudes[slot];
+                longitudes[i] = this.longitudes[slot];
+                bearings[i] = this.bearings[slot];
+                timestamps[i] = this.timestamps[slot];
+            }
+            return new VehicleTrail(vehicleId, latitudes, longitudes, bearings, timestamps);
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.time.Instant;
 
 /*
@@ -28,11 +30,6 @@ public class VehiclePosition {
 
     VehiclePosition(@NotNull GtfsRealtime.VehiclePosition gglVP) {
         this.gglVP = gglVP;
-        try {
-            GtfsRealtime.VehiclePosition.parseFrom(gglVP.toByteArray());
-        } catch (InvalidProtocolBufferException e) {
-            throw new RuntimeException(e);
-        }
     }
 
 
@@ -69,6 +66,109 @@ public class VehiclePosition {
         return o;
     }
 
+    /**
+     * Serialize to JSON, writing the same output as toJsonObject()
+     * without building an intermediate tree
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        if (this.gglVP.hasPosition()) {
+            g.writeFieldName("position");
+            Position.writeJson(this.gglVP.getPosition(), g);
+        }
+        if (this.gglVP.hasTrip()) {
+            g.writeFieldName("trip");
+            TripDescriptor.writeJson(this.gglVP.getTrip(), g);
+        }
+        g.writeFieldName("vehicle");
+        VehicleDescriptor.writeJson(this.gglVP.getVehicle(), g);
+        if (this.gglVP.hasCongestionLevel()) {
+            g.writeNumberField("congestionLevel", this.gglVP.getCongestionLevel().getNumber());
+        }
+        if (this.gglVP.hasCurrentStatus()) {
+            g.writeNumberField("stopStatus", this.gglVP.getCurrentStatus().getNumber());
+        }
+        if (this.gglVP.hasCurrentStopSequence()) {
+            g.writeNumberField("stopSequence", this.gglVP.getCurrentStopSequence());
+        }
+        if (this.gglVP.hasOccupancyStatus()) {
+            g.writeNumberField("occupancyStatus", this.gglVP.getOccupancyStatus().getNumber());
+        }
+        if (this.gglVP.hasStopId()) {
+            g.writeStringField("stopId", this.gglVP.getStopId());
+        }
+        g.writeNumberField("timestamp", this.gglVP.getTimestamp());
+        g.writeEndObject();
+    }
+
+    /**
+     * Get an equivalent VehiclePosition whose vehicle, trip, route and stop IDs
+     * are canonical instances. IDs unchanged from the vehicle's previous
+     * position are taken from it, so only IDs that changed are looked up.
+     * Swapping in an ID costs a shallow copy of the position, and of the
+     * vehicle or trip descriptor that holds it; other fields are shared.
+     * @param dictionary ID dictionary
+     * @param previous vehicle's previous position, with canonical IDs, if any
+     * @return new VehiclePosition, or this one if its IDs are already canonical
+     */
+    @NotNull
+    VehiclePosition withCanonicalIds(@NotNull IdDictionary dictionary, @Nullable VehiclePosition previous) {
+        GtfsRealtime.VehiclePosition p = previous == null ? null : previous.gglVP;
+        GtfsRealtime.VehiclePosition.Builder builder = null;
+        if (this.gglVP.getVehicle().hasId()) {
+            String id = this.gglVP.getVehicle().getId();
+            String canonical = canonicalize(dictionary, id, p == null ? null : p.getVehicle().getId());
+            if (canonical != id) {
+                builder = this.gglVP.toBuilder();
+                builder.getVehicleBuilder().setId(canonical);
+            }
+        }
+        if (this.gglVP.getTrip().hasTripId()) {
+            String id = this.gglVP.getTrip().getTripId();
+            String canonical = canonicalize(dictionary, id, p == null ? null : p.getTrip().getTripId());
+            if (canonical != id) {
+                builder = builder == null ? this.gglVP.toBuilder() : builder;
+                builder.getTripBuilder().setTripId(canonical);
+            }
+        }
+        if (this.gglVP.getTrip().hasRouteId()) {
+            String id = this.gglVP.getTrip().getRouteId();
+            String canonical = canonicalize(dictionary, id, p == null ? null : p.getTrip().getRouteId());
+            if (canonical != id) {
+                builder = builder == null ? this.gglVP.toBuilder() : builder;
+                builder.getTripBuilder().setRouteId(canonical);
+            }
+        }
+        if (this.gglVP.hasStopId()) {
+            String id = this.gglVP.getStopId();
+            String canonical = canonicalize(dictionary, id, p == null ? null : p.getStopId());
+            if (canonical != id) {
+                builder = builder == null ? this.gglVP.toBuilder() : builder;
+                builder.setStopId(canonical);
+            }
+        }
+        return builder == null ? this : new VehiclePosition(builder.build());
+    }
+
+    /**
+     * Get the canonical instance of an ID
+     * @param dictionary ID dictionary
+     * @param id ID
+     * @param previous the same field of the previous position, already canonical
+     * @return canonical instance
+     */
+    @NotNull
+    private static String canonicalize(@NotNull IdDictionary dictionary, @NotNull String id,
+                                       @Nullable String previous) {
+        if (id.equals(previous)) {
+            return previous;
+        }
+        String canonical = dictionary.canonicalize(id);
+        return canonical == null ? id : canonical;
+    }
+
     public GtfsRealtime.VehiclePosition getGoogleVehiclePosition() {
         return gglVP;
     }
@@ -88,6 +188,14 @@ public class VehiclePosition {
         return Instant.ofEpochSecond(this.gglVP.getTimestamp());
     }
 
+    /**
+     * Get the timestamp without allocating an Instant
+     * @return timestamp in seconds since the epoch
+     */
+    long getEpochSecond() {
+        return this.gglVP.getTimestamp();
+    }
+
     public int getSerializedSize() {
         return this.gglVP.getSerializedSize();
     }
@@ -119,4 +227,30 @@ public class VehiclePosition {
         return this.hashKey;
     }
 
+    /**
+     * Get a 64-bit key to identify a VehiclePosition instance, from the
+     * vehicle ID and the timestamp, without allocating
+     * @return identity key
+     */
+    public long getHashKey() {
+        // FNV-1a over the vehicle ID, then mix in the timestamp
+        String vehicleId = this.gglVP.getVehicle().getId();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < vehicleId.length(); i++) {
+            h = (h ^ vehicleId.charAt(i)) * 0x100000001b3L;
+        }
+        return mix64(h ^ mix64(this.gglVP.getTimestamp() + 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Finalizer from MurmurHash3, so that every input bit affects every output bit
+     * @param h value to mix
+     * @return mixed value
+     */
+    private static long mix64(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
 }
@@ -0,0 +1,96 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * A change to one vehicle in a VehiclePositionCollection
+ */
+public class VehiclePositionChange {
+    public enum Type {
+        /**
+         * The vehicle was not in the collection
+         */
+        ADDED,
+        /**
+         * The vehicle's position was replaced by a newer one
+         */
+        UPDATED,
+        /**
+         * The vehicle was removed, or purged as stale
+         */
+        REMOVED
+    }
+
+    @NotNull
+    private final Type type;
+    @NotNull
+    private final String vehicleId;
+    @NotNull
+    private final VehiclePosition position;
+    private final long version;
+
+    VehiclePositionChange(@NotNull Type type, @NotNull String vehicleId,
+                          @NotNull VehiclePosition position, long version) {
+        this.type = type;
+        this.vehicleId = vehicleId;
+        this.position = position;
+        this.version = version;
+    }
+
+    @NotNull
+    public Type getType() {
+        return type;
+    }
+
+    @NotNull
+    public String getVehicleId() {
+        return vehicleId;
+    }
+
+    /**
+     * Get the vehicle's position
+     * @return new position, or for REMOVED, the last position
+     */
+    @NotNull
+    public VehiclePosition getPosition() {
+        return position;
+    }
+
+    /**
+     * Get the collection version of the change
+     * @return version, as from VehiclePositionCollection.getVersion()
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Combine this change with a later change to the same vehicle
+     * @param later later change
+     * @return the net change, or null if there is none
+     */
+    @Nullable
+    VehiclePositionChange coalesce(@NotNull VehiclePositionChange later) {
+        Type netType;
+        if (this.type == Type.ADDED) {
+            if (later.type == Type.REMOVED) {
+                // never seen by the subscriber, so nothing to report
+                return null;
+            }
+            netType = Type.ADDED;
+        } else if (later.type == Type.REMOVED) {
+            netType = Type.REMOVED;
+        } else {
+            // an update after an update, or the vehicle came back after a removal
+            netType = Type.UPDATED;
+        }
+        return netType == later.type
+                ? later
+                : new VehiclePositionChange(netType, this.vehicleId, later.position, later.version);
+    }
+}
@@ -0,0 +1,111 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Binary checkpoint file of a VehiclePositionCollection
+ *
+ * The file is a fixed32 magic number, a varint format version, a fixed64
+ * creation time in epoch milliseconds and a varint position count, followed
+ * by each position as a length-delimited protobuf VehiclePosition.
+ */
+final class VehiclePositionCheckpoint {
+    /**
+     * "VPCK", big-endian
+     */
+    private static final int MAGIC = 0x5650434b;
+    private static final int FORMAT_VERSION = 1;
+
+    private VehiclePositionCheckpoint() {
+    }
+
+    /**
+     * Write a checkpoint. The file is written under a temporary name, synced
+     * to the disk and moved into place, so neither a reader nor a crash ever
+     * leaves a partial checkpoint in place of the last complete one.
+     * @param positions positions to write
+     * @param path checkpoint file
+     * @throws IOException if unable to write
+     */
+    static void write(@NotNull VehiclePosition[] positions, @NotNull Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        // unique, so that concurrent writers of the same checkpoint don't share a temporary file
+        Path temporaryPath = Files.createTempFile(directory, path.getFileName() + ".", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+                CodedOutputStream output = CodedOutputStream.newInstance(Channels.newOutputStream(channel), 1 << 16);
+                output.writeFixed32NoTag(MAGIC);
+                output.writeUInt32NoTag(FORMAT_VERSION);
+                output.writeFixed64NoTag(System.currentTimeMillis());
+                output.writeUInt32NoTag(positions.length);
+                for (VehiclePosition position: positions) {
+                    output.writeMessageNoTag(position.getGoogleVehiclePosition());
+                }
+                output.flush();
+                channel.force(true);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        }
+        // sync the directory, so that the rename itself survives a crash
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // some platforms can't open or sync a directory; the rename is still atomic there
+        }
+    }
+
+    /**
+     * Read a checkpoint, mapping the file rather than reading it into the heap
+     * @param path checkpoint file
+     * @return positions
+     * @throws IOException if unable to read, or if the file is not a checkpoint
+     */
+    @NotNull
+    static VehiclePosition[] read(@NotNull Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        CodedInputStream input = CodedInputStream.newInstance(buffer);
+        input.setSizeLimit(Integer.MAX_VALUE);
+        if (input.readFixed32() != MAGIC) {
+            throw new IOException(String.format("%s: not a vehicle position checkpoint", path));
+        }
+        int formatVersion = input.readUInt32();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException(String.format("%s: unsupported checkpoint format %d", path, formatVersion));
+        }
+        input.readFixed64();
+        int count = input.readUInt32();
+        // each position takes at least one byte
+        if (count < 0 || count > buffer.capacity()) {
+            throw new IOException(String.format("%s: invalid position count %d", path, count));
+        }
+        VehiclePosition[] positions = new VehiclePosition[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = new VehiclePosition(input.readMessage(GtfsRealtime.VehiclePosition.parser(),
+                    ExtensionRegistryLite.getEmptyRegistry()));
+        }
+        return positions;
+    }
+}
@@ -1,21 +1,43 @@
 package com.weirdocomputing.transitlib;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.transit.realtime.GtfsRealtime;
+import org.apache.commons.io.input.TeeInputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Set;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
 
 /*
  * © 2020 Daniel Norton
@@ -23,6 +45,10 @@ import java.util.List;
 
 /**
  * A collection of real-time, timestamped vehicle positions
+ *
+ * The collection is safe for concurrent use: writers replace each vehicle's
+ * entry atomically (newest timestamp wins), and readers iterate without
+ * blocking writers, seeing a weakly consistent view.
  */
 public class VehiclePositionCollection {
     private transient static final Logger logger = LoggerFactory.getLogger(VehiclePositionCollection.class);
@@ -33,10 +59,159 @@ public class VehiclePositionCollection {
     private transient static final String GTFS_REALTIME_VERSION = "1.0"; // See gtfs-realtime.proto
 
     /**
-     * HashMap of VehiclePositions indexed by vehicle ID
+     * Background purges run this many times per staleAge
+     */
+    private transient static final int PURGES_PER_STALE_AGE = 10;
+
+    private transient static final JsonFactory jsonFactory =
+            new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    /**
+     * Default number of changes remembered for differential feeds
+     */
+    public transient static final int DEFAULT_CHANGE_LOG_CAPACITY = 65536;
+
+    /**
+     * Number of changes remembered by the collections update() returns
+     */
+    private transient static final int RESULT_CHANGE_LOG_CAPACITY = 16;
+
+    /**
+     * Number of stripes in the expiry index (a power of two)
+     */
+    private transient static final int EXPIRY_STRIPES = 16;
+
+    /**
+     * Times to try building a snapshot while writers outrun the change log
+     */
+    private transient static final int SNAPSHOT_BUILD_ATTEMPTS = 3;
+
+    /**
+     * Map of VehiclePositions indexed by vehicle ID
+     */
+    @NotNull
+    private final ConcurrentHashMap<String, VehiclePosition> positionsHash;
+
+    /**
+     * The entries of positionsHash, ordered by timestamp, so that stale
+     * entries can be found without visiting current ones. Striped by vehicle
+     * ID, because new positions all have about the same timestamp, and in a
+     * single ordered set concurrent puts would all insert at the same place.
+     * Null until first used in collections returned by update().
+     */
+    @Nullable
+    private transient volatile List<ConcurrentSkipListSet<ExpiryKey>> expiryIndex;
+
+    /**
+     * The entries of positionsHash, bucketed by location.
+     * Null until first used in collections returned by update().
+     */
+    @Nullable
+    private transient volatile VehicleSpatialIndex spatialIndex;
+
+    /**
+     * Every stored position is in the expiry and spatial indexes
+     */
+    private transient volatile boolean isIndexComplete;
+
+    /**
+     * The entries of positionsHash, by route ID, trip ID and current stop ID,
+     * or null if attribute indexes are not enabled
+     */
+    @Nullable
+    private transient volatile VehicleAttributeIndex routeIndex = null;
+    @Nullable
+    private transient volatile VehicleAttributeIndex tripIndex = null;
+    @Nullable
+    private transient volatile VehicleAttributeIndex stopIndex = null;
+
+    /**
+     * Every stored position is in the attribute indexes, so queries can use them
+     */
+    private transient volatile boolean isAttributeIndexComplete = false;
+
+    /**
+     * Incremented for every change to the collection
+     */
+    @NotNull
+    private transient final AtomicLong version = new AtomicLong();
+
+    /**
+     * Ring buffer of the most recent changeLogCapacity changes; the change
+     * with version v is in slot v % changeLogCapacity once it is logged
+     */
+    @NotNull
+    private transient final AtomicReferenceArray<VehiclePositionChange> changeLog;
+
+    private transient final int changeLogCapacity;
+
+    /**
+     * Distinguishes this instance's entity tags from those of other instances,
+     * including ones from before a restart, whose versions may coincide
+     */
+    private transient final long instanceId = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * Most recently serialized feed for each format and encoding,
+     * indexed by encodedFeedSlot(), with a lock for each slot
+     */
+    @NotNull
+    private transient final AtomicReferenceArray<EncodedFeed> encodedFeeds =
+            new AtomicReferenceArray<>(EncodedFeed.Format.values().length * 2);
+    @NotNull
+    private transient final Object[] encodedFeedLocks = newLocks(EncodedFeed.Format.values().length * 2);
+
+    /**
+     * Recent positions of each vehicle, or null if history is not enabled
+     */
+    @Nullable
+    private transient volatile VehicleHistory history = null;
+
+    /**
+     * Journal of received feeds, or null if not journaling
+     */
+    @Nullable
+    private transient volatile FeedJournal journal = null;
+
+    /**
+     * Publisher of changes, or null if not publishing
+     */
+    @Nullable
+    private transient volatile VehiclePositionPublisher publisher = null;
+
+    /**
+     * Dictionary for the IDs of stored positions, or null to store them as received
+     */
+    @Nullable
+    private transient volatile IdDictionary idDictionary = null;
+
+    /**
+     * Latest snapshot, or null if snapshots are not enabled.
+     * Brought up to date from the change log by the writers, through
+     * publishSnapshot().
+     */
+    @Nullable
+    private transient volatile VehiclePositionSnapshot snapshot = null;
+
+    /**
+     * Version the latest snapshot was taken at, or being built at, or -1 if
+     * snapshots are not enabled. Writers that get more than half the change
+     * log ahead of it bring the snapshot up to date before going on, so
+     * that the log still holds the changes it needs.
+     */
+    private transient volatile long snapshotVersion = -1;
+
+    /**
+     * Held while bringing the snapshot up to date
+     */
+    @NotNull
+    private transient final Object snapshotLock = new Object();
+
+    /**
+     * Where ingest, purge and serialization measurements are reported
      */
     @NotNull
-    private HashMap<String, VehiclePosition> positionsHash;
+    private transient volatile TransitMetrics metrics = TransitMetrics.NOOP;
 
     /**
      * Ignore positions older than this age
@@ -51,7 +226,10 @@ public class VehiclePositionCollection {
     private VehiclePositionCollection() {
         //noinspection ConstantConditions
         this.staleAge = null;
-        this.positionsHash = new HashMap<>();
+        this.changeLogCapacity = DEFAULT_CHANGE_LOG_CAPACITY;
+        this.changeLog = new AtomicReferenceArray<>(this.changeLogCapacity);
+        this.positionsHash = new ConcurrentHashMap<>();
+        this.enableIndexes();
     }
 
     /**
@@ -59,12 +237,39 @@ public class VehiclePositionCollection {
      * @param staleAge How long a position record is considered current
      */
     public VehiclePositionCollection(@NotNull Duration staleAge) {
+        this(staleAge, DEFAULT_CHANGE_LOG_CAPACITY);
+    }
+
+    /**
+     * Construct empty collection
+     * @param staleAge How long a position record is considered current
+     * @param changeLogCapacity How many changes to remember for differential feeds
+     */
+    public VehiclePositionCollection(@NotNull Duration staleAge, int changeLogCapacity) {
+        this(staleAge, changeLogCapacity, true);
+    }
+
+    /**
+     * Construct empty collection
+     * @param staleAge How long a position record is considered current
+     * @param changeLogCapacity How many changes to remember for differential feeds
+     * @param isIndexed false to leave the expiry and spatial indexes until they are first used
+     */
+    private VehiclePositionCollection(@NotNull Duration staleAge, int changeLogCapacity, boolean isIndexed) {
+        if (changeLogCapacity < 1) {
+            throw new IllegalArgumentException("changeLogCapacity must be positive");
+        }
         this.staleAge = staleAge;
-        this.positionsHash = new HashMap<>();
+        this.changeLogCapacity = changeLogCapacity;
+        this.changeLog = new AtomicReferenceArray<>(changeLogCapacity);
+        this.positionsHash = new ConcurrentHashMap<>();
+        if (isIndexed) {
+            this.enableIndexes();
+        }
     }
 
     /**
-     * Copy constructor
+     * Copy constructor. For a read-only copy, snapshot() is much cheaper.
      * @param vehiclePositionCollection collection to copy
      */
     public VehiclePositionCollection(@NotNull VehiclePositionCollection vehiclePositionCollection) {
@@ -79,18 +284,61 @@ public class VehiclePositionCollection {
      */
     public VehiclePositionCollection(@NotNull Duration staleAge, @NotNull VehiclePosition[] positions) {
         this.staleAge = staleAge;
-        positionsHash = new HashMap<>();
+        this.changeLogCapacity = DEFAULT_CHANGE_LOG_CAPACITY;
+        this.changeLog = new AtomicReferenceArray<>(this.changeLogCapacity);
+        this.positionsHash = new ConcurrentHashMap<>(Math.max(16, positions.length * 4 / 3 + 1));
+        this.enableIndexes();
         this.putAll(positions);
     }
 
     /**
-     * Update the collection with entries from a Gtfs feed input stream
+     * Update the collection with entries from a Gtfs feed input stream.
+     * Entities are decoded and applied one at a time as they are read, without
+     * building the whole FeedMessage in memory.
      * @param inputStream An input stream that contains a Gtfs feed
-     * @return Collection of records added
+     * @return Collection of records added: the positions that changed this
+     *         collection, as stored. It builds its own indexes only if queried.
      * @throws Exception If unable to fetch or if data fails validation
      */
     public VehiclePositionCollection update(InputStream inputStream) throws Exception {
-        return update(GtfsRealtime.FeedMessage.parseFrom(inputStream));
+        FeedJournal journal = this.journal;
+        if (journal == null) {
+            return this.update(new FeedMessageReader(inputStream));
+        }
+        // journal the bytes as they are read, and keep them only if they parse
+        FeedJournal.RecordOutputStream record = journal.openRecord(Instant.now());
+        boolean isParsed = false;
+        VehiclePositionCollection result;
+        try {
+            result = this.update(new FeedMessageReader(new TeeInputStream(inputStream, record)));
+            isParsed = true;
+        } finally {
+            if (!isParsed) {
+                record.abort();
+            }
+        }
+        record.close();
+        return result;
+    }
+
+    /**
+     * Update the collection with entries from a feed reader
+     * @param reader reader positioned at the start of a feed
+     * @return Collection of records added
+     * @throws Exception If unable to read or if data fails validation
+     */
+    VehiclePositionCollection update(@NotNull FeedMessageReader reader) throws Exception {
+        long startNanos = System.nanoTime();
+        VehiclePositionCollection result = this.newResult();
+        Instant staleTimestamp = Instant.now().minus(staleAge);
+        GtfsRealtime.FeedEntity entity;
+        while ((entity = reader.next()) != null) {
+            this.apply(entity, staleTimestamp, result);
+        }
+        logger.debug("Incoming streamed feed entity count: {}", reader.getEntityCount());
+        this.publishSnapshot();
+        this.recordFeed(startNanos, reader.getEntityCount(), reader.getHeader());
+        return result;
     }
 
     /**
@@ -102,21 +350,138 @@ public class VehiclePositionCollection {
      */
     public VehiclePositionCollection update(GtfsRealtime.FeedMessage feedMessage) throws Exception {
         logger.debug("Incoming serialized feed message size: {}", feedMessage.getSerializedSize());
-        ArrayList<VehiclePosition> newVehiclePositions = new ArrayList<>();
+        FeedJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(Instant.now(), feedMessage);
+        }
+        long startNanos = System.nanoTime();
+        VehiclePositionCollection result = this.newResult();
+        Instant staleTimestamp = Instant.now().minus(staleAge);
+        for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+            this.apply(entity, staleTimestamp, result);
+        }
+        this.publishSnapshot();
+        this.recordFeed(startNanos, feedMessage.getEntityCount(), feedMessage.getHeader());
+        return result;
+    }
 
+    /**
+     * Update latest vehicle positions from feed message, applying them in
+     * parallel, with the same result as update(feedMessage)
+     * @param feedMessage feed message containing VehiclePosition records
+     * @param pool pool to run on
+     * @return Collection of records added
+     * @throws Exception If unable to journal the feed
+     */
+    public VehiclePositionCollection update(@NotNull GtfsRealtime.FeedMessage feedMessage,
+                                            @NotNull ForkJoinPool pool) throws Exception {
+        FeedJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(Instant.now(), feedMessage);
+        }
+        long startNanos = System.nanoTime();
+        List<VehiclePosition> positions = new ArrayList<>(feedMessage.getEntityCount());
+        List<String> deletedIds = new ArrayList<>();
         for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
-            if (entity.hasVehicle()) {
-                newVehiclePositions.add(new VehiclePosition(entity.getVehicle()));
-            } else if (entity.hasTripUpdate()) {
-                logger.error("TripUpdate: {}", entity.getTripUpdate());
-                throw new Exception("Unexpected TripUpdate entity");
+            VehiclePosition vehiclePosition = fromFeedEntity(entity);
+            if (vehiclePosition != null) {
+                positions.add(vehiclePosition);
             } else {
-                logger.error("???: {}", entity.getAllFields());
-                throw new Exception("Unrecognized entity");
+                String deletedId = deletedVehicleId(entity);
+                if (deletedId != null) {
+                    deletedIds.add(deletedId);
+                }
+            }
+        }
+        VehiclePositionCollection result = this.newResult();
+        this.putAll(positions.toArray(new VehiclePosition[0]), Instant.now().minus(staleAge), pool, result);
+        // a feed has one entity per vehicle, so deletions need no ordering with the puts
+        for (String deletedId: deletedIds) {
+            this.removeVehicle(deletedId);
+        }
+        this.publishSnapshot();
+        this.recordFeed(startNanos, feedMessage.getEntityCount(), feedMessage.getHeader());
+        return result;
+    }
+
+    /**
+     * Construct an empty collection for update() to return. It remembers
+     * few changes, and builds its expiry and spatial indexes only if used,
+     * so that most of what it costs is one map entry per position.
+     * @return collection
+     */
+    @NotNull
+    private VehiclePositionCollection newResult() {
+        return new VehiclePositionCollection(this.staleAge, RESULT_CHANGE_LOG_CAPACITY, false);
+    }
+
+    /**
+     * Report a feed that has been applied to the metrics
+     * @param startNanos System.nanoTime() when parsing started
+     * @param entityCount number of entities in the feed
+     * @param header feed header, or null if the feed had none
+     */
+    private void recordFeed(long startNanos, int entityCount, @Nullable GtfsRealtime.FeedHeader header) {
+        TransitMetrics metrics = this.metrics;
+        metrics.feedParsed(System.nanoTime() - startNanos, entityCount);
+        if (header != null && header.hasTimestamp()) {
+            // POSIX time, in seconds
+            metrics.feedLag(Math.max(0, System.currentTimeMillis() - header.getTimestamp() * 1000));
+        }
+    }
+
+    /**
+     * Apply one entity of a feed: store the position it carries, or remove
+     * the vehicle it deletes. Other kinds of entity are skipped, so that
+     * combined feeds can be read; use FeedDispatcher to apply them as well.
+     * @param entity feed entity
+     * @param staleTimestamp ignore positions older than this
+     * @param result collection from newResult() of records added
+     */
+    private void apply(@NotNull GtfsRealtime.FeedEntity entity, @NotNull Instant staleTimestamp,
+                       @NotNull VehiclePositionCollection result) {
+        VehiclePosition vehiclePosition = fromFeedEntity(entity);
+        if (vehiclePosition != null) {
+            VehiclePosition stored = this.store(vehiclePosition, staleTimestamp);
+            if (stored != null) {
+                result.addStored(stored);
+            }
+        } else {
+            String deletedId = deletedVehicleId(entity);
+            if (deletedId != null) {
+                this.removeVehicle(deletedId);
             }
         }
-        this.putAll(newVehiclePositions.toArray(new VehiclePosition[0]));
-        return new VehiclePositionCollection(staleAge, newVehiclePositions.toArray(new VehiclePosition[0]));
+    }
+
+    /**
+     * Get the vehicle removed by a deleted feed entity
+     * @param entity feed entity
+     * @return vehicle ID, or null if the entity is not a deleted VehiclePosition
+     */
+    @Nullable
+    static String deletedVehicleId(@NotNull GtfsRealtime.FeedEntity entity) {
+        if (!entity.getIsDeleted() || !entity.hasVehicle()) {
+            return null;
+        }
+        GtfsRealtime.VehicleDescriptor vehicle = entity.getVehicle().getVehicle();
+        // differential feeds, including toFeedMessage(long), use the vehicle ID as the entity ID
+        return vehicle.hasId() ? vehicle.getId() : entity.getId();
+    }
+
+    /**
+     * Get the VehiclePosition carried by a feed entity. Deleted entities and
+     * other kinds of entity are skipped; see deletedVehicleId().
+     * @param entity feed entity
+     * @return VehiclePosition, or null if the entity is not a VehiclePosition
+     */
+    @Nullable
+    static VehiclePosition fromFeedEntity(GtfsRealtime.FeedEntity entity) {
+        if (entity.hasVehicle() && !entity.getIsDeleted()) {
+            return new VehiclePosition(entity.getVehicle());
+        }
+        logger.debug("{}: not a VehiclePosition; skipped", entity.getId());
+        return null;
     }
 
     /**
@@ -126,10 +491,30 @@ public class VehiclePositionCollection {
      */
     @SuppressWarnings("unused")
     public boolean removeDuplicates(Set<String> latestKeys) {
-        int originalSize = this.size();
-        this.positionsHash.entrySet().removeIf(stringVehiclePositionEntry ->
-                latestKeys.contains(stringVehiclePositionEntry.getValue().getHashString()));
-        return this.size() != originalSize;
+        boolean changed = false;
+        for (VehiclePosition position: this.positionsHash.values()) {
+            if (latestKeys.contains(position.getHashString())) {
+                changed |= this.remove(position);
+            }
+        }
+        this.publishSnapshot();
+        return changed;
+    }
+
+    /**
+     * Remove duplicate and outdated entries
+     * @param latestKeys values of VehiclePosition.getHashKey() for vehicle positions that are current
+     * @return if this object changed
+     */
+    public boolean removeDuplicates(@NotNull LongHashSet latestKeys) {
+        boolean changed = false;
+        for (VehiclePosition position: this.positionsHash.values()) {
+            if (latestKeys.contains(position.getHashKey())) {
+                changed |= this.remove(position);
+            }
+        }
+        this.publishSnapshot();
+        return changed;
     }
 
         /**
@@ -153,34 +538,79 @@ public class VehiclePositionCollection {
      * @return true if the collection changed
      */
     public boolean put(VehiclePosition vehiclePosition) {
-        return put(vehiclePosition, Instant.now().minus(staleAge));
+        boolean changed = put(vehiclePosition, Instant.now().minus(staleAge));
+        if (changed) {
+            this.publishSnapshot();
+        }
+        return changed;
     }
 
     /**
-     * Add the given VehiclePosition to the Collection if it's new information
+     * Add the given VehiclePosition to the Collection if it's new information,
+     * as part of a batch that calls publishSnapshot() when done
      * @param vehiclePosition The position to add
      * @param staleTimestamp Positions timestamped before this are discarded
      * @return true if the collection changed
      */
-    private  boolean put(VehiclePosition vehiclePosition, @NotNull Instant staleTimestamp) {
-        boolean changed = false;
-        String vehicleId = vehiclePosition.getVehicle().getId();
+    boolean put(VehiclePosition vehiclePosition, @NotNull Instant staleTimestamp) {
+        return this.store(vehiclePosition, staleTimestamp) != null;
+    }
+
+    /**
+     * Add the given VehiclePosition to the Collection if it's new information
+     * @param vehiclePosition The position to add
+     * @param staleTimestamp Positions timestamped before this are discarded
+     * @return the position as stored, with canonical IDs if there is an ID
+     *         dictionary, or null if the collection did not change
+     */
+    @Nullable
+    VehiclePosition store(VehiclePosition vehiclePosition, @NotNull Instant staleTimestamp) {
         // ignore if stale
-        if (!vehiclePosition.isOlderThan(staleTimestamp)) {
-            if (this.positionsHash.containsKey(vehicleId)) {
-                if (vehiclePosition.getTimestamp().isAfter(this.positionsHash.get(vehicleId).getTimestamp())) {
-                    // More recent position for a vehicle already in our collection
-                    changed = true;
-                }
-            } else {
-                // new vehicle to our collection
-                changed = true;
+        if (vehiclePosition.isOlderThan(staleTimestamp)) {
+            this.metrics.positionDropped(TransitMetrics.DropReason.STALE);
+            return null;
+        }
+        boolean[] changed = {false};
+        IdDictionary dictionary = this.idDictionary;
+        VehiclePosition stored = vehiclePosition;
+        if (dictionary != null) {
+            // canonicalize outside the entry's lock, and only if it will be
+            // stored: a vehicle's timestamps only increase, so if this is not
+            // newer than what is there now, it won't be newer under the lock
+            VehiclePosition previous = this.positionsHash.get(vehiclePosition.getVehicle().getId());
+            if (previous == null || vehiclePosition.getTimestamp().isAfter(previous.getTimestamp())) {
+                stored = vehiclePosition.withCanonicalIds(dictionary, previous);
             }
         }
-        if (changed) {
-            this.positionsHash.put(vehicleId, vehiclePosition);
+        VehiclePosition newPosition = stored;
+        this.positionsHash.compute(stored.getVehicle().getId(), (key, current) -> {
+            if (current == null || newPosition.getTimestamp().isAfter(current.getTimestamp())) {
+                // new vehicle or more recent position for a vehicle already in our collection
+                changed[0] = true;
+                this.indexPut(current, newPosition);
+                return newPosition;
+            }
+            return current;
+        });
+        if (!changed[0]) {
+            this.metrics.positionDropped(TransitMetrics.DropReason.OUT_OF_ORDER);
+            return null;
         }
-        return changed;
+        this.deliverChanges();
+        this.keepSnapshotInReach();
+        return newPosition;
+    }
+
+    /**
+     * Record a position that update() stored in another collection, in a
+     * collection from newResult() that has not yet been returned. Unlike
+     * put(), this neither indexes nor logs the position.
+     * @param position position as stored
+     */
+    void addStored(@NotNull VehiclePosition position) {
+        // a feed may hold several positions for a vehicle, stored in any order across threads
+        this.positionsHash.merge(position.getVehicle().getId(), position,
+                (current, next) -> next.getTimestamp().isAfter(current.getTimestamp()) ? next : current);
     }
 
     /**
@@ -192,6 +622,39 @@ public class VehiclePositionCollection {
         for (VehiclePosition p: vehiclePositions) {
             this.put(p, staleTimestamp);
         }
+        this.publishSnapshot();
+    }
+
+    /**
+     * Add given VehiclePosition records to the collection in parallel, with
+     * the same result as putAll(vehiclePositions)
+     * @param vehiclePositions positions to add
+     * @param pool pool to run on
+     */
+    public void putAll(@NotNull VehiclePosition[] vehiclePositions, @NotNull ForkJoinPool pool) {
+        this.putAll(vehiclePositions, Instant.now().minus(staleAge), pool, null);
+    }
+
+    /**
+     * Add given VehiclePosition records to the collection in parallel
+     * @param vehiclePositions positions to add
+     * @param staleTimestamp Positions timestamped before this are discarded
+     * @param pool pool to run on
+     * @param result collection from newResult() to record the positions stored, or null
+     */
+    private void putAll(@NotNull VehiclePosition[] vehiclePositions, @NotNull Instant staleTimestamp,
+                        @NotNull ForkJoinPool pool, @Nullable VehiclePositionCollection result) {
+        if (vehiclePositions.length < VehiclePositionShards.SEQUENTIAL_THRESHOLD || pool.getParallelism() < 2) {
+            for (VehiclePosition p: vehiclePositions) {
+                VehiclePosition stored = this.store(p, staleTimestamp);
+                if (stored != null && result != null) {
+                    result.addStored(stored);
+                }
+            }
+        } else {
+            VehiclePositionShards.putAll(this, vehiclePositions, staleTimestamp, pool, result);
+        }
+        this.publishSnapshot();
     }
 
     /**
@@ -200,105 +663,1101 @@ public class VehiclePositionCollection {
      * @return VehiclePosition or null, if no such entry
      */
     public VehiclePosition remove(String vehicleId) {
-        VehiclePosition result = null;
-        if (this.positionsHash.containsKey(vehicleId)) {
-            result = this.remove(vehicleId);
-            this.positionsHash.remove(vehicleId);
+        VehiclePosition removed = this.removeVehicle(vehicleId);
+        if (removed != null) {
+            this.publishSnapshot();
         }
-        return result;
+        return removed;
     }
 
     /**
-     * Get collection size
-     * @return number of entries in collection
+     * Remove the specified entry from the collection, as part of a batch
+     * that calls publishSnapshot() when done
+     * @param vehicleId vehicle ID
+     * @return VehiclePosition or null, if no such entry
      */
-    public int size() {
-        return positionsHash.size();
+    @Nullable
+    VehiclePosition removeVehicle(@NotNull String vehicleId) {
+        VehiclePosition[] removed = {null};
+        this.positionsHash.computeIfPresent(vehicleId, (key, current) -> {
+            removed[0] = current;
+            this.indexRemove(current);
+            return null;
+        });
+        if (removed[0] != null) {
+            this.deliverChanges();
+            this.keepSnapshotInReach();
+        }
+        return removed[0];
     }
 
     /**
-     * Remove all entries from the collection
+     * Remove the given entry from the collection, unless it has been
+     * replaced, as part of a batch that calls publishSnapshot() when done
+     * @param position entry to remove
+     * @return true if the collection changed
      */
-    public void clear() {
-        this.positionsHash.clear();
+    private boolean remove(@NotNull VehiclePosition position) {
+        boolean[] removed = {false};
+        this.positionsHash.computeIfPresent(position.getVehicle().getId(), (key, current) -> {
+            if (current != position) {
+                return current;
+            }
+            removed[0] = true;
+            this.indexRemove(current);
+            return null;
+        });
+        if (removed[0]) {
+            this.deliverChanges();
+            this.keepSnapshotInReach();
+        }
+        return removed[0];
     }
 
-    @SuppressWarnings("unused")
-    public String[] keys() {
-        return positionsHash.keySet().toArray(new String[0]);
+    /**
+     * Update indexes for a new or replaced entry.
+     * Called while the map holds the lock for the entry's key.
+     * @param previous entry being replaced, if any
+     * @param position new entry
+     */
+    private void indexPut(@Nullable VehiclePosition previous, @NotNull VehiclePosition position) {
+        List<ConcurrentSkipListSet<ExpiryKey>> expiryIndex = this.expiryIndex;
+        if (expiryIndex != null) {
+            ConcurrentSkipListSet<ExpiryKey> expiryStripe = expiryStripe(expiryIndex, position);
+            if (previous != null) {
+                expiryStripe.remove(new ExpiryKey(previous));
+            }
+            expiryStripe.add(new ExpiryKey(position));
+        }
+        VehicleSpatialIndex spatialIndex = this.spatialIndex;
+        if (spatialIndex != null) {
+            spatialIndex.put(previous, position);
+        }
+        VehicleAttributeIndex routeIndex = this.routeIndex;
+        if (routeIndex != null) {
+            routeIndex.put(previous, position);
+        }
+        VehicleAttributeIndex tripIndex = this.tripIndex;
+        if (tripIndex != null) {
+            tripIndex.put(previous, position);
+        }
+        VehicleAttributeIndex stopIndex = this.stopIndex;
+        if (stopIndex != null) {
+            stopIndex.put(previous, position);
+        }
+        VehicleHistory history = this.history;
+        if (history != null) {
+            history.append(position.getGoogleVehiclePosition().getVehicle().getId(), position);
+        }
+        this.logChange(previous == null ? VehiclePositionChange.Type.ADDED : VehiclePositionChange.Type.UPDATED,
+                position);
     }
 
-    @SuppressWarnings("unused")
-    public Set<String> keySet() {
-        return positionsHash.keySet();
+    /**
+     * Update indexes for a removed entry.
+     * Called while the map holds the lock for the entry's key.
+     * @param previous entry being removed
+     */
+    private void indexRemove(@NotNull VehiclePosition previous) {
+        List<ConcurrentSkipListSet<ExpiryKey>> expiryIndex = this.expiryIndex;
+        if (expiryIndex != null) {
+            expiryStripe(expiryIndex, previous).remove(new ExpiryKey(previous));
+        }
+        VehicleSpatialIndex spatialIndex = this.spatialIndex;
+        if (spatialIndex != null) {
+            spatialIndex.remove(previous);
+        }
+        VehicleAttributeIndex routeIndex = this.routeIndex;
+        if (routeIndex != null) {
+            routeIndex.remove(previous);
+        }
+        VehicleAttributeIndex tripIndex = this.tripIndex;
+        if (tripIndex != null) {
+            tripIndex.remove(previous);
+        }
+        VehicleAttributeIndex stopIndex = this.stopIndex;
+        if (stopIndex != null) {
+            stopIndex.remove(previous);
+        }
+        VehicleHistory history = this.history;
+        if (history != null) {
+            history.remove(previous.getGoogleVehiclePosition().getVehicle().getId());
+        }
+        this.logChange(VehiclePositionChange.Type.REMOVED, previous);
     }
 
-    public Collection<VehiclePosition> values() {
-        return this.positionsHash.values();
+    /**
+     * Assign the next version to a change, record it in the change log,
+     * and queue it for subscribers; deliverChanges() sends it once the
+     * entry's lock is released
+     * @param type type of change
+     * @param position new position, or for REMOVED, the last position
+     */
+    private void logChange(@NotNull VehiclePositionChange.Type type, @NotNull VehiclePosition position) {
+        long changeVersion = this.version.incrementAndGet();
+        VehiclePositionChange change = new VehiclePositionChange(
+                type, position.getVehicle().getId(), position, changeVersion);
+        // a writer that took an earlier version for the same slot must not overwrite this
+        this.changeLog.accumulateAndGet((int) (changeVersion % this.changeLogCapacity), change,
+                (logged, next) -> logged == null || logged.getVersion() < next.getVersion() ? next : logged);
+        VehiclePositionPublisher publisher = this.publisher;
+        if (publisher != null && publisher.hasSubscribers()) {
+            publisher.publish(change);
+        }
     }
 
     /**
-     * Purge stale records from the collection
-     * @return the number of records purged
+     * Start delivering changes queued for subscribers. Called after the map
+     * releases the entry's lock, so that no subscriber's work is done while
+     * holding it.
      */
-    @SuppressWarnings({"UnusedReturnValue", "unused"})
-    public int purgeStale() {
-        Instant staleTime = Instant.now().minus(staleAge);
-        int purgeCount = 0;
-        for (String key: this.positionsHash.keySet()) {
-            if (this.positionsHash.get(key).isOlderThan(staleTime)) {
-                this.remove(key);
-                purgeCount++;
-            }
+    private void deliverChanges() {
+        VehiclePositionPublisher publisher = this.publisher;
+        if (publisher != null) {
+            publisher.deliver();
         }
-        return purgeCount;
     }
 
     /**
-     * Get serialized collection as a JSON node
-     * @return JSON node
+     * Store the IDs of positions added from now on as canonical instances from
+     * a dictionary, so that the same ID arriving in feed after feed is held
+     * once rather than once per stored position. A dictionary may be shared
+     * by collections fed by the same publisher. The collection still keys on
+     * vehicle ID strings; the dictionary's codes are not used here.
+     * @param idDictionary ID dictionary, or null to store IDs as received
      */
-    @SuppressWarnings("unused")
-    public JsonNode toJsonObject() {
-        ArrayNode ar = JsonNodeFactory.instance.arrayNode();
-        for (VehiclePosition position: this.positionsHash.values()) {
-            ar.add(position.toJsonObject());
-        }
-        return ar;
+    public void setIdDictionary(@Nullable IdDictionary idDictionary) {
+        this.idDictionary = idDictionary;
+    }
+
+    @Nullable
+    public IdDictionary getIdDictionary() {
+        return idDictionary;
     }
 
     /**
-     * Get serialized collection as a protobuf feed message
-     * @param isDifferential if this collection is not all vehicles, but only
-     *                       recently changed vehicles
-     * @return GtfsRealtime.FeedMessage that represents this collection
+     * Record every feed passed to update() in a journal, from now on.
+     * Streamed feeds are recorded once read, if they parse.
+     * @param journal journal, or null to stop journaling
      */
-    @SuppressWarnings("unused")
+    public void setJournal(@Nullable FeedJournal journal) {
+        this.journal = journal;
+    }
+
+    @Nullable
+    public FeedJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Publish every change to the collection from now on, including purges
+     * of stale positions. Subscribers see only changes made after they
+     * subscribe; to start from a consistent view, subscribe, then read values().
+     * @param publisher publisher, or null to stop publishing
+     */
+    public void setPublisher(@Nullable VehiclePositionPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    @Nullable
+    public VehiclePositionPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Report ingest, purge and serialization measurements to the given metrics
+     * @param metrics metrics, or TransitMetrics.NOOP to stop reporting
+     */
+    public void setMetrics(@NotNull TransitMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @NotNull
+    public TransitMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Start keeping the last few positions of each vehicle, for getTrail().
+     * Each vehicle's history takes depth × 20 bytes of data, allocated with
+     * its first position, and is dropped when the vehicle is removed.
+     * Positions added before history was enabled are not included.
+     * @param depth number of positions to keep per vehicle
+     */
+    public synchronized void enableHistory(int depth) {
+        VehicleHistory current = this.history;
+        if (current != null) {
+            if (current.getDepth() != depth) {
+                throw new IllegalStateException(String.format(
+                        "history is already enabled with depth %d", current.getDepth()));
+            }
+            return;
+        }
+        this.history = new VehicleHistory(depth);
+    }
+
+    /**
+     * Start indexing positions by route, trip and current stop, for
+     * findByRoute(), findByTrip(), findByStop() and the queries built on
+     * them. Each put then also updates the indexes whose key changed, and
+     * vehicles on the same route contend for its entry.
+     * Positions already in the collection are indexed now.
+     */
+    public synchronized void enableAttributeIndexes() {
+        if (this.routeIndex != null) {
+            return;
+        }
+        VehicleAttributeIndex routeIndex = new VehicleAttributeIndex(
+                vp -> vp.getTrip().hasRouteId() ? vp.getTrip().getRouteId() : null);
+        VehicleAttributeIndex tripIndex = new VehicleAttributeIndex(
+                vp -> vp.getTrip().hasTripId() ? vp.getTrip().getTripId() : null);
+        VehicleAttributeIndex stopIndex = new VehicleAttributeIndex(
+                vp -> vp.hasStopId() ? vp.getStopId() : null);
+        this.routeIndex = routeIndex;
+        this.tripIndex = tripIndex;
+        this.stopIndex = stopIndex;
+        // changes from now on reach the indexes; add what is already here,
+        // under each entry's lock so that a concurrent change cannot be undone
+        for (String vehicleId: this.positionsHash.keySet()) {
+            this.positionsHash.computeIfPresent(vehicleId, (key, current) -> {
+                routeIndex.put(null, current);
+                tripIndex.put(null, current);
+                stopIndex.put(null, current);
+                return current;
+            });
+        }
+        this.isAttributeIndexComplete = true;
+    }
+
+    /**
+     * Start the expiry and spatial indexes, if not already started.
+     * Positions already in the collection are indexed now.
+     */
+    private synchronized void enableIndexes() {
+        if (this.spatialIndex != null) {
+            return;
+        }
+        List<ConcurrentSkipListSet<ExpiryKey>> expiryIndex = newExpiryIndex(EXPIRY_STRIPES);
+        VehicleSpatialIndex spatialIndex = new VehicleSpatialIndex();
+        this.expiryIndex = expiryIndex;
+        this.spatialIndex = spatialIndex;
+        // as in enableAttributeIndexes()
+        for (String vehicleId: this.positionsHash.keySet()) {
+            this.positionsHash.computeIfPresent(vehicleId, (key, current) -> {
+                expiryStripe(expiryIndex, current).add(new ExpiryKey(current));
+                spatialIndex.put(null, current);
+                return current;
+            });
+        }
+        this.isIndexComplete = true;
+    }
+
+    /**
+     * Get the spatial index, starting it if need be
+     * @return spatial index
+     */
+    @NotNull
+    private VehicleSpatialIndex spatialIndex() {
+        if (!this.isIndexComplete) {
+            this.enableIndexes();
+        }
+        //noinspection ConstantConditions
+        return this.spatialIndex;
+    }
+
+    /**
+     * Get the expiry index, starting it if need be
+     * @return expiry index
+     */
+    @NotNull
+    private List<ConcurrentSkipListSet<ExpiryKey>> expiryIndex() {
+        if (!this.isIndexComplete) {
+            this.enableIndexes();
+        }
+        //noinspection ConstantConditions
+        return this.expiryIndex;
+    }
+
+    /**
+     * Start keeping snapshots, for snapshot(). Each update(), putAll(),
+     * put(), remove(), clear() and purgeStale() then brings the snapshot up
+     * to date before it returns, applying the changes it made from the
+     * change log, so readers never do that work. This takes the first
+     * snapshot, which costs a pass over the collection.
+     * @throws IllegalStateException if writers outrun the change log while
+     *         the snapshot is built; with the default capacity, this takes
+     *         tens of thousands of concurrent changes during the pass
+     */
+    public void enableSnapshots() {
+        synchronized (this.snapshotLock) {
+            if (this.snapshot == null) {
+                try {
+                    this.snapshot = this.buildSnapshot();
+                } catch (IllegalStateException e) {
+                    this.snapshotVersion = -1;
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get an immutable, consistent view of the collection, including every
+     * change made by calls that have returned. After the first call, which
+     * enables snapshots, this costs only a read of the latest snapshot.
+     * @return snapshot
+     */
+    @NotNull
+    public VehiclePositionSnapshot snapshot() {
+        VehiclePositionSnapshot s = this.snapshot;
+        if (s == null) {
+            this.enableSnapshots();
+            s = this.snapshot;
+        }
+        //noinspection ConstantConditions
+        return s;
+    }
+
+    /**
+     * Bring the snapshot, if enabled, up to date with the changes made so far.
+     * Called by writers when they finish a batch of changes.
+     */
+    void publishSnapshot() {
+        if (this.snapshotVersion < 0) {
+            return;
+        }
+        synchronized (this.snapshotLock) {
+            VehiclePositionSnapshot s = this.snapshot;
+            long targetVersion = this.version.get();
+            if (s == null || s.getVersion() >= targetVersion) {
+                return;
+            }
+            VehiclePositionSnapshot caughtUp = this.applyChanges(s, s.getVersion(), targetVersion);
+            if (caughtUp == null) {
+                // more changes than the log holds, from writers that went on without a snapshot
+                caughtUp = this.buildSnapshot();
+            }
+            this.snapshot = caughtUp;
+            this.snapshotVersion = caughtUp.getVersion();
+        }
+    }
+
+    /**
+     * Called by writers after each change: bring the snapshot up to date if
+     * it has fallen so far behind that the change log might soon lose the
+     * changes it needs
+     */
+    private void keepSnapshotInReach() {
+        long snapshotVersion = this.snapshotVersion;
+        if (snapshotVersion >= 0 && this.version.get() - snapshotVersion >= Math.max(1, this.changeLogCapacity / 2)) {
+            this.publishSnapshot();
+        }
+    }
+
+    /**
+     * Build a snapshot from the whole collection. Called with snapshotLock
+     * held.
+     * @return snapshot
+     * @throws IllegalStateException if writers keep outrunning the change log
+     */
+    @NotNull
+    private VehiclePositionSnapshot buildSnapshot() {
+        for (int attempt = 0; attempt < SNAPSHOT_BUILD_ATTEMPTS; attempt++) {
+            // Scan the map, then replay the log over it. A change the scan
+            // saw took its version before the map stored it, so no later
+            // than the version read after the scan; one it missed because
+            // its writer had not yet stored it is in the log, if its writer
+            // took its version less than a quarter of the log before the
+            // scan started. Writers that get half the log ahead of
+            // snapshotVersion wait for this to finish, so the log keeps
+            // every change from there on.
+            long startVersion = this.version.get();
+            this.snapshotVersion = startVersion;
+            VehiclePositionSnapshot built = VehiclePositionSnapshot.EMPTY;
+            for (Map.Entry<String, VehiclePosition> entry: this.positionsHash.entrySet()) {
+                built = built.with(entry.getKey(), entry.getValue(), 0);
+            }
+            built = this.applyChanges(built, Math.max(startVersion - this.changeLogCapacity / 4, 0),
+                    this.version.get());
+            if (built != null) {
+                this.snapshotVersion = built.getVersion();
+                return built;
+            }
+            logger.debug("change log overrun while building snapshot; retrying");
+        }
+        throw new IllegalStateException(String.format(
+                "writers outran a change log of %d while building a snapshot", this.changeLogCapacity));
+    }
+
+    /**
+     * Apply changes from the change log to a snapshot
+     * @param s snapshot
+     * @param sinceVersion apply changes after this version
+     * @param targetVersion apply changes up to and including this version
+     * @return snapshot at targetVersion, or null if the log no longer holds the changes
+     */
+    @Nullable
+    private VehiclePositionSnapshot applyChanges(@NotNull VehiclePositionSnapshot s,
+                                                 long sinceVersion, long targetVersion) {
+        for (long v = sinceVersion + 1; v <= targetVersion; v++) {
+            VehiclePositionChange change;
+            while ((change = this.loggedChange(v)) == null) {
+                if (!this.hasChangesSince(v - 1, this.version.get())) {
+                    // the log moved past this change
+                    return null;
+                }
+                // the writer that took this version hasn't logged it yet
+                Thread.onSpinWait();
+            }
+            s = change.getType() == VehiclePositionChange.Type.REMOVED
+                    ? s.without(change.getVehicleId(), v)
+                    : s.with(change.getVehicleId(), change.getPosition(), v);
+        }
+        return s.atVersion(targetVersion);
+    }
+
+    /**
+     * Get a vehicle's recent positions
+     * @param vehicleId vehicle ID
+     * @return trail, oldest position first, or null if history is not enabled
+     *   or no positions are recorded for the vehicle
+     */
+    @Nullable
+    public VehicleTrail getTrail(@NotNull String vehicleId) {
+        VehicleHistory history = this.history;
+        return history == null ? null : history.getTrail(vehicleId);
+    }
+
+    /**
+     * Get the current version of the collection.
+     * The version increases with every change to the collection.
+     * @return collection version
+     */
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * Get how long a position record is considered current
+     * @return stale age
+     */
+    @NotNull
+    public Duration getStaleAge() {
+        return staleAge;
+    }
+
+    /**
+     * Get collection size
+     * @return number of entries in collection
+     */
+    public int size() {
+        return positionsHash.size();
+    }
+
+    /**
+     * Remove all entries from the collection
+     */
+    public void clear() {
+        for (String vehicleId: this.positionsHash.keySet()) {
+            this.removeVehicle(vehicleId);
+        }
+        this.publishSnapshot();
+    }
+
+    @SuppressWarnings("unused")
+    public String[] keys() {
+        return positionsHash.keySet().toArray(new String[0]);
+    }
+
+    @SuppressWarnings("unused")
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(positionsHash.keySet());
+    }
+
+    /**
+     * Get a live, read-only view of the positions in the collection.
+     * Iteration does not block writers and may or may not reflect
+     * changes made after it started.
+     * @return positions in the collection
+     */
+    public Collection<VehiclePosition> values() {
+        return Collections.unmodifiableCollection(this.positionsHash.values());
+    }
+
+    /**
+     * Get a columnar snapshot of the collection, for bulk processing
+     * over primitive arrays
+     * @return snapshot with one row per vehicle
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public VehiclePositionColumns toColumns() {
+        return VehiclePositionColumns.fromPositions(this.positionsHash.values().toArray(new VehiclePosition[0]));
+    }
+
+    /**
+     * Serialize in the compact quantized format; decode with
+     * CompactPositionCodec.decode()
+     * @param fieldMask optional fields to include, from CompactPositionCodec
+     * @return encoded positions
+     */
+    @NotNull
+    public byte[] toCompact(int fieldMask) {
+        long startNanos = System.nanoTime();
+        byte[] bytes = CompactPositionCodec.encode(this.positionsHash.values(), fieldMask);
+        this.metrics.serialized(EncodedFeed.Format.COMPACT, System.nanoTime() - startNanos, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Find vehicles within a bounding box. If minLongitude is greater than
+     * maxLongitude, the box crosses the 180th meridian.
+     * @param minLatitude southern edge
+     * @param minLongitude western edge
+     * @param maxLatitude northern edge
+     * @param maxLongitude eastern edge
+     * @return positions in the box, in no particular order
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findWithin(double minLatitude, double minLongitude,
+                                            double maxLatitude, double maxLongitude) {
+        return this.spatialIndex().findWithin(minLatitude, minLongitude, maxLatitude, maxLongitude);
+    }
+
+    /**
+     * Find vehicles within a distance of a point
+     * @param latitude latitude of the center
+     * @param longitude longitude of the center
+     * @param radiusMeters distance from the center
+     * @return positions within the distance, in no particular order
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findWithinRadius(double latitude, double longitude, double radiusMeters) {
+        return this.spatialIndex().findWithinRadius(latitude, longitude, radiusMeters);
+    }
+
+    /**
+     * Find vehicles on a route. This scans the collection unless attribute
+     * indexes are enabled.
+     * @param routeId route ID
+     * @return positions, in no particular order
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findByRoute(@NotNull String routeId) {
+        VehicleAttributeIndex routeIndex = this.isAttributeIndexComplete ? this.routeIndex : null;
+        if (routeIndex == null) {
+            return this.findAll(vp -> vp.getTrip().hasRouteId() && routeId.equals(vp.getTrip().getRouteId()));
+        }
+        return routeIndex.find(routeId);
+    }
+
+    /**
+     * Find vehicles on any route of a given type
+     * @param routes routes, to look up each route's type
+     * @param routeType route type
+     * @return positions, in no particular order; vehicles on routes missing
+     *         from routes are not included
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findByRouteType(@NotNull RouteCollection routes, @NotNull RouteType routeType) {
+        return this.findByRoutes(routes, route -> route.getType() == routeType);
+    }
+
+    /**
+     * Find vehicles on any route of an agency
+     * @param routes routes, to look up each route's agency
+     * @param agencyId agency ID
+     * @return positions, in no particular order; vehicles on routes missing
+     *         from routes are not included
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findByAgency(@NotNull RouteCollection routes, @NotNull String agencyId) {
+        return this.findByRoutes(routes, route -> agencyId.equals(route.getAgencyId()));
+    }
+
+    /**
+     * Find vehicles on routes that pass a filter, visiting only the routes
+     * that currently have vehicles, or every vehicle if attribute indexes
+     * are not enabled
+     */
+    @NotNull
+    private List<VehiclePosition> findByRoutes(@NotNull RouteCollection routes, @NotNull Predicate<Route> filter) {
+        VehicleAttributeIndex routeIndex = this.isAttributeIndexComplete ? this.routeIndex : null;
+        if (routeIndex == null) {
+            return this.findAll(vp -> {
+                Route route = vp.getTrip().hasRouteId() ? routes.get(vp.getTrip().getRouteId()) : null;
+                return route != null && filter.test(route);
+            });
+        }
+        List<String> routeIds = new ArrayList<>();
+        for (String routeId: routeIndex.keys()) {
+            Route route = routes.get(routeId);
+            if (route != null && filter.test(route)) {
+                routeIds.add(routeId);
+            }
+        }
+        return routeIndex.findAny(routeIds);
+    }
+
+    /**
+     * Find vehicles whose positions pass a filter, by visiting every vehicle
+     * @param filter filter
+     * @return positions, in no particular order
+     */
+    @NotNull
+    private List<VehiclePosition> findAll(@NotNull Predicate<GtfsRealtime.VehiclePosition> filter) {
+        List<VehiclePosition> result = new ArrayList<>();
+        for (VehiclePosition position: this.positionsHash.values()) {
+            if (filter.test(position.getGoogleVehiclePosition())) {
+                result.add(position);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find vehicles on a trip. This scans the collection unless attribute
+     * indexes are enabled.
+     * @param tripId trip ID
+     * @return positions, in no particular order
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findByTrip(@NotNull String tripId) {
+        VehicleAttributeIndex tripIndex = this.isAttributeIndexComplete ? this.tripIndex : null;
+        if (tripIndex == null) {
+            return this.findAll(vp -> vp.getTrip().hasTripId() && tripId.equals(vp.getTrip().getTripId()));
+        }
+        return tripIndex.find(tripId);
+    }
+
+    /**
+     * Find vehicles whose current stop is a given stop. This scans the
+     * collection unless attribute indexes are enabled.
+     * @param stopId stop ID
+     * @return positions, in no particular order
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findByStop(@NotNull String stopId) {
+        VehicleAttributeIndex stopIndex = this.isAttributeIndexComplete ? this.stopIndex : null;
+        if (stopIndex == null) {
+            return this.findAll(vp -> vp.hasStopId() && stopId.equals(vp.getStopId()));
+        }
+        return stopIndex.find(stopId);
+    }
+
+    /**
+     * Find the vehicles nearest to a point
+     * @param latitude latitude of the point
+     * @param longitude longitude of the point
+     * @param count maximum number of vehicles to find
+     * @return up to count positions, nearest first
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public List<VehiclePosition> findNearest(double latitude, double longitude, int count) {
+        return this.spatialIndex().findNearest(latitude, longitude, count);
+    }
+
+    /**
+     * Purge stale records from the collection.
+     * Only the records that have expired are visited.
+     * @return the number of records purged
+     */
+    @SuppressWarnings({"UnusedReturnValue", "unused"})
+    public int purgeStale() {
+        long startNanos = System.nanoTime();
+        Instant staleTime = Instant.now().minus(staleAge);
+        // positions have whole-second timestamps; anything before this second is stale
+        long staleSecond = staleTime.getEpochSecond() + (staleTime.getNano() > 0 ? 1 : 0);
+        int purgeCount = 0;
+        for (ConcurrentSkipListSet<ExpiryKey> stripe: this.expiryIndex()) {
+            for (ExpiryKey key: stripe.headSet(new ExpiryKey(staleSecond, ""))) {
+                VehiclePosition position = this.positionsHash.get(key.vehicleId);
+                if (position != null && position.getEpochSecond() == key.timestamp && this.remove(position)) {
+                    purgeCount++;
+                }
+            }
+        }
+        this.publishSnapshot();
+        this.metrics.purged(System.nanoTime() - startNanos, purgeCount);
+        return purgeCount;
+    }
+
+    /**
+     * Purge stale records periodically, several times per staleAge
+     * @param executor executor to run the purges
+     * @return future that can be used to cancel the purges
+     */
+    @SuppressWarnings("unused")
+    public ScheduledFuture<?> schedulePurge(@NotNull ScheduledExecutorService executor) {
+        long periodMillis = Math.max(1000, staleAge.toMillis() / PURGES_PER_STALE_AGE);
+        return executor.scheduleWithFixedDelay(this::purgeStale, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the collection to a binary checkpoint file, replacing any
+     * previous checkpoint atomically
+     * @param path checkpoint file
+     * @throws IOException if unable to write
+     */
+    public void writeCheckpoint(@NotNull Path path) throws IOException {
+        VehiclePositionCheckpoint.write(this.positionsHash.values().toArray(new VehiclePosition[0]), path);
+    }
+
+    /**
+     * Add the positions from a checkpoint file, discarding those that are
+     * stale or older than the positions already held
+     * @param path checkpoint file
+     * @return number of positions in the checkpoint
+     * @throws IOException if unable to read, or if the file is not a checkpoint
+     */
+    public int restoreCheckpoint(@NotNull Path path) throws IOException {
+        VehiclePosition[] positions = VehiclePositionCheckpoint.read(path);
+        this.putAll(positions);
+        return positions.length;
+    }
+
+    /**
+     * Build instance from a checkpoint file
+     * @param staleAge age of records that can be purged
+     * @param path checkpoint file
+     * @return instance of VehiclePositionCollection
+     * @throws IOException if unable to read, or if the file is not a checkpoint
+     */
+    @NotNull
+    public static VehiclePositionCollection fromCheckpoint(@NotNull Duration staleAge, @NotNull Path path)
+            throws IOException {
+        return new VehiclePositionCollection(staleAge, VehiclePositionCheckpoint.read(path));
+    }
+
+    /**
+     * Write checkpoints periodically. Failures are logged, and do not stop
+     * later checkpoints.
+     * @param executor executor to write the checkpoints
+     * @param path checkpoint file
+     * @param interval time between checkpoints
+     * @return future that can be used to cancel the checkpoints
+     */
+    @NotNull
+    public ScheduledFuture<?> scheduleCheckpoint(@NotNull ScheduledExecutorService executor,
+                                                 @NotNull Path path, @NotNull Duration interval) {
+        long periodMillis = Math.max(1, interval.toMillis());
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                this.writeCheckpoint(path);
+            } catch (IOException e) {
+                logger.warn("{}: checkpoint failed: {}", path, e.toString());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get serialized collection as a JSON node
+     * @return JSON node
+     */
+    @SuppressWarnings("unused")
+    public JsonNode toJsonObject() {
+        long startNanos = System.nanoTime();
+        ArrayNode ar = JsonNodeFactory.instance.arrayNode();
+        for (VehiclePosition position: this.positionsHash.values()) {
+            ar.add(position.toJsonObject());
+        }
+        // the tree has no size until someone writes it out
+        this.metrics.serialized(EncodedFeed.Format.JSON, System.nanoTime() - startNanos, -1);
+        return ar;
+    }
+
+    /**
+     * Serialize collection to JSON, writing the same output as toJsonObject()
+     * one position at a time
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        g.writeStartArray();
+        for (VehiclePosition position: this.positionsHash.values()) {
+            position.writeJson(g);
+        }
+        g.writeEndArray();
+    }
+
+    /**
+     * Serialize collection to JSON, writing the same output as toJsonObject()
+     * one position at a time
+     * @param outputStream stream to write UTF-8 JSON to; left open
+     * @throws IOException if unable to write
+     */
+    @SuppressWarnings("unused")
+    public void writeJson(@NotNull OutputStream outputStream) throws IOException {
+        try (JsonGenerator g = jsonFactory.createGenerator(outputStream)) {
+            this.writeJson(g);
+        }
+    }
+
+    /**
+     * Get serialized collection as a protobuf feed message
+     * @param isDifferential if this collection is not all vehicles, but only
+     *                       recently changed vehicles
+     * @return GtfsRealtime.FeedMessage that represents this collection
+     */
+    @SuppressWarnings("unused")
     public GtfsRealtime.FeedMessage toFeedMessage(boolean isDifferential) {
+        long startNanos = System.nanoTime();
+        GtfsRealtime.FeedMessage feedMessage = buildFeedMessage(this.positionsHash.values(), isDifferential);
+        logger.debug("Serialized feed count {} size {}",
+                feedMessage.getEntityCount(), feedMessage.getSerializedSize());
+        this.metrics.serialized(EncodedFeed.Format.PROTOBUF, System.nanoTime() - startNanos,
+                feedMessage.getSerializedSize());
+        return feedMessage;
+    }
+
+    /**
+     * Build a feed message of the given positions
+     * @param positions positions
+     * @param isDifferential if the positions are not all vehicles, but only
+     *                       recently changed vehicles
+     * @return feed message
+     */
+    @NotNull
+    static GtfsRealtime.FeedMessage buildFeedMessage(@NotNull Collection<VehiclePosition> positions,
+                                                     boolean isDifferential) {
         GtfsRealtime.FeedHeader feedHeader = GtfsRealtime.FeedHeader.newBuilder()
                 .setGtfsRealtimeVersion(GTFS_REALTIME_VERSION)
                 .setIncrementality(isDifferential
                         ? GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL
                         : GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET)
-                .setTimestamp(Instant.now().toEpochMilli())
+                .setTimestamp(Instant.now().getEpochSecond())
                 .build();
 
         List<GtfsRealtime.FeedEntity> vehicleEntities = new ArrayList<>();
-        for (VehiclePosition vp: this.positionsHash.values()) {
+        for (VehiclePosition vp: positions) {
             GtfsRealtime.VehiclePosition gglVP = vp.getGoogleVehiclePosition();
             vehicleEntities.add(GtfsRealtime.FeedEntity.newBuilder()
                     .setId(gglVP.getTimestamp() + ":" + gglVP.getVehicle().getId())
                     .setVehicle(vp.getGoogleVehiclePosition())
                     .build());
         }
-        GtfsRealtime.FeedMessage feedMessage = GtfsRealtime.FeedMessage.newBuilder()
+        return GtfsRealtime.FeedMessage.newBuilder()
                 .setHeader(feedHeader)
                 .addAllEntity(vehicleEntities)
                 .build();
+    }
 
-        logger.debug("Serialized feed count {} size {}",
-                feedMessage.getEntityCount(), feedMessage.getSerializedSize());
-        return feedMessage;
+    /**
+     * Get the collection serialized in the given format. The serialized bytes
+     * are cached, and are only rebuilt on the first request after the
+     * collection changes.
+     * @param format serialization format
+     * @param gzip true for gzip-compressed bytes
+     * @return serialized collection
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public EncodedFeed getEncodedFeed(@NotNull EncodedFeed.Format format, boolean gzip) {
+        long currentVersion = this.version.get();
+        int slot = format.ordinal() * 2 + (gzip ? 1 : 0);
+        EncodedFeed encodedFeed = this.encodedFeeds.get(slot);
+        if (encodedFeed == null || encodedFeed.getVersion() < currentVersion) {
+            // one thread rebuilds while the others wait for its result
+            synchronized (this.encodedFeedLocks[slot]) {
+                encodedFeed = this.encodedFeeds.get(slot);
+                if (encodedFeed == null || encodedFeed.getVersion() < currentVersion) {
+                    byte[] bytes;
+                    if (gzip) {
+                        EncodedFeed plain = this.getEncodedFeed(format, false);
+                        currentVersion = plain.getVersion();
+                        bytes = gzip(plain.getBytes());
+                    } else if (format == EncodedFeed.Format.PROTOBUF) {
+                        bytes = this.toFeedMessage(false).toByteArray();
+                    } else if (format == EncodedFeed.Format.COMPACT) {
+                        bytes = this.toCompact(CompactPositionCodec.ALL_FIELDS);
+                    } else {
+                        long startNanos = System.nanoTime();
+                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                        try {
+                            this.writeJson(outputStream);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        bytes = outputStream.toByteArray();
+                        this.metrics.serialized(format, System.nanoTime() - startNanos, bytes.length);
+                    }
+                    encodedFeed = new EncodedFeed(format, gzip, currentVersion, bytes, this.instanceId);
+                    this.encodedFeeds.set(slot, encodedFeed);
+                }
+            }
+        }
+        return encodedFeed;
+    }
+
+    @NotNull
+    private static byte[] gzip(@NotNull byte[] bytes) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream)) {
+            gzipStream.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    @NotNull
+    private static List<ConcurrentSkipListSet<ExpiryKey>> newExpiryIndex(int stripeCount) {
+        List<ConcurrentSkipListSet<ExpiryKey>> stripes = new ArrayList<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes.add(new ConcurrentSkipListSet<>());
+        }
+        return stripes;
+    }
+
+    /**
+     * Get the expiry index stripe for a vehicle
+     * @param expiryIndex expiry index
+     * @param position any position of the vehicle
+     * @return stripe
+     */
+    @NotNull
+    private static ConcurrentSkipListSet<ExpiryKey> expiryStripe(
+            @NotNull List<ConcurrentSkipListSet<ExpiryKey>> expiryIndex, @NotNull VehiclePosition position) {
+        return expiryIndex.get(position.getVehicle().getId().hashCode() & (EXPIRY_STRIPES - 1));
+    }
+
+    @NotNull
+    private static Object[] newLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    /**
+     * Get the changes to the collection since the given version as a
+     * differential feed message. Vehicles that have been removed are included
+     * as deleted entities. If the changes are no longer in the change log,
+     * the full dataset is returned instead.
+     * Entity IDs are vehicle IDs, so that updates and deletions refer to the
+     * same entity.
+     * @param sinceVersion version from a previous call, or 0 for the full dataset
+     * @return feed message and the version it reflects
+     */
+    @SuppressWarnings("unused")
+    @NotNull
+    public VersionedFeedMessage toFeedMessage(long sinceVersion) {
+        long startNanos = System.nanoTime();
+        long currentVersion = this.version.get();
+        GtfsRealtime.FeedMessage.Builder builder = GtfsRealtime.FeedMessage.newBuilder();
+        boolean isDifferential = sinceVersion > 0 && this.hasChangesSince(sinceVersion, currentVersion);
+        if (isDifferential) {
+            LinkedHashSet<String> changedIds = new LinkedHashSet<>();
+            for (long v = sinceVersion + 1; v <= currentVersion; v++) {
+                VehiclePositionChange change;
+                while ((change = this.loggedChange(v)) == null) {
+                    if (!this.hasChangesSince(sinceVersion, this.version.get())) {
+                        // the log moved past us while we were reading it
+                        return this.toFeedMessage(0);
+                    }
+                    // the writer that took this version hasn't logged it yet
+                    Thread.onSpinWait();
+                }
+                // keep only the latest change for each vehicle, in change order
+                String vehicleId = change.getVehicleId();
+                changedIds.remove(vehicleId);
+                changedIds.add(vehicleId);
+            }
+            for (String vehicleId: changedIds) {
+                // versions are logged before the map stores the entry, so
+                // read through the entry's lock to see every logged change
+                VehiclePosition vp = this.positionsHash.compute(vehicleId, (key, current) -> current);
+                if (vp == null) {
+                    // the vehicle descriptor tells consumers of combined feeds what kind of entity went away
+                    builder.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                            .setId(vehicleId)
+                            .setIsDeleted(true)
+                            .setVehicle(GtfsRealtime.VehiclePosition.newBuilder()
+                                    .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(vehicleId)))
+                            .build());
+                } else {
+                    builder.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                            .setId(vehicleId)
+                            .setVehicle(vp.getGoogleVehiclePosition())
+                            .build());
+                }
+            }
+        } else {
+            for (VehiclePosition vp: this.positionsHash.values()) {
+                builder.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                        .setId(vp.getVehicle().getId())
+                        .setVehicle(vp.getGoogleVehiclePosition())
+                        .build());
+            }
+        }
+        GtfsRealtime.FeedMessage feedMessage = builder
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion(GTFS_REALTIME_VERSION)
+                        .setIncrementality(isDifferential
+                                ? GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL
+                                : GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET)
+                        .setTimestamp(Instant.now().getEpochSecond()))
+                .build();
+
+        logger.debug("Serialized feed since version {} count {} size {}",
+                sinceVersion, feedMessage.getEntityCount(), feedMessage.getSerializedSize());
+        this.metrics.serialized(EncodedFeed.Format.PROTOBUF, System.nanoTime() - startNanos,
+                feedMessage.getSerializedSize());
+        return new VersionedFeedMessage(feedMessage, currentVersion);
+    }
+
+    /**
+     * Get a change from the change log
+     * @param changeVersion version of the change
+     * @return change, or null if it is not yet logged or no longer in the log
+     */
+    @Nullable
+    private VehiclePositionChange loggedChange(long changeVersion) {
+        VehiclePositionChange change = this.changeLog.get((int) (changeVersion % this.changeLogCapacity));
+        return change != null && change.getVersion() == changeVersion ? change : null;
+    }
+
+    /**
+     * Check if the change log still holds every change after the given version
+     * @param sinceVersion starting version
+     * @param currentVersion latest version
+     * @return true if the changes are available
+     */
+    private boolean hasChangesSince(long sinceVersion, long currentVersion) {
+        return sinceVersion <= currentVersion && sinceVersion >= currentVersion - this.changeLogCapacity;
+    }
+
+    /**
+     * Expiry index entry: a vehicle ID and the timestamp of its current position
+     */
+    private static final class ExpiryKey implements Comparable<ExpiryKey> {
+        private final long timestamp;
+        @NotNull
+        private final String vehicleId;
+
+        private ExpiryKey(long timestamp, @NotNull String vehicleId) {
+            this.timestamp = timestamp;
+            this.vehicleId = vehicleId;
+        }
+
+        private ExpiryKey(@NotNull VehiclePosition position) {
+            this(position.getEpochSecond(), position.getVehicle().getId());
+        }
+
+        @Override
+        public int compareTo(@NotNull ExpiryKey other) {
+            int result = Long.compare(this.timestamp, other.timestamp);
+            return result != 0 ? result : this.vehicleId.compareTo(other.vehicleId);
+        }
     }
 
 }
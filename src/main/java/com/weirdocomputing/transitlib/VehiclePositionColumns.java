@@ -0,0 +1,232 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Columnar snapshot of a set of vehicle positions
+ *
+ * Row i of the snapshot is spread across parallel primitive arrays, so that
+ * bulk work can loop over them without touching protobuf objects. Missing
+ * float values are NaN. Vehicle, trip and route IDs are stored as codes into
+ * per-snapshot dictionaries; a missing ID has code -1.
+ * The arrays are shared, not copied, and must not be modified.
+ */
+public class VehiclePositionColumns {
+    public static final int NO_CODE = -1;
+
+    private final int size;
+    @NotNull
+    private final float[] latitudes;
+    @NotNull
+    private final float[] longitudes;
+    @NotNull
+    private final float[] bearings;
+    @NotNull
+    private final float[] speeds;
+    @NotNull
+    private final long[] timestamps;
+    @NotNull
+    private final int[] vehicleCodes;
+    @NotNull
+    private final int[] tripCodes;
+    @NotNull
+    private final int[] routeCodes;
+    @NotNull
+    private final String[] vehicleIds;
+    @NotNull
+    private final String[] tripIds;
+    @NotNull
+    private final String[] routeIds;
+
+    VehiclePositionColumns(int size,
+                           @NotNull float[] latitudes, @NotNull float[] longitudes,
+                           @NotNull float[] bearings, @NotNull float[] speeds,
+                           @NotNull long[] timestamps,
+                           @NotNull int[] vehicleCodes, @NotNull int[] tripCodes, @NotNull int[] routeCodes,
+                           @NotNull String[] vehicleIds, @NotNull String[] tripIds, @NotNull String[] routeIds) {
+        this.size = size;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.bearings = bearings;
+        this.speeds = speeds;
+        this.timestamps = timestamps;
+        this.vehicleCodes = vehicleCodes;
+        this.tripCodes = tripCodes;
+        this.routeCodes = routeCodes;
+        this.vehicleIds = vehicleIds;
+        this.tripIds = tripIds;
+        this.routeIds = routeIds;
+    }
+
+    /**
+     * Build a snapshot from positions
+     * @param positions positions to include, one row each
+     * @return snapshot
+     */
+    @NotNull
+    static VehiclePositionColumns fromPositions(@NotNull VehiclePosition[] positions) {
+        int size = positions.length;
+        float[] latitudes = new float[size];
+        float[] longitudes = new float[size];
+        float[] bearings = new float[size];
+        float[] speeds = new float[size];
+        long[] timestamps = new long[size];
+        int[] vehicleCodes = new int[size];
+        int[] tripCodes = new int[size];
+        int[] routeCodes = new int[size];
+        CodeTable vehicleIds = new CodeTable();
+        CodeTable tripIds = new CodeTable();
+        CodeTable routeIds = new CodeTable();
+
+        for (int i = 0; i < size; i++) {
+            GtfsRealtime.VehiclePosition vp = positions[i].getGoogleVehiclePosition();
+            GtfsRealtime.Position p = vp.getPosition();
+            latitudes[i] = p.hasLatitude() ? p.getLatitude() : Float.NaN;
+            longitudes[i] = p.hasLongitude() ? p.getLongitude() : Float.NaN;
+            bearings[i] = p.hasBearing() ? p.getBearing() : Float.NaN;
+            speeds[i] = p.hasSpeed() ? p.getSpeed() : Float.NaN;
+            timestamps[i] = vp.getTimestamp();
+            vehicleCodes[i] = vehicleIds.encode(vp.getVehicle().hasId() ? vp.getVehicle().getId() : null);
+            tripCodes[i] = tripIds.encode(vp.getTrip().hasTripId() ? vp.getTrip().getTripId() : null);
+            routeCodes[i] = routeIds.encode(vp.getTrip().hasRouteId() ? vp.getTrip().getRouteId() : null);
+        }
+        return new VehiclePositionColumns(size, latitudes, longitudes, bearings, speeds, timestamps,
+                vehicleCodes, tripCodes, routeCodes,
+                vehicleIds.toArray(), tripIds.toArray(), routeIds.toArray());
+    }
+
+    /**
+     * Get the number of rows
+     * @return number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    @NotNull
+    public float[] getLatitudes() {
+        return latitudes;
+    }
+
+    @NotNull
+    public float[] getLongitudes() {
+        return longitudes;
+    }
+
+    @NotNull
+    public float[] getBearings() {
+        return bearings;
+    }
+
+    @NotNull
+    public float[] getSpeeds() {
+        return speeds;
+    }
+
+    /**
+     * Get timestamps
+     * @return timestamps in seconds since the epoch
+     */
+    @NotNull
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Get vehicle ID codes
+     * @return indexes into getVehicleIdDictionary(), or NO_CODE
+     */
+    @NotNull
+    public int[] getVehicleCodes() {
+        return vehicleCodes;
+    }
+
+    /**
+     * Get trip ID codes
+     * @return indexes into getTripIdDictionary(), or NO_CODE
+     */
+    @NotNull
+    public int[] getTripCodes() {
+        return tripCodes;
+    }
+
+    /**
+     * Get route ID codes
+     * @return indexes into getRouteIdDictionary(), or NO_CODE
+     */
+    @NotNull
+    public int[] getRouteCodes() {
+        return routeCodes;
+    }
+
+    @NotNull
+    public String[] getVehicleIdDictionary() {
+        return vehicleIds;
+    }
+
+    @NotNull
+    public String[] getTripIdDictionary() {
+        return tripIds;
+    }
+
+    @NotNull
+    public String[] getRouteIdDictionary() {
+        return routeIds;
+    }
+
+    @Nullable
+    public String getVehicleId(int row) {
+        return decode(vehicleIds, vehicleCodes[row]);
+    }
+
+    @Nullable
+    public String getTripId(int row) {
+        return decode(tripIds, tripCodes[row]);
+    }
+
+    @Nullable
+    public String getRouteId(int row) {
+        return decode(routeIds, routeCodes[row]);
+    }
+
+    @Nullable
+    private static String decode(@NotNull String[] dictionary, int code) {
+        return code == NO_CODE ? null : dictionary[code];
+    }
+
+    /**
+     * Assigns codes to strings in order of first appearance
+     */
+    private static final class CodeTable {
+        private final HashMap<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private int encode(@Nullable String value) {
+            if (value == null) {
+                return NO_CODE;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        @NotNull
+        private String[] toArray() {
+            return values.toArray(new String[0]);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.weirdocomputing.transitlib;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Fetches a GTFS realtime vehicle positions feed over HTTP and applies it to
+ * a VehiclePositionCollection
+ *
+ * Requests are conditional on the ETag and Last-Modified of the last feed
+ * fetched, so an unchanged feed costs one round trip and no parsing.
+ * Responses may be gzip-compressed. After a failure, callers should wait
+ * for getNextDelay() before polling again.
+ */
+public class VehiclePositionFeedPoller implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(VehiclePositionFeedPoller.class);
+
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofMinutes(5);
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    @NotNull
+    private final URI uri;
+    @NotNull
+    private final VehiclePositionCollection collection;
+    @NotNull
+    private final CloseableHttpClient httpClient;
+    private final boolean ownsHttpClient;
+    @NotNull
+    private final Duration maxBackoff;
+
+    @Nullable
+    private volatile String etag = null;
+    @Nullable
+    private volatile String lastModified = null;
+    private volatile int consecutiveFailures = 0;
+
+    /**
+     * Construct poller with its own connection pool
+     * @param uri feed URI
+     * @param collection collection to update
+     */
+    public VehiclePositionFeedPoller(@NotNull URI uri, @NotNull VehiclePositionCollection collection) {
+        this(uri, collection, createHttpClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_TIMEOUT), true, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Construct poller that shares a client, and its connection pool, with other pollers
+     * @param uri feed URI
+     * @param collection collection to update
+     * @param httpClient HTTP client; not closed by this poller
+     * @param maxBackoff longest delay after repeated failures
+     */
+    public VehiclePositionFeedPoller(@NotNull URI uri, @NotNull VehiclePositionCollection collection,
+                                     @NotNull CloseableHttpClient httpClient, @NotNull Duration maxBackoff) {
+        this(uri, collection, httpClient, false, maxBackoff);
+    }
+
+    private VehiclePositionFeedPoller(@NotNull URI uri, @NotNull VehiclePositionCollection collection,
+                                      @NotNull CloseableHttpClient httpClient, boolean ownsHttpClient,
+                                      @NotNull Duration maxBackoff) {
+        this.uri = uri;
+        this.collection = collection;
+        this.httpClient = httpClient;
+        this.ownsHttpClient = ownsHttpClient;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Create an HTTP client with a connection pool, timeouts and
+     * transparent gzip decompression
+     * @param maxConnections most connections open at once
+     * @param timeout connect, read and pool wait timeout
+     * @return HTTP client
+     */
+    @NotNull
+    public static CloseableHttpClient createHttpClient(int maxConnections, @NotNull Duration timeout) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        int timeoutMillis = (int) timeout.toMillis();
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeoutMillis)
+                        .setSocketTimeout(timeoutMillis)
+                        .setConnectionRequestTimeout(timeoutMillis)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Fetch the feed and, if it has changed, update the collection
+     * @return positions from the feed, or null if the feed has not changed
+     * @throws Exception If unable to fetch or if data fails validation
+     */
+    @Nullable
+    public VehiclePositionCollection poll() throws Exception {
+        HttpGet request = new HttpGet(this.uri);
+        String requestEtag = this.etag;
+        String requestLastModified = this.lastModified;
+        if (requestEtag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, requestEtag);
+        }
+        if (requestLastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, requestLastModified);
+        }
+        try (CloseableHttpResponse response = this.httpClient.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            VehiclePositionCollection result = null;
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                logger.debug("{}: not modified", this.uri);
+                EntityUtils.consume(entity);
+            } else if (statusCode == HttpStatus.SC_OK && entity != null) {
+                try (InputStream inputStream = entity.getContent()) {
+                    result = this.collection.update(inputStream);
+                }
+                this.etag = headerValue(response.getFirstHeader(HttpHeaders.ETAG));
+                this.lastModified = headerValue(response.getFirstHeader(HttpHeaders.LAST_MODIFIED));
+                logger.debug("{}: {} positions, ETag {}", this.uri, result.size(), this.etag);
+            } else {
+                EntityUtils.consume(entity);
+                throw new IOException(String.format("%s: unexpected response \"%s\"",
+                        this.uri, response.getStatusLine()));
+            }
+            this.consecutiveFailures = 0;
+            return result;
+        } catch (Exception e) {
+            this.consecutiveFailures++;
+            throw e;
+        }
+    }
+
+    /**
+     * Get how long to wait before the next poll. This is the interval, unless
+     * polls have been failing, in which case it backs off exponentially, with
+     * jitter, up to the maximum backoff.
+     * @param interval normal polling interval
+     * @return delay before the next poll
+     */
+    @NotNull
+    public Duration getNextDelay(@NotNull Duration interval) {
+        int failures = this.consecutiveFailures;
+        if (failures == 0) {
+            return interval;
+        }
+        long intervalMillis = Math.max(1, interval.toMillis());
+        long backoffMillis = Math.min(this.maxBackoff.toMillis(), intervalMillis << Math.min(failures, 20));
+        return Duration.ofMillis(intervalMillis
+                + ThreadLocalRandom.current().nextLong(Math.max(1, backoffMillis - intervalMillis + 1)));
+    }
+
+    @NotNull
+    public URI getUri() {
+        return uri;
+    }
+
+    @NotNull
+    public VehiclePositionCollection getCollection() {
+        return collection;
+    }
+
+    /**
+     * Get the number of polls that have failed since the last success
+     * @return failure count
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Nullable
+    private static String headerValue(@Nullable Header header) {
+        return header == null ? null : header.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.ownsHttpClient) {
+            this.httpClient.close();
+        }
+    }
+}
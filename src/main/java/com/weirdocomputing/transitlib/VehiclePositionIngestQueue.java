@@ -0,0 +1,431 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Bounded queue of positions in front of a VehiclePositionCollection
+ *
+ * Callers offer positions, or whole feeds, and return at once; a single
+ * writer thread applies them to the collection. While a position waits,
+ * newer positions for the same vehicle replace it, so a backlog never holds
+ * more than one position per vehicle. When the queue is full, a position
+ * for a vehicle not already waiting is shed according to the overload
+ * policy, and reported to the collection's metrics as SHED.
+ * Vehicle removals, such as deleted feed entities, wait and coalesce the
+ * same way: a removal replaces the position waiting for its vehicle, and a
+ * position that follows a waiting removal is applied after it.
+ *
+ * Feeds offered here are not journaled; the collection's journal only
+ * records feeds passed to its own update().
+ */
+public class VehiclePositionIngestQueue implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(VehiclePositionIngestQueue.class);
+
+    /**
+     * What to shed when the queue is full
+     */
+    public enum OverloadPolicy {
+        /**
+         * Shed the position that has waited longest
+         */
+        DROP_OLDEST,
+        /**
+         * Shed the longest-waiting position of the lowest priority, if lower
+         * than the incoming one; otherwise shed the incoming position
+         */
+        DROP_LOWER_PRIORITY
+    }
+
+    @NotNull
+    private final VehiclePositionCollection collection;
+    private final int capacity;
+    @NotNull
+    private final OverloadPolicy policy;
+    @NotNull
+    private final Thread writer;
+
+    /**
+     * Guards everything below, and is notified when positions are queued
+     * and when the writer finishes a batch
+     */
+    private final Object lock = new Object();
+    @NotNull
+    private final HashMap<String, Pending> pending = new HashMap<>();
+    /**
+     * The same entries as pending, by priority, each in arrival order
+     */
+    @NotNull
+    private final TreeMap<Integer, LinkedHashMap<String, Pending>> byPriority = new TreeMap<>();
+    private long nextSequence = 0;
+    private boolean isApplying = false;
+    private boolean isClosed = false;
+    private long offeredCount = 0;
+    private long coalescedCount = 0;
+    private long shedCount = 0;
+    private volatile long appliedCount = 0;
+
+    /**
+     * Construct queue and start its writer thread
+     * @param collection collection to apply positions to
+     * @param capacity most vehicles that can be waiting
+     * @param policy what to shed when full
+     */
+    public VehiclePositionIngestQueue(@NotNull VehiclePositionCollection collection, int capacity,
+                                      @NotNull OverloadPolicy policy) {
+        this(collection, capacity, policy, FeedIngestScheduler.daemonThreadFactory("position-ingest"));
+    }
+
+    /**
+     * Construct queue and start its writer thread
+     * @param collection collection to apply positions to
+     * @param capacity most vehicles that can be waiting
+     * @param policy what to shed when full
+     * @param threadFactory creates the writer thread
+     */
+    public VehiclePositionIngestQueue(@NotNull VehiclePositionCollection collection, int capacity,
+                                      @NotNull OverloadPolicy policy, @NotNull ThreadFactory threadFactory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.collection = collection;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.writer = threadFactory.newThread(this::run);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a position
+     * @param vehiclePosition position
+     * @param priority priority of the position's feed; higher is more important
+     * @return false if the position was shed, or is not newer than the one
+     *         already waiting for its vehicle
+     */
+    public boolean offer(@NotNull VehiclePosition vehiclePosition, int priority) {
+        return this.offer(vehiclePosition.getVehicle().getId(), vehiclePosition, priority);
+    }
+
+    /**
+     * Queue the removal of a vehicle
+     * @param vehicleId vehicle ID
+     * @param priority priority of the removal's feed; higher is more important
+     * @return false if the removal was shed
+     */
+    public boolean offerRemoval(@NotNull String vehicleId, int priority) {
+        return this.offer(vehicleId, null, priority);
+    }
+
+    /**
+     * Queue a position or a removal
+     * @param vehicleId vehicle ID
+     * @param vehiclePosition position, or null to remove the vehicle
+     * @param priority priority of the feed; higher is more important
+     * @return false if shed, or if the position is not newer than the one
+     *         already waiting for its vehicle
+     */
+    private boolean offer(@NotNull String vehicleId, @Nullable VehiclePosition vehiclePosition, int priority) {
+        synchronized (this.lock) {
+            if (this.isClosed) {
+                throw new IllegalStateException("ingest queue is closed");
+            }
+            this.offeredCount++;
+            Pending current = this.pending.get(vehicleId);
+            if (current != null) {
+                this.coalescedCount++;
+                if (vehiclePosition == null) {
+                    // the removal supersedes whatever was waiting
+                    current.isRemoval = true;
+                } else if (current.position != null
+                        && !vehiclePosition.getTimestamp().isAfter(current.position.getTimestamp())) {
+                    this.collection.getMetrics().positionDropped(TransitMetrics.DropReason.OUT_OF_ORDER);
+                    return false;
+                }
+                current.position = vehiclePosition;
+                if (priority > current.priority) {
+                    this.removeFromPriority(vehicleId, current.priority);
+                    current.priority = priority;
+                    this.priorityQueue(priority).put(vehicleId, current);
+                }
+                return true;
+            }
+            if (this.pending.size() >= this.capacity && !this.shedFor(priority)) {
+                this.shedCount++;
+                this.collection.getMetrics().positionDropped(TransitMetrics.DropReason.SHED);
+                return false;
+            }
+            Pending entry = new Pending(vehicleId, vehiclePosition, vehiclePosition == null, priority,
+                    this.nextSequence++);
+            this.pending.put(vehicleId, entry);
+            this.priorityQueue(priority).put(vehicleId, entry);
+            this.lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Queue the positions and vehicle deletions of a feed message
+     * @param feedMessage feed message
+     * @param priority priority of the feed; higher is more important
+     * @return number of positions and removals queued
+     */
+    public int offer(@NotNull GtfsRealtime.FeedMessage feedMessage, int priority) {
+        int queuedCount = 0;
+        for (GtfsRealtime.FeedEntity entity: feedMessage.getEntityList()) {
+            if (this.offer(entity, priority)) {
+                queuedCount++;
+            }
+        }
+        return queuedCount;
+    }
+
+    /**
+     * Queue the positions and vehicle deletions of a feed, decoding it on
+     * the calling thread
+     * @param inputStream serialized feed message
+     * @param priority priority of the feed; higher is more important
+     * @return number of positions and removals queued
+     * @throws IOException if unable to read the feed
+     */
+    public int offer(@NotNull InputStream inputStream, int priority) throws IOException {
+        FeedMessageReader reader = new FeedMessageReader(inputStream);
+        int queuedCount = 0;
+        GtfsRealtime.FeedEntity entity;
+        while ((entity = reader.next()) != null) {
+            if (this.offer(entity, priority)) {
+                queuedCount++;
+            }
+        }
+        return queuedCount;
+    }
+
+    /**
+     * Queue the position a feed entity carries, or the vehicle it deletes
+     * @param entity feed entity
+     * @param priority priority of the feed; higher is more important
+     * @return true if queued
+     */
+    private boolean offer(@NotNull GtfsRealtime.FeedEntity entity, int priority) {
+        VehiclePosition vehiclePosition = VehiclePositionCollection.fromFeedEntity(entity);
+        if (vehiclePosition != null) {
+            return this.offer(vehiclePosition, priority);
+        }
+        String deletedId = VehiclePositionCollection.deletedVehicleId(entity);
+        return deletedId != null && this.offerRemoval(deletedId, priority);
+    }
+
+    /**
+     * Make room for a position by shedding one that is waiting
+     * @param priority priority of the incoming position
+     * @return false if the incoming position should be shed instead
+     */
+    private boolean shedFor(int priority) {
+        Map.Entry<String, Pending> victim = null;
+        if (this.policy == OverloadPolicy.DROP_OLDEST) {
+            // the oldest is at the head of one of the priority queues
+            for (LinkedHashMap<String, Pending> queue: this.byPriority.values()) {
+                Map.Entry<String, Pending> head = queue.entrySet().iterator().next();
+                if (victim == null || head.getValue().sequence < victim.getValue().sequence) {
+                    victim = head;
+                }
+            }
+        } else {
+            Map.Entry<Integer, LinkedHashMap<String, Pending>> lowest = this.byPriority.firstEntry();
+            if (lowest.getKey() >= priority) {
+                return false;
+            }
+            victim = lowest.getValue().entrySet().iterator().next();
+        }
+        //noinspection ConstantConditions
+        String vehicleId = victim.getKey();
+        this.removeFromPriority(vehicleId, victim.getValue().priority);
+        this.pending.remove(vehicleId);
+        this.shedCount++;
+        this.collection.getMetrics().positionDropped(TransitMetrics.DropReason.SHED);
+        return true;
+    }
+
+    @NotNull
+    private LinkedHashMap<String, Pending> priorityQueue(int priority) {
+        return this.byPriority.computeIfAbsent(priority, key -> new LinkedHashMap<>());
+    }
+
+    private void removeFromPriority(@NotNull String vehicleId, int priority) {
+        LinkedHashMap<String, Pending> queue = this.byPriority.get(priority);
+        queue.remove(vehicleId);
+        if (queue.isEmpty()) {
+            this.byPriority.remove(priority);
+        }
+    }
+
+    /**
+     * Writer loop: take everything waiting and apply it, highest priority first
+     */
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this.lock) {
+                while (this.pending.isEmpty() && !this.isClosed) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (this.pending.isEmpty()) {
+                    // closed, and nothing left to apply
+                    return;
+                }
+                for (LinkedHashMap<String, Pending> queue: this.byPriority.descendingMap().values()) {
+                    batch.addAll(queue.values());
+                }
+                this.pending.clear();
+                this.byPriority.clear();
+                this.isApplying = true;
+            }
+            try {
+                Instant staleTimestamp = Instant.now().minus(this.collection.getStaleAge());
+                for (Pending entry: batch) {
+                    if (entry.isRemoval) {
+                        this.collection.removeVehicle(entry.vehicleId);
+                    }
+                    if (entry.position != null) {
+                        this.collection.put(entry.position, staleTimestamp);
+                    }
+                }
+                this.collection.publishSnapshot();
+            } catch (RuntimeException e) {
+                logger.error("Failed to apply queued positions", e);
+            } finally {
+                this.appliedCount += batch.size();
+                batch.clear();
+                synchronized (this.lock) {
+                    this.isApplying = false;
+                    this.lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until every position and removal queued so far has been applied or shed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        synchronized (this.lock) {
+            while ((!this.pending.isEmpty() && this.writer.isAlive()) || this.isApplying) {
+                this.lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting positions, apply those already queued, and stop the
+     * writer thread
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this.lock) {
+            this.isClosed = true;
+            this.lock.notifyAll();
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the number of vehicles with a position or removal waiting
+     * @return queue depth
+     */
+    public int getPendingCount() {
+        synchronized (this.lock) {
+            return pending.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @NotNull
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getOfferedCount() {
+        synchronized (this.lock) {
+            return offeredCount;
+        }
+    }
+
+    /**
+     * Get the number of positions offered for a vehicle that already had one
+     * waiting, whether they replaced it or were older and dropped
+     * @return coalesced count
+     */
+    public long getCoalescedCount() {
+        synchronized (this.lock) {
+            return coalescedCount;
+        }
+    }
+
+    public long getShedCount() {
+        synchronized (this.lock) {
+            return shedCount;
+        }
+    }
+
+    /**
+     * Get the number of positions and removals passed to the collection; some of these
+     * may have been dropped there as stale or out of order
+     * @return applied count
+     */
+    public long getAppliedCount() {
+        return appliedCount;
+    }
+
+    /**
+     * A vehicle waiting for its position, its removal, or its removal and then
+     * its position, to be applied
+     */
+    private static final class Pending {
+        @NotNull
+        private final String vehicleId;
+        @Nullable
+        private VehiclePosition position;
+        private boolean isRemoval;
+        private int priority;
+        private final long sequence;
+
+        private Pending(@NotNull String vehicleId, @Nullable VehiclePosition position, boolean isRemoval,
+                        int priority, long sequence) {
+            this.vehicleId = vehicleId;
+            this.position = position;
+            this.isRemoval = isRemoval;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
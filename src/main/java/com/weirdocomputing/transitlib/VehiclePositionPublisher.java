@@ -0,0 +1,292 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Publishes batches of changes to a VehiclePositionCollection
+ *
+ * Changes are handed to each subscriber through a lock-free queue, so that
+ * writers never wait for one another or for subscribers. Delivery moves
+ * them into the subscriber's buffer of pending changes, which holds at most
+ * one change per vehicle: a change to a vehicle that already has one
+ * pending is combined with it, so a subscriber that falls behind sees the
+ * net change.
+ * Batches are delivered on the executor, at most maxBatchSize changes per
+ * batch and one batch per unit of demand. A subscriber whose buffer grows
+ * past maxPending vehicles is sent onError and cancelled.
+ */
+public class VehiclePositionPublisher implements Flow.Publisher<List<VehiclePositionChange>> {
+    private static final Logger logger = LoggerFactory.getLogger(VehiclePositionPublisher.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    public static final int DEFAULT_MAX_PENDING = 1 << 20;
+
+    @NotNull
+    private final Executor executor;
+    private final int maxBatchSize;
+    private final int maxPending;
+    @NotNull
+    private final CopyOnWriteArrayList<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean isClosed = false;
+
+    /**
+     * Construct publisher that delivers on the common pool
+     */
+    public VehiclePositionPublisher() {
+        this(ForkJoinPool.commonPool(), DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * Construct publisher
+     * @param executor executor on which to deliver to subscribers
+     * @param maxBatchSize most changes in one batch
+     * @param maxPending most vehicles with undelivered changes, per subscriber
+     */
+    public VehiclePositionPublisher(@NotNull Executor executor, int maxBatchSize, int maxPending) {
+        if (maxBatchSize < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("maxBatchSize and maxPending must be positive");
+        }
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<VehiclePositionChange>> subscriber) {
+        ChangeSubscription subscription = new ChangeSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (this.isClosed) {
+            subscription.complete();
+        } else {
+            this.subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Get whether anyone is subscribed
+     * @return true if there are subscribers
+     */
+    boolean hasSubscribers() {
+        return !this.subscriptions.isEmpty();
+    }
+
+    /**
+     * Queue a change for every subscriber, without blocking.
+     * Called while the collection holds the lock for the vehicle's entry,
+     * so changes to any one vehicle are queued in order. Call deliver()
+     * once the lock is released.
+     * @param change change
+     */
+    void publish(@NotNull VehiclePositionChange change) {
+        for (ChangeSubscription subscription: this.subscriptions) {
+            subscription.inbox.add(change);
+        }
+    }
+
+    /**
+     * Start delivering queued changes to subscribers that have any
+     */
+    void deliver() {
+        for (ChangeSubscription subscription: this.subscriptions) {
+            if (!subscription.inbox.isEmpty()) {
+                subscription.scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Complete every subscription once its pending changes are delivered,
+     * and complete later subscribers immediately
+     */
+    public void close() {
+        this.isClosed = true;
+        for (ChangeSubscription subscription: this.subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Delivery state for one subscriber
+     */
+    private final class ChangeSubscription implements Flow.Subscription {
+        @NotNull
+        private final Flow.Subscriber<? super List<VehiclePositionChange>> subscriber;
+
+        /**
+         * Changes published and not yet moved to pending
+         */
+        @NotNull
+        private final ConcurrentLinkedQueue<VehiclePositionChange> inbox = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Pending changes in the order their vehicles first changed, indexed
+         * by vehicle ID; guarded by this
+         */
+        @NotNull
+        private final LinkedHashMap<String, VehiclePositionChange> pending = new LinkedHashMap<>();
+        private long demand = 0;
+        private boolean isCompleting = false;
+        private boolean isDone = false;
+        private Throwable error = null;
+
+        /**
+         * Count of drain requests; only the thread that raises it from zero drains
+         */
+        @NotNull
+        private final AtomicInteger drainRequests = new AtomicInteger();
+
+        private ChangeSubscription(@NotNull Flow.Subscriber<? super List<VehiclePositionChange>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Move changes from the inbox to pending, combining them with those
+         * already pending. Called by drain() with this locked.
+         */
+        private void takeInbox() {
+            VehiclePositionChange change;
+            while ((change = this.inbox.poll()) != null) {
+                if (this.isDone || this.error != null) {
+                    continue;
+                }
+                VehiclePositionChange previous = this.pending.get(change.getVehicleId());
+                if (previous == null) {
+                    if (this.pending.size() >= maxPending) {
+                        this.error = new IllegalStateException(String.format(
+                                "subscriber fell more than %d vehicles behind", maxPending));
+                        this.pending.clear();
+                    } else {
+                        this.pending.put(change.getVehicleId(), change);
+                    }
+                } else {
+                    VehiclePositionChange net = previous.coalesce(change);
+                    if (net == null) {
+                        this.pending.remove(change.getVehicleId());
+                    } else {
+                        // replacing a value keeps the vehicle's place in the order
+                        this.pending.put(change.getVehicleId(), net);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    this.error = new IllegalArgumentException("request must be positive");
+                    this.pending.clear();
+                } else {
+                    this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+                }
+            }
+            this.scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                this.isDone = true;
+                this.pending.clear();
+            }
+            subscriptions.remove(this);
+            this.inbox.clear();
+        }
+
+        private void complete() {
+            synchronized (this) {
+                this.isCompleting = true;
+            }
+            this.scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (this.drainRequests.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RuntimeException e) {
+                    logger.error("unable to deliver vehicle position changes: {}", e.toString());
+                    this.drainRequests.set(0);
+                }
+            }
+        }
+
+        /**
+         * Take in published changes, deliver batches while there is demand,
+         * then any terminal signal
+         */
+        private void drain() {
+            int requests = this.drainRequests.get();
+            while (true) {
+                List<VehiclePositionChange> batch = null;
+                Throwable error = null;
+                boolean isComplete = false;
+                synchronized (this) {
+                    if (this.isDone) {
+                        this.inbox.clear();
+                        return;
+                    }
+                    this.takeInbox();
+                    if (this.error != null) {
+                        error = this.error;
+                        this.isDone = true;
+                    } else if (this.demand > 0 && !this.pending.isEmpty()) {
+                        batch = new ArrayList<>(Math.min(maxBatchSize, this.pending.size()));
+                        Iterator<VehiclePositionChange> iterator = this.pending.values().iterator();
+                        while (batch.size() < maxBatchSize && iterator.hasNext()) {
+                            batch.add(iterator.next());
+                            iterator.remove();
+                        }
+                        this.demand--;
+                    } else if (this.isCompleting && this.pending.isEmpty()) {
+                        isComplete = true;
+                        this.isDone = true;
+                    }
+                }
+                if (error != null) {
+                    subscriptions.remove(this);
+                    this.subscriber.onError(error);
+                    return;
+                }
+                if (isComplete) {
+                    subscriptions.remove(this);
+                    this.subscriber.onComplete();
+                    return;
+                }
+                if (batch != null) {
+                    try {
+                        this.subscriber.onNext(batch);
+                    } catch (Throwable t) {
+                        logger.warn("subscriber failed; cancelled: {}", t.toString());
+                        this.cancel();
+                        return;
+                    }
+                    continue;
+                }
+                // nothing to do; stop unless more was requested meanwhile
+                int remaining = this.drainRequests.addAndGet(-requests);
+                if (remaining == 0) {
+                    return;
+                }
+                requests = remaining;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Applies positions to a VehiclePositionCollection in parallel
+ *
+ * Positions are split into shards by vehicle ID, keeping their order within
+ * each shard, and each shard is applied by one task. Every position for a
+ * vehicle is applied by the same task, in array order, so the result is the
+ * same as applying the whole array on one thread.
+ */
+final class VehiclePositionShards {
+    /**
+     * Arrays smaller than this are not worth splitting
+     */
+    static final int SEQUENTIAL_THRESHOLD = 4096;
+
+    /**
+     * More shards than threads, so that a slow shard does not hold up the rest
+     */
+    private static final int SHARDS_PER_THREAD = 8;
+
+    /**
+     * Positions per task when computing shards
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private VehiclePositionShards() {
+    }
+
+    /**
+     * Apply positions in parallel
+     * @param collection collection to apply them to
+     * @param positions positions, in the order they would be applied on one thread
+     * @param staleTimestamp positions timestamped before this are discarded
+     * @param pool pool to run on
+     * @param result collection to record the positions stored, as update() returns, or null
+     */
+    static void putAll(@NotNull VehiclePositionCollection collection, @NotNull VehiclePosition[] positions,
+                       @NotNull Instant staleTimestamp, @NotNull ForkJoinPool pool,
+                       @Nullable VehiclePositionCollection result) {
+        int shardCount = pool.getParallelism() * SHARDS_PER_THREAD;
+        int[] shards = new int[positions.length];
+        pool.invoke(new ShardTask(positions, shards, shardCount, 0, positions.length));
+
+        // counting sort of the array indexes by shard, stable within each shard
+        int[] starts = new int[shardCount + 1];
+        for (int shard: shards) {
+            starts[shard + 1]++;
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            starts[shard + 1] += starts[shard];
+        }
+        int[] next = starts.clone();
+        int[] order = new int[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            order[next[shards[i]]++] = i;
+        }
+
+        pool.invoke(new ApplyTask(collection, result, positions, order, starts, staleTimestamp, 0, shardCount));
+    }
+
+    /**
+     * Computes the shard of each position in a range
+     */
+    private static final class ShardTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final VehiclePosition[] positions;
+        private final int[] shards;
+        private final int shardCount;
+        private final int from;
+        private final int to;
+
+        private ShardTask(VehiclePosition[] positions, int[] shards, int shardCount, int from, int to) {
+            this.positions = positions;
+            this.shards = shards;
+            this.shardCount = shardCount;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > CHUNK_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new ShardTask(this.positions, this.shards, this.shardCount, this.from, middle),
+                        new ShardTask(this.positions, this.shards, this.shardCount, middle, this.to));
+                return;
+            }
+            for (int i = this.from; i < this.to; i++) {
+                int h = this.positions[i].getGoogleVehiclePosition().getVehicle().getId().hashCode();
+                this.shards[i] = ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % this.shardCount;
+            }
+        }
+    }
+
+    /**
+     * Applies the positions of a range of shards
+     */
+    private static final class ApplyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final VehiclePositionCollection collection;
+        private final VehiclePositionCollection result;
+        private final VehiclePosition[] positions;
+        private final int[] order;
+        private final int[] starts;
+        private final Instant staleTimestamp;
+        private final int fromShard;
+        private final int toShard;
+
+        private ApplyTask(VehiclePositionCollection collection, VehiclePositionCollection result,
+                          VehiclePosition[] positions, int[] order, int[] starts, Instant staleTimestamp,
+                          int fromShard, int toShard) {
+            this.collection = collection;
+            this.result = result;
+            this.positions = positions;
+            this.order = order;
+            this.starts = starts;
+            this.staleTimestamp = staleTimestamp;
+            this.fromShard = fromShard;
+            this.toShard = toShard;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.toShard - this.fromShard > 1) {
+                int middle = (this.fromShard + this.toShard) >>> 1;
+                invokeAll(new ApplyTask(this.collection, this.result, this.positions, this.order, this.starts,
+                                this.staleTimestamp, this.fromShard, middle),
+                        new ApplyTask(this.collection, this.result, this.positions, this.order, this.starts,
+                                this.staleTimestamp, middle, this.toShard));
+                return;
+            }
+            for (int i = this.starts[this.fromShard]; i < this.starts[this.toShard]; i++) {
+                VehiclePosition stored = this.collection.store(this.positions[this.order[i]], this.staleTimestamp);
+                if (stored != null && this.result != null) {
+                    this.result.addStored(stored);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.weirdocomputing.transitlib;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Immutable view of a VehiclePositionCollection at one moment
+ *
+ * Snapshots are persistent hash tries: each change applied to a snapshot
+ * builds a new trie that shares all but one path with the last, so bringing
+ * a snapshot up to date costs only the changes since, and a snapshot stays
+ * valid, unchanged, however long it is held. Get one from
+ * VehiclePositionCollection.snapshot().
+ */
+public final class VehiclePositionSnapshot {
+    static final VehiclePositionSnapshot EMPTY = new VehiclePositionSnapshot(null, 0, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    @Nullable
+    private final Node root;
+    private final int size;
+    private final long version;
+
+    private VehiclePositionSnapshot(@Nullable Node root, int size, long version) {
+        this.root = root;
+        this.size = size;
+        this.version = version;
+    }
+
+    /**
+     * Get a snapshot with a position added or replaced
+     * @param vehicleId vehicle ID
+     * @param position position
+     * @param changeVersion collection version of the change
+     * @return new snapshot
+     */
+    @NotNull
+    VehiclePositionSnapshot with(@NotNull String vehicleId, @NotNull VehiclePosition position, long changeVersion) {
+        boolean[] added = {false};
+        Node node = this.root == null ? BitmapNode.EMPTY : this.root;
+        Node newRoot = node.put(0, hash(vehicleId), vehicleId, position, added);
+        return new VehiclePositionSnapshot(newRoot, this.size + (added[0] ? 1 : 0),
+                Math.max(this.version, changeVersion));
+    }
+
+    /**
+     * Get a snapshot with a position removed
+     * @param vehicleId vehicle ID
+     * @param changeVersion collection version of the change
+     * @return new snapshot, or this one if the vehicle is not present
+     */
+    @NotNull
+    VehiclePositionSnapshot without(@NotNull String vehicleId, long changeVersion) {
+        if (this.root == null) {
+            return this;
+        }
+        boolean[] removed = {false};
+        Node newRoot = this.root.remove(0, hash(vehicleId), vehicleId, removed);
+        if (!removed[0]) {
+            return this;
+        }
+        return new VehiclePositionSnapshot(newRoot, this.size - 1, Math.max(this.version, changeVersion));
+    }
+
+    /**
+     * Get this snapshot labelled as reflecting a collection version
+     * @param version collection version
+     * @return snapshot with the same positions
+     */
+    @NotNull
+    VehiclePositionSnapshot atVersion(long version) {
+        return version == this.version ? this : new VehiclePositionSnapshot(this.root, this.size, version);
+    }
+
+    /**
+     * Get a vehicle's position
+     * @param vehicleId vehicle ID
+     * @return position, or null if the vehicle is not present
+     */
+    @Nullable
+    public VehiclePosition get(@NotNull String vehicleId) {
+        return this.root == null ? null : this.root.get(0, hash(vehicleId), vehicleId);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the collection version the snapshot reflects
+     * @return version, comparable with VehiclePositionCollection.getVersion()
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Visit every position, in no particular order
+     * @param action action
+     */
+    public void forEach(@NotNull Consumer<VehiclePosition> action) {
+        if (this.root != null) {
+            this.root.forEach(action);
+        }
+    }
+
+    /**
+     * Get every position, in no particular order
+     * @return new list of positions
+     */
+    @NotNull
+    public List<VehiclePosition> values() {
+        List<VehiclePosition> values = new ArrayList<>(this.size);
+        this.forEach(values::add);
+        return values;
+    }
+
+    /**
+     * Serialize as a protobuf feed message
+     * @return FULL_DATASET feed message
+     */
+    @NotNull
+    public GtfsRealtime.FeedMessage toFeedMessage() {
+        return VehiclePositionCollection.buildFeedMessage(this.values(), false);
+    }
+
+    /**
+     * Serialize to JSON, writing the same output as
+     * VehiclePositionCollection.writeJson()
+     * @param g JSON generator
+     * @throws IOException if unable to write
+     */
+    public void writeJson(@NotNull JsonGenerator g) throws IOException {
+        g.writeStartArray();
+        for (VehiclePosition position: this.values()) {
+            position.writeJson(g);
+        }
+        g.writeEndArray();
+    }
+
+    private static int hash(@NotNull String vehicleId) {
+        return vehicleId.hashCode();
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /**
+     * Trie node; nodes are never modified once built
+     */
+    private interface Node {
+        @NotNull
+        Node put(int shift, int hash, @NotNull String key, @NotNull VehiclePosition value, boolean[] added);
+
+        @Nullable
+        Node remove(int shift, int hash, @NotNull String key, boolean[] removed);
+
+        @Nullable
+        VehiclePosition get(int shift, int hash, @NotNull String key);
+
+        void forEach(@NotNull Consumer<VehiclePosition> action);
+    }
+
+    /**
+     * Node with up to 32 slots, of which only those present are stored.
+     * Each slot is a key and position pair, or a null key and a child node.
+     */
+    private static final class BitmapNode implements Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        @NotNull
+        private final Object[] array;
+
+        private BitmapNode(int bitmap, @NotNull Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(this.bitmap & (bit - 1));
+        }
+
+        @NotNull
+        @Override
+        public Node put(int shift, int hash, @NotNull String key, @NotNull VehiclePosition value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = 2 * this.index(bit);
+            if ((this.bitmap & bit) == 0) {
+                Object[] newArray = new Object[this.array.length + 2];
+                System.arraycopy(this.array, 0, newArray, 0, i);
+                newArray[i] = key;
+                newArray[i + 1] = value;
+                System.arraycopy(this.array, i, newArray, i + 2, this.array.length - i);
+                added[0] = true;
+                return new BitmapNode(this.bitmap | bit, newArray);
+            }
+            Object slotKey = this.array[i];
+            Object slotValue = this.array[i + 1];
+            Object newValue;
+            if (slotKey == null) {
+                newValue = ((Node) slotValue).put(shift + BITS, hash, key, value, added);
+            } else if (key.equals(slotKey)) {
+                newValue = value;
+            } else {
+                // two keys in one slot: push both down into a new node
+                newValue = newNode(shift + BITS, (String) slotKey, (VehiclePosition) slotValue, hash, key, value);
+                added[0] = true;
+            }
+            if (newValue == slotValue) {
+                return this;
+            }
+            Object[] newArray = this.array.clone();
+            if (slotKey != null && newValue instanceof Node) {
+                newArray[i] = null;
+            }
+            newArray[i + 1] = newValue;
+            return new BitmapNode(this.bitmap, newArray);
+        }
+
+        @Nullable
+        @Override
+        public Node remove(int shift, int hash, @NotNull String key, boolean[] removed) {
+            int bit = bit(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * this.index(bit);
+            Object slotKey = this.array[i];
+            Object slotValue = this.array[i + 1];
+            if (slotKey == null) {
+                Node child = ((Node) slotValue).remove(shift + BITS, hash, key, removed);
+                if (child == slotValue) {
+                    return this;
+                }
+                if (child != null) {
+                    Object[] newArray = this.array.clone();
+                    newArray[i + 1] = child;
+                    return new BitmapNode(this.bitmap, newArray);
+                }
+            } else if (key.equals(slotKey)) {
+                removed[0] = true;
+            } else {
+                return this;
+            }
+            // the slot is now empty
+            if (this.bitmap == bit) {
+                return null;
+            }
+            Object[] newArray = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, newArray, 0, i);
+            System.arraycopy(this.array, i + 2, newArray, i, newArray.length - i);
+            return new BitmapNode(this.bitmap ^ bit, newArray);
+        }
+
+        @Nullable
+        @Override
+        public VehiclePosition get(int shift, int hash, @NotNull String key) {
+            int bit = bit(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * this.index(bit);
+            Object slotKey = this.array[i];
+            if (slotKey == null) {
+                return ((Node) this.array[i + 1]).get(shift + BITS, hash, key);
+            }
+            return key.equals(slotKey) ? (VehiclePosition) this.array[i + 1] : null;
+        }
+
+        @Override
+        public void forEach(@NotNull Consumer<VehiclePosition> action) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (this.array[i] == null) {
+                    ((Node) this.array[i + 1]).forEach(action);
+                } else {
+                    action.accept((VehiclePosition) this.array[i + 1]);
+                }
+            }
+        }
+
+        /**
+         * Build a node holding two entries
+         */
+        @NotNull
+        private static Node newNode(int shift, @NotNull String key1, @NotNull VehiclePosition value1,
+                                    int hash2, @NotNull String key2, @NotNull VehiclePosition value2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+            }
+            boolean[] added = {false};
+            return EMPTY.put(shift, hash1, key1, value1, added).put(shift, hash2, key2, value2, added);
+        }
+    }
+
+    /**
+     * Node for keys whose hashes are equal in all 32 bits
+     */
+    private static final class CollisionNode implements Node {
+        private final int hash;
+        @NotNull
+        private final Object[] array;
+
+        private CollisionNode(int hash, @NotNull Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(@NotNull String key) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (key.equals(this.array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @NotNull
+        @Override
+        public Node put(int shift, int hash, @NotNull String key, @NotNull VehiclePosition value, boolean[] added) {
+            if (hash != this.hash) {
+                // a key that only shares a prefix: put this node under a bitmap node
+                return new BitmapNode(bit(this.hash, shift), new Object[] {null, this})
+                        .put(shift, hash, key, value, added);
+            }
+            int i = this.find(key);
+            if (i >= 0) {
+                if (this.array[i + 1] == value) {
+                    return this;
+                }
+                Object[] newArray = this.array.clone();
+                newArray[i + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            Object[] newArray = new Object[this.array.length + 2];
+            System.arraycopy(this.array, 0, newArray, 0, this.array.length);
+            newArray[this.array.length] = key;
+            newArray[this.array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Nullable
+        @Override
+        public Node remove(int shift, int hash, @NotNull String key, boolean[] removed) {
+            int i = hash == this.hash ? this.find(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            removed[0] = true;
+            if (this.array.length == 2) {
+                return null;
+            }
+            Object[] newArray = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, newArray, 0, i);
+            System.arraycopy(this.array, i + 2, newArray, i, newArray.length - i);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Nullable
+        @Override
+        public VehiclePosition get(int shift, int hash, @NotNull String key) {
+            int i = hash == this.hash ? this.find(key) : -1;
+            return i < 0 ? null : (VehiclePosition) this.array[i + 1];
+        }
+
+        @Override
+        public void forEach(@NotNull Consumer<VehiclePosition> action) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                action.accept((VehiclePosition) this.array[i + 1]);
+            }
+        }
+    }
+}
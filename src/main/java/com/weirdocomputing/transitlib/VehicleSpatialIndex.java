@@ -0,0 +1,500 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Grid index of vehicle positions for bounding box, radius and nearest
+ * neighbor queries
+ *
+ * Positions are bucketed into cells of a fixed size in degrees. Cells are
+ * looked up by their primitive long key without taking a lock, and a
+ * vehicle that stays in its cell is swapped in place; only adding a cell
+ * or dropping an empty one takes the index's lock. Updates for any one
+ * vehicle must not run concurrently (VehiclePositionCollection makes them
+ * under the entry's map lock); queries may run at any time and see a
+ * weakly consistent view.
+ */
+class VehicleSpatialIndex {
+    /**
+     * Default cell size, about 1.1 km north to south
+     */
+    static final double DEFAULT_CELL_DEGREES = 0.01;
+
+    /**
+     * Mean radius of the earth
+     */
+    private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+
+    /**
+     * Cell key of a position without a location
+     */
+    private static final long NO_CELL = -1;
+    private static final int MIN_TABLE_SIZE = 64;
+
+    private final double cellDegrees;
+    private final int rowCount;
+    private final int columnCount;
+
+    /**
+     * Non-empty cells, in chains hashed by cell key. Chains are never
+     * modified, only replaced, under this index's lock.
+     */
+    @NotNull
+    private volatile AtomicReferenceArray<CellNode> cellTable = new AtomicReferenceArray<>(MIN_TABLE_SIZE);
+    private volatile int cellCount = 0;
+
+    VehicleSpatialIndex() {
+        this(DEFAULT_CELL_DEGREES);
+    }
+
+    VehicleSpatialIndex(double cellDegrees) {
+        if (!(cellDegrees > 0 && cellDegrees <= 180)) {
+            throw new IllegalArgumentException("cellDegrees must be greater than 0 and at most 180");
+        }
+        this.cellDegrees = cellDegrees;
+        this.rowCount = (int) Math.ceil(180 / cellDegrees);
+        this.columnCount = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    /**
+     * Replace a vehicle's previous position, if any, with its new one
+     * @param previous previous position
+     * @param position new position
+     */
+    void put(@Nullable VehiclePosition previous, @NotNull VehiclePosition position) {
+        long key = this.cellKey(position);
+        if (previous != null) {
+            if (key != NO_CELL && key == this.cellKey(previous)) {
+                // same cell: swap in place, without locking the cell.
+                // The cell cannot empty and be dropped meanwhile, because
+                // only this vehicle's updates remove its previous position.
+                Cell cell = this.findCell(key);
+                if (cell != null && cell.positions.contains(previous)) {
+                    cell.positions.add(position);
+                    cell.positions.remove(previous);
+                    return;
+                }
+            }
+            this.remove(previous);
+        }
+        if (key != NO_CELL) {
+            Cell cell = this.findCell(key);
+            if (cell == null || !cell.add(position)) {
+                this.addToNewCell(key, position);
+            }
+        }
+    }
+
+    /**
+     * Remove a vehicle's position
+     * @param position position to remove
+     */
+    void remove(@NotNull VehiclePosition position) {
+        long key = this.cellKey(position);
+        if (key != NO_CELL) {
+            Cell cell = this.findCell(key);
+            if (cell != null && cell.remove(position)) {
+                this.dropIfEmpty(cell);
+            }
+        }
+    }
+
+    /**
+     * Add a position to its cell, adding the cell if it is not in the table
+     * @param key cell key
+     * @param position position to add
+     */
+    private synchronized void addToNewCell(long key, @NotNull VehiclePosition position) {
+        Cell cell = this.findCell(key);
+        if (cell == null) {
+            cell = new Cell(key);
+            AtomicReferenceArray<CellNode> table = this.cellTable;
+            if (this.cellCount >= table.length() / 4 * 3) {
+                table = this.resize(table.length() * 2);
+            }
+            int i = slot(key, table.length());
+            table.set(i, new CellNode(cell, table.get(i)));
+            this.cellCount++;
+        }
+        // dropping a cell takes this lock, so the one just found stays
+        cell.add(position);
+    }
+
+    /**
+     * Drop a cell from the table if it is still empty
+     * @param cell cell
+     */
+    private synchronized void dropIfEmpty(@NotNull Cell cell) {
+        synchronized (cell) {
+            if (cell.isDropped || !cell.positions.isEmpty()) {
+                return;
+            }
+            cell.isDropped = true;
+        }
+        AtomicReferenceArray<CellNode> table = this.cellTable;
+        int i = slot(cell.key, table.length());
+        table.set(i, without(table.get(i), cell));
+        this.cellCount--;
+    }
+
+    /**
+     * Copy the cell table into a new one
+     * @param size new table size, a power of two
+     * @return new table
+     */
+    @NotNull
+    private AtomicReferenceArray<CellNode> resize(int size) {
+        AtomicReferenceArray<CellNode> table = this.cellTable;
+        AtomicReferenceArray<CellNode> newTable = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < table.length(); i++) {
+            for (CellNode node = table.get(i); node != null; node = node.next) {
+                int j = slot(node.cell.key, size);
+                newTable.set(j, new CellNode(node.cell, newTable.get(j)));
+            }
+        }
+        this.cellTable = newTable;
+        return newTable;
+    }
+
+    @Nullable
+    private static CellNode without(@Nullable CellNode node, @NotNull Cell cell) {
+        if (node == null) {
+            return null;
+        }
+        return node.cell == cell ? node.next : new CellNode(node.cell, without(node.next, cell));
+    }
+
+    /**
+     * Look up a cell, without locking
+     * @param key cell key
+     * @return cell, or null if it has no positions
+     */
+    @Nullable
+    private Cell findCell(long key) {
+        AtomicReferenceArray<CellNode> table = this.cellTable;
+        for (CellNode node = table.get(slot(key, table.length())); node != null; node = node.next) {
+            if (node.cell.key == key) {
+                return node.cell;
+            }
+        }
+        return null;
+    }
+
+    private static int slot(long key, int tableSize) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (tableSize - 1);
+    }
+
+    /**
+     * Find positions within a bounding box. If minLongitude is greater than
+     * maxLongitude, the box crosses the 180th meridian.
+     * @param minLatitude southern edge
+     * @param minLongitude western edge
+     * @param maxLatitude northern edge
+     * @param maxLongitude eastern edge
+     * @return positions in the box, in no particular order
+     */
+    @NotNull
+    List<VehiclePosition> findWithin(double minLatitude, double minLongitude,
+                                     double maxLatitude, double maxLongitude) {
+        List<VehiclePosition> result = new ArrayList<>();
+        if (minLongitude > maxLongitude) {
+            this.findWithin(minLatitude, minLongitude, maxLatitude, 180, result);
+            this.findWithin(minLatitude, -180, maxLatitude, maxLongitude, result);
+        } else {
+            this.findWithin(minLatitude, minLongitude, maxLatitude, maxLongitude, result);
+        }
+        return result;
+    }
+
+    private void findWithin(double minLatitude, double minLongitude,
+                            double maxLatitude, double maxLongitude,
+                            @NotNull List<VehiclePosition> result) {
+        if (minLatitude > maxLatitude) {
+            return;
+        }
+        int minRow = row(minLatitude);
+        int maxRow = row(maxLatitude);
+        int minColumn = column(minLongitude);
+        int maxColumn = column(maxLongitude);
+        long boxCellCount = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+        if (boxCellCount > this.cellCount) {
+            // cheaper to visit the occupied cells than every cell in the box
+            AtomicReferenceArray<CellNode> table = this.cellTable;
+            for (int i = 0; i < table.length(); i++) {
+                for (CellNode node = table.get(i); node != null; node = node.next) {
+                    int row = (int) (node.cell.key / this.columnCount);
+                    int column = (int) (node.cell.key % this.columnCount);
+                    if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+                        addWithin(node.cell.positions, minLatitude, minLongitude, maxLatitude, maxLongitude, result);
+                    }
+                }
+            }
+        } else {
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    Cell cell = this.findCell(this.cellKey(row, column));
+                    if (cell != null) {
+                        addWithin(cell.positions, minLatitude, minLongitude, maxLatitude, maxLongitude, result);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addWithin(@NotNull Set<VehiclePosition> cell,
+                                  double minLatitude, double minLongitude,
+                                  double maxLatitude, double maxLongitude,
+                                  @NotNull List<VehiclePosition> result) {
+        for (VehiclePosition position: cell) {
+            GtfsRealtime.Position p = position.getGoogleVehiclePosition().getPosition();
+            if (p.getLatitude() >= minLatitude && p.getLatitude() <= maxLatitude
+                    && p.getLongitude() >= minLongitude && p.getLongitude() <= maxLongitude) {
+                result.add(position);
+            }
+        }
+    }
+
+    /**
+     * Find positions within a distance of a point
+     * @param latitude latitude of the center
+     * @param longitude longitude of the center
+     * @param radiusMeters distance from the center
+     * @return positions within the distance, in no particular order
+     */
+    @NotNull
+    List<VehiclePosition> findWithinRadius(double latitude, double longitude, double radiusMeters) {
+        double latitudeDegrees = radiusMeters / METERS_PER_DEGREE;
+        double minLatitude = Math.max(-90, latitude - latitudeDegrees);
+        double maxLatitude = Math.min(90, latitude + latitudeDegrees);
+        double cosLatitude = Math.cos(Math.toRadians(Math.max(Math.abs(minLatitude), Math.abs(maxLatitude))));
+        double longitudeDegrees = cosLatitude > 0 ? latitudeDegrees / cosLatitude : 360;
+        List<VehiclePosition> candidates;
+        if (longitudeDegrees >= 180) {
+            candidates = this.findWithin(minLatitude, -180, maxLatitude, 180);
+        } else {
+            candidates = this.findWithin(minLatitude, wrapLongitude(longitude - longitudeDegrees),
+                    maxLatitude, wrapLongitude(longitude + longitudeDegrees));
+        }
+        candidates.removeIf(position -> distanceMeters(latitude, longitude, position) > radiusMeters);
+        return candidates;
+    }
+
+    /**
+     * Find the positions nearest to a point
+     * @param latitude latitude of the point
+     * @param longitude longitude of the point
+     * @param count maximum number of positions to find
+     * @return up to count positions, nearest first
+     */
+    @NotNull
+    List<VehiclePosition> findNearest(double latitude, double longitude, int count) {
+        if (count < 1) {
+            return new ArrayList<>();
+        }
+        // the farthest of the nearest candidates so far is at the head
+        PriorityQueue<Neighbor> nearest = new PriorityQueue<>(count + 1,
+                Comparator.comparingDouble((Neighbor n) -> n.distance).reversed());
+        int centerRow = row(latitude);
+        int centerColumn = column(longitude);
+        for (int ring = 0; ring <= Math.max(this.rowCount, this.columnCount); ring++) {
+            if (8L * ring > this.cellCount || 2 * ring + 1 > this.columnCount) {
+                // the rings have grown larger than the occupied cells; search those instead
+                nearest.clear();
+                AtomicReferenceArray<CellNode> table = this.cellTable;
+                for (int i = 0; i < table.length(); i++) {
+                    for (CellNode node = table.get(i); node != null; node = node.next) {
+                        offerNearest(node.cell.positions, latitude, longitude, count, nearest);
+                    }
+                }
+                break;
+            }
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                if (row < 0 || row >= this.rowCount) {
+                    continue;
+                }
+                boolean isEdgeRow = row == centerRow - ring || row == centerRow + ring;
+                for (int column = centerColumn - ring; column <= centerColumn + ring;
+                     column += isEdgeRow || ring == 0 ? 1 : 2 * ring) {
+                    Cell cell = this.findCell(this.cellKey(row, Math.floorMod(column, this.columnCount)));
+                    if (cell != null) {
+                        offerNearest(cell.positions, latitude, longitude, count, nearest);
+                    }
+                }
+            }
+            // stop once nothing outside this ring can be nearer than what we have
+            if (nearest.size() == count && nearest.peek().distance <= this.ringDistance(latitude, ring)) {
+                break;
+            }
+        }
+        List<VehiclePosition> result = new ArrayList<>(nearest.size());
+        while (!nearest.isEmpty()) {
+            result.add(nearest.poll().position);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static void offerNearest(@NotNull Set<VehiclePosition> cell, double latitude, double longitude,
+                                     int count, @NotNull PriorityQueue<Neighbor> nearest) {
+        for (VehiclePosition position: cell) {
+            double distance = distanceMeters(latitude, longitude, position);
+            if (nearest.size() < count) {
+                nearest.add(new Neighbor(position, distance));
+            } else if (distance < nearest.peek().distance) {
+                nearest.poll();
+                nearest.add(new Neighbor(position, distance));
+            }
+        }
+    }
+
+    /**
+     * Get the least distance from a point to any cell outside the given ring
+     * @param latitude latitude of the point
+     * @param ring ring number, counted in cells from the point's cell
+     * @return distance in meters
+     */
+    private double ringDistance(double latitude, int ring) {
+        // east-west cells are narrowest on the side of the ring nearest the pole
+        double poleward = Math.min(90, Math.abs(latitude) + (ring + 1) * this.cellDegrees);
+        return ring * this.cellDegrees * METERS_PER_DEGREE * Math.cos(Math.toRadians(poleward));
+    }
+
+    /**
+     * Get the great circle distance between a point and a position
+     * @param latitude latitude of the point
+     * @param longitude longitude of the point
+     * @param position position
+     * @return distance in meters
+     */
+    static double distanceMeters(double latitude, double longitude, @NotNull VehiclePosition position) {
+        GtfsRealtime.Position p = position.getGoogleVehiclePosition().getPosition();
+        return distanceMeters(latitude, longitude, p.getLatitude(), p.getLongitude());
+    }
+
+    /**
+     * Get the great circle distance between two points
+     * @param latitude1 latitude of the first point
+     * @param longitude1 longitude of the first point
+     * @param latitude2 latitude of the second point
+     * @param longitude2 longitude of the second point
+     * @return distance in meters
+     */
+    static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double lat1 = Math.toRadians(latitude1);
+        double lat2 = Math.toRadians(latitude2);
+        double sinHalfLat = Math.sin((lat2 - lat1) / 2);
+        double sinHalfLon = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinHalfLat * sinHalfLat + Math.cos(lat1) * Math.cos(lat2) * sinHalfLon * sinHalfLon;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static double wrapLongitude(double longitude) {
+        return longitude < -180 ? longitude + 360 : longitude > 180 ? longitude - 360 : longitude;
+    }
+
+    private int row(double latitude) {
+        return Math.max(0, Math.min(this.rowCount - 1, (int) Math.floor((latitude + 90) / this.cellDegrees)));
+    }
+
+    private int column(double longitude) {
+        return Math.max(0, Math.min(this.columnCount - 1, (int) Math.floor((longitude + 180) / this.cellDegrees)));
+    }
+
+    private long cellKey(int row, int column) {
+        return (long) row * this.columnCount + column;
+    }
+
+    private long cellKey(@NotNull VehiclePosition position) {
+        if (!position.getGoogleVehiclePosition().hasPosition()) {
+            return NO_CELL;
+        }
+        GtfsRealtime.Position p = position.getGoogleVehiclePosition().getPosition();
+        return this.cellKey(row(p.getLatitude()), column(p.getLongitude()));
+    }
+
+    /**
+     * The positions in one cell
+     */
+    private static final class Cell {
+        private final long key;
+        @NotNull
+        private final Set<VehiclePosition> positions = ConcurrentHashMap.newKeySet();
+        /**
+         * Whether the cell has been dropped from the table; guarded by the cell
+         */
+        private boolean isDropped = false;
+
+        private Cell(long key) {
+            this.key = key;
+        }
+
+        /**
+         * Add a position, unless the cell has been dropped
+         * @param position position to add
+         * @return false if the cell has been dropped
+         */
+        private synchronized boolean add(@NotNull VehiclePosition position) {
+            if (this.isDropped) {
+                return false;
+            }
+            this.positions.add(position);
+            return true;
+        }
+
+        /**
+         * Remove a position
+         * @param position position to remove
+         * @return true if the cell is now empty
+         */
+        private synchronized boolean remove(@NotNull VehiclePosition position) {
+            this.positions.remove(position);
+            return this.positions.isEmpty();
+        }
+    }
+
+    /**
+     * Link in a chain of cells
+     */
+    private static final class CellNode {
+        @NotNull
+        private final Cell cell;
+        @Nullable
+        private final CellNode next;
+
+        private CellNode(@NotNull Cell cell, @Nullable CellNode next) {
+            this.cell = cell;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Candidate for a nearest neighbor query
+     */
+    private static final class Neighbor {
+        @NotNull
+        private final VehiclePosition position;
+        private final double distance;
+
+        private Neighbor(@NotNull VehiclePosition position, double distance) {
+            this.position = position;
+            this.distance = distance;
+        }
+    }
+}
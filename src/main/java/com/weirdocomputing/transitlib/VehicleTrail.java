@@ -0,0 +1,98 @@
+package com.weirdocomputing.transitlib;
+
+import org.jetbrains.annotations.NotNull;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * Recent positions of one vehicle, oldest first, in parallel primitive arrays
+ *
+ * A missing bearing is NaN.
+ * The arrays are not copied and must not be modified.
+ */
+public class VehicleTrail {
+    @NotNull
+    private final String vehicleId;
+    @NotNull
+    private final float[] latitudes;
+    @NotNull
+    private final float[] longitudes;
+    @NotNull
+    private final float[] bearings;
+    @NotNull
+    private final long[] timestamps;
+
+    VehicleTrail(@NotNull String vehicleId,
+                 @NotNull float[] latitudes, @NotNull float[] longitudes,
+                 @NotNull float[] bearings, @NotNull long[] timestamps) {
+        this.vehicleId = vehicleId;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.bearings = bearings;
+        this.timestamps = timestamps;
+    }
+
+    @NotNull
+    public String getVehicleId() {
+        return vehicleId;
+    }
+
+    /**
+     * Get the number of positions
+     * @return number of positions
+     */
+    public int size() {
+        return timestamps.length;
+    }
+
+    @NotNull
+    public float[] getLatitudes() {
+        return latitudes;
+    }
+
+    @NotNull
+    public float[] getLongitudes() {
+        return longitudes;
+    }
+
+    @NotNull
+    public float[] getBearings() {
+        return bearings;
+    }
+
+    /**
+     * Get timestamps
+     * @return timestamps in seconds since the epoch
+     */
+    @NotNull
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Get the distance travelled along the trail
+     * @return distance in meters
+     */
+    public double getDistanceMeters() {
+        double distance = 0;
+        for (int i = 1; i < timestamps.length; i++) {
+            distance += VehicleSpatialIndex.distanceMeters(
+                    latitudes[i - 1], longitudes[i - 1], latitudes[i], longitudes[i]);
+        }
+        return distance;
+    }
+
+    /**
+     * Get the average speed along the trail
+     * @return speed in meters per second, or NaN if the trail covers no time
+     */
+    public double getAverageSpeed() {
+        int last = timestamps.length - 1;
+        if (last < 1 || timestamps[last] == timestamps[0]) {
+            return Double.NaN;
+        }
+        return this.getDistanceMeters() / (timestamps[last] - timestamps[0]);
+    }
+}
@@ -0,0 +1,45 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.jetbrains.annotations.NotNull;
+
+/*
+ * © 2020 Daniel Norton
+ */
+
+/**
+ * A feed message built from a VehiclePositionCollection, along with the
+ * collection version it reflects
+ */
+public class VersionedFeedMessage {
+    @NotNull
+    private final GtfsRealtime.FeedMessage feedMessage;
+    private final long version;
+
+    VersionedFeedMessage(@NotNull GtfsRealtime.FeedMessage feedMessage, long version) {
+        this.feedMessage = feedMessage;
+        this.version = version;
+    }
+
+    @NotNull
+    public GtfsRealtime.FeedMessage getFeedMessage() {
+        return feedMessage;
+    }
+
+    /**
+     * Get the collection version this message brings a consumer up to.
+     * Pass it as the starting version of the next differential request.
+     * @return collection version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get whether the message holds only changes, or the full dataset
+     * @return true if the message is differential
+     */
+    public boolean isDifferential() {
+        return feedMessage.getHeader().getIncrementality() == GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL;
+    }
+}
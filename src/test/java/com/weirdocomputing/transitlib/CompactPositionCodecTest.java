@@ -0,0 +1,129 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+class CompactPositionCodecTest {
+    private final Logger logger = LoggerFactory.getLogger(CompactPositionCodecTest.class);
+
+    @Test
+    void roundTrip() throws Exception {
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(20, 5, 200, 20_000);
+        VehiclePositionCollection collection = new VehiclePositionCollection(Duration.ofMinutes(60));
+        collection.update(generator.nextFeed());
+        // missing fields, and IDs that share a prefix up to a surrogate pair
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("bus-🚌"))
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("té"))
+                .setTimestamp(generator.getTime().getEpochSecond())
+                .build()));
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("bus-🚍"))
+                .setPosition(GtfsRealtime.Position.newBuilder()
+                        .setLatitude(-33.86785f).setLongitude(151.20732f).setBearing(359.9f).setSpeed(0.04f))
+                .setTimestamp(generator.getTime().getEpochSecond())
+                .build()));
+
+        VehiclePositionColumns expected = collection.toColumns();
+        Map<String, Integer> expectedRows = new HashMap<>();
+        for (int i = 0; i < expected.size(); i++) {
+            expectedRows.put(expected.getVehicleId(i), i);
+        }
+
+        byte[] compact = collection.toCompact(CompactPositionCodec.ALL_FIELDS);
+        VehiclePositionColumns actual = CompactPositionCodec.decode(compact);
+        assert actual.size() == expected.size();
+        for (int i = 0; i < actual.size(); i++) {
+            String vehicleId = actual.getVehicleId(i);
+            assert i == 0 || vehicleId.compareTo(actual.getVehicleId(i - 1)) > 0;
+            int row = expectedRows.get(vehicleId);
+            assert closeTo(actual.getLatitudes()[i], expected.getLatitudes()[row], 1e-5);
+            assert closeTo(actual.getLongitudes()[i], expected.getLongitudes()[row], 1e-5);
+            assert Float.isNaN(actual.getBearings()[i]) == Float.isNaN(expected.getBearings()[row]);
+            float bearingError = Math.abs(actual.getBearings()[i] - expected.getBearings()[row]);
+            assert Float.isNaN(bearingError) || Math.min(bearingError, 360 - bearingError) <= 0.71;
+            assert closeTo(actual.getSpeeds()[i], expected.getSpeeds()[row], 0.051);
+            assert actual.getTimestamps()[i] == expected.getTimestamps()[row];
+            assert actual.getVehicleCodes()[i] == i;
+            assert Objects.equals(actual.getTripId(i), expected.getTripId(row));
+            assert Objects.equals(actual.getRouteId(i), expected.getRouteId(row));
+        }
+
+        int protobufSize = collection.toFeedMessage(false).getSerializedSize();
+        logger.info("{} vehicles: protobuf {} bytes, compact {} bytes ({}x)", actual.size(), protobufSize,
+                compact.length, String.format("%.1f", (double) protobufSize / compact.length));
+        // 3.7x when last measured; trip IDs, nearly one per vehicle, are over 40% of it
+        assert compact.length * 3 < protobufSize;
+
+        // locations only, against the same feed, and against protobuf with only vehicle IDs and locations
+        byte[] locations = CompactPositionCodec.encode(collection.values(), 0);
+        actual = CompactPositionCodec.decode(locations);
+        GtfsRealtime.FeedMessage.Builder locationFeed = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(collection.toFeedMessage(false).getHeader());
+        for (VehiclePosition vp: collection.values()) {
+            GtfsRealtime.VehiclePosition gvp = vp.getGoogleVehiclePosition();
+            GtfsRealtime.VehiclePosition.Builder location = GtfsRealtime.VehiclePosition.newBuilder()
+                    .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(gvp.getVehicle().getId()));
+            if (gvp.hasPosition()) {
+                location.setPosition(GtfsRealtime.Position.newBuilder()
+                        .setLatitude(gvp.getPosition().getLatitude()).setLongitude(gvp.getPosition().getLongitude()));
+            }
+            locationFeed.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId(gvp.getVehicle().getId()).setVehicle(location));
+        }
+        int locationProtobufSize = locationFeed.build().getSerializedSize();
+        logger.info("locations only: compact {} bytes ({}x full protobuf), protobuf {} bytes ({}x)",
+                locations.length, String.format("%.1f", (double) protobufSize / locations.length),
+                locationProtobufSize, String.format("%.1f", (double) locationProtobufSize / locations.length));
+        assert locations.length < compact.length;
+        assert locations.length * 8 < protobufSize;
+        assert locations.length * 3 < locationProtobufSize;
+        assert actual.size() == expected.size();
+        for (int i = 0; i < actual.size(); i++) {
+            assert Float.isNaN(actual.getBearings()[i]) && Float.isNaN(actual.getSpeeds()[i]);
+            assert actual.getTripCodes()[i] == VehiclePositionColumns.NO_CODE;
+            assert actual.getRouteCodes()[i] == VehiclePositionColumns.NO_CODE;
+        }
+
+        EncodedFeed encodedFeed = collection.getEncodedFeed(EncodedFeed.Format.COMPACT, false);
+        assert CompactPositionCodec.decode(encodedFeed.toByteArray()).size() == expected.size();
+    }
+
+    @Test
+    void invalid() {
+        List<byte[]> inputs = new ArrayList<>();
+        inputs.add(new byte[0]);
+        inputs.add(new byte[] {2, 0, 0});
+        inputs.add(new byte[] {1, 0, 100});
+        byte[] valid = CompactPositionCodec.encode(
+                List.of(VehiclePositionCollectionTest.newVehiclePosition("1", 0, 30f, -97f)),
+                CompactPositionCodec.ALL_FIELDS);
+        inputs.add(Arrays.copyOf(valid, valid.length - 1));
+        for (byte[] input: inputs) {
+            try {
+                CompactPositionCodec.decode(input);
+                assert false;
+            } catch (IOException e) {
+                logger.info("{}", e.getMessage());
+            }
+        }
+    }
+
+    private static boolean closeTo(float actual, float expected, double tolerance) {
+        if (Float.isNaN(expected)) {
+            return Float.isNaN(actual);
+        }
+        return Math.abs(actual - expected) <= tolerance;
+    }
+}
@@ -0,0 +1,96 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.time.Instant;
+
+class FeedDispatcherTest {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    static GtfsRealtime.FeedMessage newCombinedFeed(long timestamp, int alertCount) {
+        GtfsRealtime.FeedMessage.Builder builder = VehiclePositionFeedPollerTest.newFeed(100, timestamp).toBuilder();
+        for (int i = 0; i < 50; i++) {
+            GtfsRealtime.TripUpdate.Builder tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                    .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("trip" + i).setRouteId("801"))
+                    .setTimestamp(timestamp);
+            for (int stop = i; stop < i + 5; stop++) {
+                tripUpdate.addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                        .setStopId("stop" + stop)
+                        .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setDelay(60)));
+            }
+            builder.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("tu" + i).setTripUpdate(tripUpdate));
+        }
+        for (int i = 0; i < alertCount; i++) {
+            builder.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("alert" + i)
+                    .setAlert(GtfsRealtime.Alert.newBuilder()
+                            .addActivePeriod(GtfsRealtime.TimeRange.newBuilder().setStart(timestamp - 60))
+                            .addInformedEntity(GtfsRealtime.EntitySelector.newBuilder().setRouteId("80" + i))));
+        }
+        return builder.build();
+    }
+
+    @Test
+    void combinedFeed() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection vehiclePositions = new VehiclePositionCollection(STALE_AGE);
+        TripUpdateCollection tripUpdates = new TripUpdateCollection(STALE_AGE);
+        AlertCollection alerts = new AlertCollection();
+        FeedDispatcher dispatcher = new FeedDispatcher(vehiclePositions, tripUpdates, alerts);
+
+        byte[] feed = newCombinedFeed(now, 3).toByteArray();
+        assert dispatcher.update(new ByteArrayInputStream(feed)) == 153;
+        assert vehiclePositions.size() == 100;
+        assert tripUpdates.size() == 50;
+        assert alerts.size() == 3;
+
+        // stop 10 is on trips 6 through 10
+        assert tripUpdates.findByStop("stop10").size() == 5;
+        assert tripUpdates.findByStop("stop0").size() == 1;
+        assert tripUpdates.get("trip7").getStopTimeUpdateCount() == 5;
+        assert alerts.findByRoute("801").size() == 1;
+        assert alerts.findActive(Instant.ofEpochSecond(now)).size() == 3;
+        assert alerts.findActive(Instant.ofEpochSecond(now - 3600)).isEmpty();
+
+        // a full dataset without an alert removes it
+        dispatcher.update(newCombinedFeed(now, 2));
+        assert alerts.size() == 2;
+        assert alerts.get("alert2") == null;
+
+        // the vehicle collection alone skips what it doesn't hold
+        VehiclePositionCollection vehiclesOnly = new VehiclePositionCollection(STALE_AGE);
+        assert vehiclesOnly.update(new ByteArrayInputStream(feed)).size() == 100;
+        assert vehiclesOnly.size() == 100;
+    }
+
+    @Test
+    void differentialDeletes() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection source = new VehiclePositionCollection(STALE_AGE);
+        source.update(VehiclePositionFeedPollerTest.newFeed(10, now - 60));
+        VehiclePositionCollection mirror = new VehiclePositionCollection(STALE_AGE);
+        FeedDispatcher dispatcher = new FeedDispatcher(mirror, null, null);
+        VersionedFeedMessage full = source.toFeedMessage(0);
+        dispatcher.update(full.getFeedMessage());
+        assert mirror.size() == 10;
+
+        source.remove("3");
+        source.put(VehiclePositionCollectionTest.newVehiclePosition("4", now));
+        dispatcher.update(source.toFeedMessage(full.getVersion()).getFeedMessage());
+        assert mirror.size() == 9;
+        assert VehiclePositionCollectionTest.byVehicleId(mirror)
+                .equals(VehiclePositionCollectionTest.byVehicleId(source));
+
+        // a deleted entity need not carry the vehicle descriptor; its ID is the vehicle's
+        dispatcher.update(GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0")
+                        .setIncrementality(GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL))
+                .addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("5").setIsDeleted(true)
+                        .setVehicle(GtfsRealtime.VehiclePosition.getDefaultInstance()))
+                .build());
+        assert mirror.size() == 8;
+        assert !VehiclePositionCollectionTest.byVehicleId(mirror).containsKey("5");
+    }
+}
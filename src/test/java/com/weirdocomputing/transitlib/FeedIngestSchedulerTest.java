@@ -0,0 +1,105 @@
+package com.weirdocomputing.transitlib;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class FeedIngestSchedulerTest {
+    private final Logger logger = LoggerFactory.getLogger(FeedIngestSchedulerTest.class);
+
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+    private static final Duration INTERVAL = Duration.ofMillis(200);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Test
+    void slowFeedDoesNotStarveOthers() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        List<VehiclePositionFeedPollerTest.FeedServer> servers = new ArrayList<>();
+        List<VehiclePositionFeedPoller> pollers = new ArrayList<>();
+        try (FeedIngestScheduler scheduler = new FeedIngestScheduler(2)) {
+            for (int i = 0; i < 8; i++) {
+                VehiclePositionFeedPollerTest.FeedServer server = new VehiclePositionFeedPollerTest.FeedServer();
+                server.setFeed(VehiclePositionFeedPollerTest.newFeed(10, now), "\"a\"");
+                servers.add(server);
+                VehiclePositionFeedPoller poller = new VehiclePositionFeedPoller(server.getUri(),
+                        new VehiclePositionCollection(STALE_AGE));
+                pollers.add(poller);
+                scheduler.register("feed" + i, poller, INTERVAL);
+            }
+            // feed0 takes far longer than its interval to answer
+            servers.get(0).delayMillis = TIMEOUT.toMillis() + 5000;
+
+            // wait while feed0's first slow poll is still outstanding
+            long deadline = System.nanoTime() + TIMEOUT.toNanos();
+            while (!othersKeptPolling(scheduler, pollers) && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            for (FeedIngestScheduler.FeedStatus status: scheduler.getStatuses()) {
+                logger.info("{}: polls {} depth {} lag {}", status.getFeedId(),
+                        status.getPollCount(), status.getQueueDepth(), status.getLag());
+            }
+            FeedIngestScheduler.FeedStatus slow = scheduler.getStatus("feed0");
+            assert slow != null && slow.isOutstanding() && slow.getQueueDepth() > 1;
+            assert othersKeptPolling(scheduler, pollers);
+        } finally {
+            for (VehiclePositionFeedPoller poller: pollers) {
+                poller.close();
+            }
+            for (VehiclePositionFeedPollerTest.FeedServer server: servers) {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    void registerRacesUnregister() throws Exception {
+        VehiclePositionFeedPoller poller = new VehiclePositionFeedPoller(URI.create("http://localhost:1/"),
+                new VehiclePositionCollection(STALE_AGE));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (FeedIngestScheduler scheduler = new FeedIngestScheduler(1)) {
+            Future<?> unregistering = executor.submit(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    scheduler.unregister("feed");
+                }
+            });
+            while (!unregistering.isDone()) {
+                try {
+                    scheduler.register("feed", poller, Duration.ofHours(1));
+                } catch (IllegalArgumentException e) {
+                    // still registered from the last round
+                }
+            }
+            // an unregister that found the feed never saw it without its schedule
+            unregistering.get();
+            scheduler.unregister("feed");
+            assert scheduler.getStatuses().isEmpty();
+        } finally {
+            executor.shutdown();
+            poller.close();
+        }
+    }
+
+    /**
+     * Check that every feed but feed0 has been polled several times, and
+     * found unchanged after its first poll
+     */
+    private static boolean othersKeptPolling(FeedIngestScheduler scheduler, List<VehiclePositionFeedPoller> pollers) {
+        for (int i = 1; i < pollers.size(); i++) {
+            FeedIngestScheduler.FeedStatus status = scheduler.getStatus("feed" + i);
+            if (status == null || status.getPollCount() < 3 || status.getNotModifiedCount() < 2
+                    || pollers.get(i).getCollection().size() != 10) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
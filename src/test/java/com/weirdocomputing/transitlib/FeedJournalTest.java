@@ -0,0 +1,174 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+class FeedJournalTest {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void appendAndReplay() throws Exception {
+        Instant start = Instant.ofEpochSecond(1_580_000_000L);
+        try (FeedJournal journal = new FeedJournal(directory, 1000, Duration.ofDays(1))) {
+            for (int i = 0; i < 100; i++) {
+                // 400 bytes each, so two records per segment
+                byte[] record = new byte[400];
+                record[0] = (byte) i;
+                journal.append(start.plusSeconds(i), record, 0, record.length);
+            }
+        }
+        assert countSegments() == 50;
+
+        // reopened, the journal starts a new segment and keeps the old ones
+        try (FeedJournal journal = new FeedJournal(directory, 1000, Duration.ofDays(1))) {
+            journal.append(start.plusSeconds(100), new byte[] {100}, 0, 1);
+            List<Integer> replayed = new ArrayList<>();
+            int count = journal.replay(start.plusSeconds(25), start.plusSeconds(100), (received, feed) -> {
+                assert received.getEpochSecond() - start.getEpochSecond() == (feed.get(0) & 0xff);
+                replayed.add(feed.get(0) & 0xff);
+            });
+            assert count == 76 && replayed.size() == 76;
+            for (int i = 0; i < replayed.size(); i++) {
+                assert replayed.get(i) == 25 + i;
+            }
+        }
+        assert countSegments() == 51;
+    }
+
+    @Test
+    void retention() throws Exception {
+        Instant start = Instant.ofEpochSecond(1_580_000_000L);
+        try (FeedJournal journal = new FeedJournal(directory, 1000, Duration.ofSeconds(30))) {
+            for (int i = 0; i < 100; i++) {
+                journal.append(start.plusSeconds(i), new byte[400], 0, 400);
+            }
+            // segments ending before the last 30 seconds are gone
+            assert countSegments() <= 17;
+            assert journal.replay(Instant.EPOCH, start.plusSeconds(100), (received, feed) -> { }) <= 34;
+            assert journal.replay(start.plusSeconds(70), start.plusSeconds(100), (received, feed) -> { }) == 30;
+        }
+    }
+
+    @Test
+    void retentionBoundsSegments() throws Exception {
+        Instant start = Instant.ofEpochSecond(1_580_000_000L);
+        try (FeedJournal journal = new FeedJournal(directory, 1000, Duration.ofSeconds(10))) {
+            for (int i = 0; i < 5000; i++) {
+                // one record per segment
+                byte[] record = new byte[600];
+                record[0] = (byte) i;
+                journal.append(start.plusSeconds(i), record, 0, record.length);
+                assert countSegments() <= 12;
+            }
+            // filled segments read back intact
+            List<Integer> replayed = new ArrayList<>();
+            journal.replay(start.plusSeconds(4990), start.plusSeconds(5000),
+                    (received, feed) -> replayed.add(feed.get(0) & 0xff));
+            assert replayed.size() == 10;
+            assert replayed.get(9) == (4999 & 0xff);
+        }
+    }
+
+    @Test
+    void streamedRecords() throws Exception {
+        Instant start = Instant.ofEpochSecond(1_580_000_000L);
+        byte[] large = new byte[2500];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 31);
+        }
+        try (FeedJournal journal = new FeedJournal(directory, 1000, Duration.ofDays(1))) {
+            journal.append(start, new byte[] {1, 2, 3}, 0, 3);
+            // written in pieces, larger than a segment
+            FeedJournal.RecordOutputStream record = journal.openRecord(start.plusSeconds(1));
+            for (int offset = 0; offset < large.length; offset += 700) {
+                record.write(large, offset, Math.min(700, large.length - offset));
+                if (offset == 0) {
+                    // an open record holds up no other appends
+                    CompletableFuture.runAsync(() -> {
+                        try {
+                            journal.append(start.plusSeconds(1), new byte[] {4, 5}, 0, 2);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }).get(10, TimeUnit.SECONDS);
+                }
+            }
+            record.close();
+            // an aborted record leaves nothing behind
+            record = journal.openRecord(start.plusSeconds(2));
+            record.write(new byte[500]);
+            record.abort();
+            record = journal.openRecord(start.plusSeconds(3));
+            record.write(7);
+            record.close();
+
+            List<byte[]> replayed = new ArrayList<>();
+            assert journal.replay(Instant.EPOCH, start.plusSeconds(10), (received, feed) -> {
+                byte[] bytes = new byte[feed.remaining()];
+                feed.get(bytes);
+                replayed.add(bytes);
+            }) == 4;
+            assert Arrays.equals(replayed.get(0), new byte[] {1, 2, 3});
+            // a streamed record is appended when it is closed
+            assert Arrays.equals(replayed.get(1), new byte[] {4, 5});
+            assert Arrays.equals(replayed.get(2), large);
+            assert Arrays.equals(replayed.get(3), new byte[] {7});
+        }
+    }
+
+    @Test
+    void replayIntoCollection() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        try (FeedJournal journal = new FeedJournal(directory, Duration.ofDays(1))) {
+            collection.setJournal(journal);
+            collection.update(VehiclePositionFeedPollerTest.newFeed(100, now - 60));
+            GtfsRealtime.FeedMessage second = VehiclePositionFeedPollerTest.newFeed(150, now);
+            collection.update(new ByteArrayInputStream(second.toByteArray()));
+
+            VehiclePositionCollection restored = new VehiclePositionCollection(STALE_AGE);
+            assert journal.replay(Instant.EPOCH, Instant.now(), restored) == 2;
+            assert restored.size() == 150;
+            assert VehiclePositionCollectionTest.byVehicleId(restored)
+                    .equals(VehiclePositionCollectionTest.byVehicleId(collection));
+        }
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.count();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.weirdocomputing.transitlib;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+class LogLinearHistogramTest {
+
+    @Test
+    void percentiles() {
+        Random random = new Random(18);
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // spread over many powers of two
+            values[i] = (long) Math.exp(random.nextDouble() * 40);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        assert histogram.getCount() == values.length;
+        assert histogram.getMin() == values[0];
+        assert histogram.getMax() == values[values.length - 1];
+        for (double percentile: new double[] {1, 25, 50, 90, 99, 99.9, 100}) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = histogram.getValueAtPercentile(percentile);
+            // reported as the top of the value's sub-bucket
+            assert actual >= expected && actual <= expected + expected / 32 : percentile;
+        }
+        histogram.record(Long.MAX_VALUE);
+        assert histogram.getValueAtPercentile(100) == Long.MAX_VALUE;
+        histogram.reset();
+        assert histogram.getCount() == 0 && histogram.getValueAtPercentile(50) == 0;
+    }
+}
@@ -0,0 +1,33 @@
+package com.weirdocomputing.transitlib;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+class LongHashSetTest {
+
+    @Test
+    void matchesHashSet() {
+        Random random = new Random(11);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200_000; i++) {
+            // a narrow range, so adds and removes collide often
+            long value = random.nextInt(5000) - 100;
+            if (random.nextBoolean()) {
+                assert set.add(value) == expected.add(value);
+            } else {
+                assert set.remove(value) == expected.remove(value);
+            }
+            assert set.size() == expected.size();
+        }
+        for (long value = -200; value < 5000; value++) {
+            assert set.contains(value) == expected.contains(value);
+        }
+        set.clear();
+        assert set.isEmpty();
+        assert !set.contains(0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+class SyntheticFeedGeneratorTest {
+    private final Logger logger = LoggerFactory.getLogger(SyntheticFeedGeneratorTest.class);
+
+    private static final Instant START = Instant.ofEpochSecond(1_580_000_000L);
+
+    @Test
+    void deterministic() throws Exception {
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(20, 3, 50, 1000, START);
+        SyntheticFeedGenerator twin = new SyntheticFeedGenerator(20, 3, 50, 1000, START);
+        for (int i = 0; i < 5; i++) {
+            byte[] feed = generator.nextFeed().toByteArray();
+            // streamed, the twin produces the same bytes
+            assert Arrays.equals(feed, twin.openFeed().readAllBytes());
+        }
+        assert generator.getTime().equals(START.plus(SyntheticFeedGenerator.DEFAULT_INTERVAL.multipliedBy(4)));
+
+        ByteArrayOutputStream agencyTxt = new ByteArrayOutputStream();
+        ByteArrayOutputStream routesTxt = new ByteArrayOutputStream();
+        generator.writeAgencyTxt(agencyTxt);
+        generator.writeRoutesTxt(routesTxt);
+        AgencyCollection agencies = new AgencyCollection(new ByteArrayInputStream(agencyTxt.toByteArray()));
+        RouteCollection routes = new RouteCollection(agencies, new ByteArrayInputStream(routesTxt.toByteArray()));
+        assert agencies.size() == 3;
+        assert routes.size() == 50;
+    }
+
+    @Test
+    void fleetFeeds() throws Exception {
+        // the same feeds at statewide scale are in SyntheticFeedBenchmark
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(20, 10, 200, 5000);
+        generator.setStaleRate(0.01);
+        generator.setDuplicateRate(0.02);
+        VehiclePositionCollection collection = new VehiclePositionCollection(Duration.ofMinutes(60));
+        InMemoryTransitMetrics metrics = new InMemoryTransitMetrics();
+        collection.setMetrics(metrics);
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            collection.update(generator.openFeed());
+            logger.info("feed {}: {} ms, {} vehicles", i, (System.nanoTime() - start) / 1_000_000, collection.size());
+        }
+        assert collection.size() <= 5000 + 25;
+        assert collection.size() > 4750;
+        assert metrics.getDropCount(TransitMetrics.DropReason.STALE) > 0;
+        assert metrics.getDropCount(TransitMetrics.DropReason.OUT_OF_ORDER) > 0;
+        for (VehiclePosition position: collection.values()) {
+            GtfsRealtime.Position p = position.getGoogleVehiclePosition().getPosition();
+            assert Math.abs(p.getLatitude() - 30.27) < 1 && Math.abs(p.getLongitude() + 97.74) < 1;
+        }
+    }
+}
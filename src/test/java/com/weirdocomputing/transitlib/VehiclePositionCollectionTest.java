@@ -7,14 +7,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 class VehiclePositionCollectionTest {
@@ -81,7 +101,7 @@ class VehiclePositionCollectionTest {
                     totalWait += delaySeconds;
                     // fetch changed values
                     urlConnection = getHttpURLConnection();
-                    urlConnection.setRequestProperty("ETag", etag);
+                    urlConnection.setRequestProperty("If-None-Match", etag);
                     String newEtag = urlConnection.getHeaderField("ETag");
                     logger.info("new ETag: \"{}\"", newEtag);
                     if (!newEtag.equals(etag)) {
@@ -118,6 +138,835 @@ class VehiclePositionCollectionTest {
         }
     }
 
+    @Test
+    void concurrentPut() throws Exception {
+        // scaling with thread count is measured by ConcurrentPutBenchmark
+        final int threadCount = 4;
+        final int vehicleCount = 200;
+        final int positionsPerThread = 5000;
+        long now = Instant.now().getEpochSecond();
+
+        // generate each thread's input ahead of time, and remember the newest timestamp per vehicle
+        VehiclePosition[][] inputs = new VehiclePosition[threadCount][positionsPerThread];
+        Map<String, Long> newest = new HashMap<>();
+        Random random = new Random(threadCount);
+        for (VehiclePosition[] input: inputs) {
+            for (int i = 0; i < input.length; i++) {
+                String vehicleId = Integer.toString(random.nextInt(vehicleCount));
+                long timestamp = now - random.nextInt((int) STALE_AGE.getSeconds() / 2);
+                input[i] = newVehiclePosition(vehicleId, timestamp);
+                newest.merge(vehicleId, timestamp, Math::max);
+            }
+        }
+
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (VehiclePosition[] input: inputs) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (VehiclePosition p: input) {
+                    collection.put(p);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future: futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // the newest position for each vehicle wins, whichever thread put it
+        assert collection.size() == newest.size();
+        for (VehiclePosition p: collection.values()) {
+            assert p.getTimestamp().getEpochSecond() == newest.get(p.getVehicle().getId());
+        }
+    }
+
+    @Test
+    void updateFromStream() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        GtfsRealtime.FeedMessage.Builder feed = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0").setTimestamp(now));
+        for (int i = 0; i < 50_000; i++) {
+            // every vehicle appears twice; the later, older entity must not win
+            String vehicleId = Integer.toString(i % 25_000);
+            feed.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId(Integer.toString(i))
+                    .setVehicle(newVehiclePosition(vehicleId, now - i / 25_000).getGoogleVehiclePosition()));
+        }
+        byte[] bytes = feed.build().toByteArray();
+
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        long startNanos = System.nanoTime();
+        VehiclePositionCollection updated = collection.update(new ByteArrayInputStream(bytes));
+        logger.info("streamed {} bytes in {} us", bytes.length, (System.nanoTime() - startNanos) / 1000);
+
+        assert collection.size() == 25_000;
+        assert updated.size() == 25_000;
+        for (VehiclePosition p: collection.values()) {
+            assert p.getTimestamp().getEpochSecond() == now;
+        }
+    }
+
+    @Test
+    void updateReturnsStored() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.put(newVehiclePosition("held", now));
+        GtfsRealtime.FeedMessage.Builder feed = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0").setTimestamp(now));
+        // older than what the collection holds, newer then older again, and too old to keep
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("1")
+                .setVehicle(newVehiclePosition("held", now - 10).getGoogleVehiclePosition()));
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("2")
+                .setVehicle(newVehiclePosition("moved", now, 30.0f, -97.0f).getGoogleVehiclePosition()));
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("3")
+                .setVehicle(newVehiclePosition("moved", now - 5, 31.0f, -98.0f).getGoogleVehiclePosition()));
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("4")
+                .setVehicle(newVehiclePosition("stale", now - STALE_AGE.getSeconds() - 60).getGoogleVehiclePosition()));
+
+        VehiclePositionCollection stored = collection.update(feed.build());
+        assert stored.size() == 1;
+        assert byVehicleId(stored).get("moved").getPosition().getLatitude() == 30.0f;
+        assert stored.values().iterator().next() == byVehicleIdPositions(collection).get("moved");
+        // its indexes are built when first used
+        assert stored.findWithin(29.5, -97.5, 30.5, -96.5).size() == 1;
+        assert stored.purgeStale() == 0;
+        stored.put(newVehiclePosition("added", now, 30.1f, -97.1f));
+        assert stored.findWithin(29.5, -97.5, 30.5, -96.5).size() == 2;
+    }
+
+    @Test
+    void purgeStale() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(Duration.ofSeconds(2));
+        for (int i = 0; i < 1000; i++) {
+            // half of the positions expire within the next two seconds
+            collection.put(newVehiclePosition(Integer.toString(i), i % 2 == 0 ? now : now + 3600));
+        }
+        assert collection.size() == 1000;
+        assert collection.purgeStale() == 0;
+        Thread.sleep(3000);
+        assert collection.purgeStale() == 500;
+        assert collection.size() == 500;
+        assert collection.remove("1") != null;
+        assert collection.remove("1") == null;
+        assert collection.size() == 499;
+    }
+
+    @Test
+    void differentialFeedMessage() {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE, 10);
+        for (int i = 0; i < 5; i++) {
+            collection.put(newVehiclePosition(Integer.toString(i), now - 60));
+        }
+        VersionedFeedMessage full = collection.toFeedMessage(0);
+        assert !full.isDifferential();
+        assert full.getFeedMessage().getEntityCount() == 5;
+        assert full.getVersion() == collection.getVersion();
+
+        collection.put(newVehiclePosition("1", now - 30));
+        collection.put(newVehiclePosition("1", now));
+        collection.put(newVehiclePosition("2", now - 120)); // out of date; no change
+        collection.remove("3");
+        VersionedFeedMessage diff = collection.toFeedMessage(full.getVersion());
+        assert diff.isDifferential();
+        assert diff.getFeedMessage().getEntityCount() == 2;
+        GtfsRealtime.FeedEntity updated = diff.getFeedMessage().getEntity(0);
+        assert updated.getId().equals("1") && updated.getVehicle().getTimestamp() == now;
+        GtfsRealtime.FeedEntity deleted = diff.getFeedMessage().getEntity(1);
+        assert deleted.getId().equals("3") && deleted.getIsDeleted();
+
+        assert collection.toFeedMessage(diff.getVersion()).getFeedMessage().getEntityCount() == 0;
+
+        // once the change log has moved on, we get the full dataset again
+        for (int i = 0; i < 20; i++) {
+            collection.put(newVehiclePosition("4", now - 50 + i));
+        }
+        VersionedFeedMessage fallback = collection.toFeedMessage(diff.getVersion());
+        assert !fallback.isDifferential();
+        assert fallback.getFeedMessage().getEntityCount() == 4;
+    }
+
+    @Test
+    void concurrentDifferentialFeedMessage() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        int vehicleCount = 1000;
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE, 1_000_000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int offset = t;
+                writers.add(executor.submit(() -> {
+                    // each writer adds new vehicles and moves existing ones, but never removes any
+                    for (int i = 0; i < 50_000; i++) {
+                        collection.put(newVehiclePosition(Integer.toString((i * 4 + offset) % vehicleCount),
+                                now - 600 + i / 100));
+                    }
+                }));
+            }
+
+            // a consumer following versions ends up with every vehicle's latest position
+            Map<String, GtfsRealtime.VehiclePosition> replica = new HashMap<>();
+            long version = 0;
+            boolean isDone = false;
+            while (!isDone) {
+                isDone = writers.stream().allMatch(Future::isDone);
+                VersionedFeedMessage feed = collection.toFeedMessage(version);
+                if (!feed.isDifferential()) {
+                    replica.clear();
+                }
+                for (GtfsRealtime.FeedEntity entity: feed.getFeedMessage().getEntityList()) {
+                    assert !entity.getIsDeleted() : "live vehicle " + entity.getId() + " reported deleted";
+                    replica.put(entity.getId(), entity.getVehicle());
+                }
+                version = feed.getVersion();
+            }
+            for (Future<?> writer: writers) {
+                writer.get();
+            }
+            assert replica.equals(byVehicleId(collection));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void spatialQueries() {
+        long now = Instant.now().getEpochSecond();
+        Random random = new Random(5);
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        for (int i = 0; i < 100_000; i++) {
+            // scatter vehicles around Austin, then move some of them
+            collection.put(newVehiclePosition(Integer.toString(i % 80_000), now - 100 + i / 80_000,
+                    30.0f + random.nextFloat(), -98.0f + random.nextFloat()));
+        }
+        assert collection.size() == 80_000;
+
+        long startNanos = System.nanoTime();
+        List<VehiclePosition> inBox = collection.findWithin(30.2, -97.8, 30.3, -97.7);
+        logger.info("findWithin: {} in {} us", inBox.size(), (System.nanoTime() - startNanos) / 1000);
+        assert inBox.size() == collection.values().stream().filter(p ->
+                p.getGoogleVehiclePosition().getPosition().getLatitude() >= 30.2
+                && p.getGoogleVehiclePosition().getPosition().getLatitude() <= 30.3
+                && p.getGoogleVehiclePosition().getPosition().getLongitude() >= -97.8
+                && p.getGoogleVehiclePosition().getPosition().getLongitude() <= -97.7).count();
+
+        startNanos = System.nanoTime();
+        List<VehiclePosition> inRadius = collection.findWithinRadius(30.27, -97.74, 2000);
+        logger.info("findWithinRadius: {} in {} us", inRadius.size(), (System.nanoTime() - startNanos) / 1000);
+        assert inRadius.size() == collection.values().stream().filter(p ->
+                VehicleSpatialIndex.distanceMeters(30.27, -97.74, p) <= 2000).count();
+
+        startNanos = System.nanoTime();
+        List<VehiclePosition> nearest = collection.findNearest(30.27, -97.74, 10);
+        logger.info("findNearest: {} in {} us", nearest.size(), (System.nanoTime() - startNanos) / 1000);
+        assert nearest.equals(collection.values().stream()
+                .sorted(Comparator.comparingDouble(p -> VehicleSpatialIndex.distanceMeters(30.27, -97.74, p)))
+                .limit(10)
+                .collect(Collectors.toList()));
+
+        for (VehiclePosition p: inBox) {
+            collection.remove(p.getVehicle().getId());
+        }
+        assert collection.findWithin(30.2, -97.8, 30.3, -97.7).isEmpty();
+
+        // moves within a cell replace the vehicle's position in place
+        collection.put(newVehiclePosition("mover", now - 10, 30.2501f, -97.7501f));
+        VehiclePosition moved = newVehiclePosition("mover", now, 30.2502f, -97.7502f);
+        collection.put(moved);
+        assert collection.findWithin(30.2, -97.8, 30.3, -97.7).equals(List.of(moved));
+        collection.remove("mover");
+        assert collection.findWithin(30.2, -97.8, 30.3, -97.7).isEmpty();
+    }
+
+    @Test
+    void writeJson() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.put(newVehiclePosition("1", now));
+        collection.put(newVehiclePosition("2", now, 30.2672f, -97.7431f));
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder()
+                        .setId("3").setLabel("801 \"Rapid\"").setLicensePlate("ABC-123"))
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                        .setTripId("t1").setRouteId("801").setDirectionId(1)
+                        .setStartDate("20200601").setStartTime("08:15:00")
+                        .setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED))
+                .setPosition(GtfsRealtime.Position.newBuilder()
+                        .setLatitude(30.1f).setLongitude(-97.9f).setBearing(271.5f)
+                        .setOdometer(123456.75).setSpeed(12.25f))
+                .setCurrentStopSequence(7)
+                .setStopId("5864")
+                .setCurrentStatus(GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT)
+                .setCongestionLevel(GtfsRealtime.VehiclePosition.CongestionLevel.RUNNING_SMOOTHLY)
+                .setOccupancyStatus(GtfsRealtime.VehiclePosition.OccupancyStatus.MANY_SEATS_AVAILABLE)
+                .setTimestamp(now)
+                .build()));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        collection.writeJson(outputStream);
+        assert outputStream.toString(StandardCharsets.UTF_8).equals(collection.toJsonObject().toString());
+    }
+
+    @Test
+    void encodedFeedCache() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.put(newVehiclePosition("1", now - 10, 30.2672f, -97.7431f));
+
+        EncodedFeed json = collection.getEncodedFeed(EncodedFeed.Format.JSON, false);
+        assert collection.getEncodedFeed(EncodedFeed.Format.JSON, false) == json;
+        assert new String(json.toByteArray(), StandardCharsets.UTF_8).equals(collection.toJsonObject().toString());
+        EncodedFeed gzipped = collection.getEncodedFeed(EncodedFeed.Format.JSON, true);
+        assert !gzipped.getEtag().equals(json.getEtag());
+        try (GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()))) {
+            assert Arrays.equals(inputStream.readAllBytes(), json.toByteArray());
+        }
+
+        EncodedFeed protobuf = collection.getEncodedFeed(EncodedFeed.Format.PROTOBUF, false);
+        assert GtfsRealtime.FeedMessage.parseFrom(protobuf.toByteArray()).getEntityCount() == 1;
+
+        // a change invalidates the cache; a rejected put doesn't
+        collection.put(newVehiclePosition("1", now - 20, 30.2672f, -97.7431f));
+        assert collection.getEncodedFeed(EncodedFeed.Format.PROTOBUF, false) == protobuf;
+        collection.put(newVehiclePosition("2", now, 30.2672f, -97.7431f));
+        EncodedFeed updated = collection.getEncodedFeed(EncodedFeed.Format.PROTOBUF, false);
+        assert !updated.getEtag().equals(protobuf.getEtag());
+        assert GtfsRealtime.FeedMessage.parseFrom(updated.toByteArray()).getEntityCount() == 2;
+    }
+
+    @Test
+    void removeDuplicates() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        LongHashSet latestKeys = new LongHashSet();
+        for (int i = 0; i < 1000; i++) {
+            VehiclePosition vp = newVehiclePosition(Integer.toString(i), now);
+            collection.put(vp);
+            if (i % 2 == 0) {
+                latestKeys.add(vp.getHashKey());
+            }
+        }
+        // same vehicle with another timestamp, or another vehicle, has another key
+        assert newVehiclePosition("0", now).getHashKey() == newVehiclePosition("0", now).getHashKey();
+        assert newVehiclePosition("0", now).getHashKey() != newVehiclePosition("0", now + 1).getHashKey();
+        assert newVehiclePosition("0", now).getHashKey() != newVehiclePosition("1", now).getHashKey();
+
+        assert collection.removeDuplicates(latestKeys);
+        assert collection.size() == 500;
+        assert !collection.removeDuplicates(latestKeys);
+    }
+
+    @Test
+    void differentialUpdate() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection source = new VehiclePositionCollection(STALE_AGE);
+        for (int i = 0; i < 10; i++) {
+            source.put(newVehiclePosition(Integer.toString(i), now - 60));
+        }
+        VehiclePositionCollection byMessage = new VehiclePositionCollection(STALE_AGE);
+        VehiclePositionCollection byStream = new VehiclePositionCollection(STALE_AGE);
+        VehiclePositionCollection inParallel = new VehiclePositionCollection(STALE_AGE);
+        VersionedFeedMessage full = source.toFeedMessage(0);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            byMessage.update(full.getFeedMessage());
+            byStream.update(new ByteArrayInputStream(full.getFeedMessage().toByteArray()));
+            inParallel.update(full.getFeedMessage(), pool);
+
+            source.remove("3");
+            source.put(newVehiclePosition("4", now));
+            GtfsRealtime.FeedMessage differential = source.toFeedMessage(full.getVersion()).getFeedMessage().toBuilder()
+                    // a deleted entity need not carry the vehicle descriptor; its ID is the vehicle's
+                    .addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("5").setIsDeleted(true)
+                            .setVehicle(GtfsRealtime.VehiclePosition.getDefaultInstance()))
+                    .build();
+            source.remove("5");
+            byMessage.update(differential);
+            byStream.update(new ByteArrayInputStream(differential.toByteArray()));
+            inParallel.update(differential, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assert source.size() == 8;
+        for (VehiclePositionCollection mirror: List.of(byMessage, byStream, inParallel)) {
+            assert byVehicleId(mirror).equals(byVehicleId(source));
+        }
+    }
+
+    @Test
+    void idDictionary() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        IdDictionary dictionary = new IdDictionary(150);
+        VehiclePositionCollection first = new VehiclePositionCollection(STALE_AGE);
+        VehiclePositionCollection second = new VehiclePositionCollection(STALE_AGE);
+        first.setIdDictionary(dictionary);
+        second.setIdDictionary(dictionary);
+        for (int i = 0; i < 100; i++) {
+            // separate String instances with equal values
+            first.put(newVehiclePosition(new String(Integer.toString(i)), now));
+            second.put(newVehiclePosition(new String(Integer.toString(i)), now));
+        }
+        Map<String, VehiclePosition> secondPositions = second.values().stream()
+                .collect(Collectors.toMap(vp -> vp.getVehicle().getId(), vp -> vp));
+        for (VehiclePosition vp: first.values()) {
+            String id = vp.getGoogleVehiclePosition().getVehicle().getId();
+            assert id == secondPositions.get(id).getGoogleVehiclePosition().getVehicle().getId();
+            assert dictionary.decode(dictionary.encode(id)) == id;
+        }
+        assert dictionary.size() == 100;
+
+        // once full, the dictionary starts over
+        for (int i = 100; i < 200; i++) {
+            first.put(newVehiclePosition(Integer.toString(i), now));
+        }
+        assert first.size() == 200;
+        assert dictionary.getGeneration() == 1;
+        assert dictionary.size() == 50;
+        assert dictionary.decode(dictionary.encode("199")).equals("199");
+        assert dictionary.encode(null) == IdDictionary.NO_CODE;
+
+        // keys carry their generation, and go stale when it ends
+        long key = dictionary.encodeKey("199");
+        assert IdDictionary.generationOf(key) == 1;
+        assert IdDictionary.codeOf(key) == dictionary.encode("199");
+        assert "199".equals(dictionary.decodeKey(key));
+        for (int i = 200; i < 400; i++) {
+            dictionary.encode(Integer.toString(i));
+        }
+        assert dictionary.getGeneration() == 2;
+        assert dictionary.decode(IdDictionary.codeOf(key)) != null;
+        assert dictionary.decodeKey(key) == null;
+        assert dictionary.encodeKey(null) == IdDictionary.NO_KEY;
+        assert dictionary.decodeKey(IdDictionary.NO_KEY) == null;
+    }
+
+    @Test
+    void idDictionaryTripChurn() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        IdDictionary dictionary = new IdDictionary(50);
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.setIdDictionary(dictionary);
+        // every vehicle starts a new trip each round, so trip IDs keep coming
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                        .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(new String("v" + i)))
+                        .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                                .setTripId(new String("t" + round + "-" + i)).setRouteId(new String("r1")))
+                        .setTimestamp(now - 100 + round)
+                        .build()));
+            }
+        }
+        assert dictionary.getGeneration() > 0;
+        assert dictionary.size() <= dictionary.getCapacity();
+        // the latest IDs are still shared, long after the first fill
+        GtfsRealtime.VehiclePosition first = null;
+        for (VehiclePosition vp: collection.values()) {
+            GtfsRealtime.VehiclePosition gvp = vp.getGoogleVehiclePosition();
+            assert gvp.getTimestamp() == now - 81;
+            assert gvp.getTrip().getTripId() == dictionary.canonicalize(new String(gvp.getTrip().getTripId()));
+            if (first != null) {
+                assert gvp.getTrip().getRouteId() == first.getTrip().getRouteId();
+            }
+            first = gvp;
+        }
+
+        // a position whose IDs are already canonical is stored without a copy
+        VehiclePosition stored = collection.values().iterator().next();
+        GtfsRealtime.VehiclePosition next = stored.getGoogleVehiclePosition().toBuilder()
+                .setTimestamp(now).build();
+        VehiclePosition nextPosition = new VehiclePosition(next);
+        collection.put(nextPosition);
+        assert collection.values().contains(nextPosition);
+    }
+
+    @Test
+    void history() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        assert collection.getTrail("0") == null;
+        collection.enableHistory(4);
+        for (int i = 0; i < 6; i++) {
+            // heading north about 111 m per minute
+            collection.put(newVehiclePosition("0", now - 300 + i * 60, 30.0f + i * 0.001f, -97.0f));
+        }
+        // out of order; not recorded
+        collection.put(newVehiclePosition("0", now - 3600, 31.0f, -97.0f));
+        VehicleTrail trail = collection.getTrail("0");
+        assert trail != null && trail.size() == 4;
+        for (int i = 0; i < 4; i++) {
+            assert trail.getTimestamps()[i] == now - 300 + (i + 2) * 60;
+            assert trail.getLatitudes()[i] == 30.0f + (i + 2) * 0.001f;
+        }
+        assert Float.isNaN(trail.getBearings()[0]);
+        logger.info("trail speed: {} m/s", trail.getAverageSpeed());
+        assert Math.abs(trail.getAverageSpeed() - 111.2 / 60) < 0.05;
+
+        collection.remove("0");
+        assert collection.getTrail("0") == null;
+    }
+
+    @Test
+    void checkpoint() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        for (int i = 0; i < 100_000; i++) {
+            // every tenth position is nearly stale
+            collection.put(newVehiclePosition(Integer.toString(i), i % 10 == 0 ? now - 3590 : now,
+                    30.0f + i * 1e-5f, -97.0f));
+        }
+        Path path = Files.createTempFile("positions", ".checkpoint");
+        try {
+            collection.writeCheckpoint(path);
+            logger.info("checkpoint size: {} bytes", Files.size(path));
+
+            long start = System.nanoTime();
+            VehiclePositionCollection restored = VehiclePositionCollection.fromCheckpoint(STALE_AGE, path);
+            logger.info("restore time: {} ms", (System.nanoTime() - start) / 1_000_000);
+            assert byVehicleId(restored).equals(byVehicleId(collection));
+
+            // restored with a shorter staleAge, the nearly stale positions are dropped
+            restored = VehiclePositionCollection.fromCheckpoint(Duration.ofMinutes(30), path);
+            assert restored.size() == 90_000;
+
+            // positions newer than those in the checkpoint are kept
+            restored = new VehiclePositionCollection(STALE_AGE);
+            restored.put(newVehiclePosition("1", now + 60));
+            assert restored.restoreCheckpoint(path) == 100_000;
+            assert restored.size() == 100_000;
+            assert byVehicleId(restored).get("1").getTimestamp() == now + 60;
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void concurrentCheckpoints() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        for (int i = 0; i < 10_000; i++) {
+            collection.put(newVehiclePosition(Integer.toString(i), now, 30.0f, -97.0f));
+        }
+        Path directory = Files.createTempDirectory("checkpoints");
+        Path path = directory.resolve("positions.checkpoint");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // as when a scheduled checkpoint and a manual one overlap
+            List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                writers.add(executor.submit(() -> {
+                    collection.writeCheckpoint(path);
+                    return null;
+                }));
+            }
+            for (Future<?> writer: writers) {
+                writer.get();
+            }
+            assert byVehicleId(VehiclePositionCollection.fromCheckpoint(STALE_AGE, path))
+                    .equals(byVehicleId(collection));
+            try (Stream<Path> paths = Files.list(directory)) {
+                // no temporary files left behind
+                assert paths.count() == 1;
+            }
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    void metrics() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        InMemoryTransitMetrics metrics = new InMemoryTransitMetrics();
+        collection.setMetrics(metrics);
+        GtfsRealtime.FeedMessage.Builder builder = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0").setTimestamp(now - 5));
+        for (int i = 0; i < 1000; i++) {
+            builder.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId(Integer.toString(i))
+                    .setVehicle(newVehiclePosition(Integer.toString(i), i < 100 ? now - 7200 : now)
+                            .getGoogleVehiclePosition()));
+        }
+        GtfsRealtime.FeedMessage feedMessage = builder.build();
+        collection.update(new ByteArrayInputStream(feedMessage.toByteArray()));
+        collection.update(feedMessage);
+        logger.info("entities per second: {}", metrics.getEntitiesPerSecond());
+        assert metrics.getEntityCount() == 2000;
+        assert metrics.getParseNanos().getCount() == 2;
+        assert metrics.getFeedLagMillis().getMin() >= 5000;
+        // our own feeds' header timestamps are in seconds, as the spec says
+        long before = Instant.now().getEpochSecond();
+        GtfsRealtime.FeedMessage ownFeed = collection.toFeedMessage(false);
+        long ownVersionedTimestamp = collection.toFeedMessage(0).getFeedMessage().getHeader().getTimestamp();
+        long after = Instant.now().getEpochSecond();
+        assert ownFeed.getHeader().getTimestamp() >= before && ownFeed.getHeader().getTimestamp() <= after;
+        assert ownVersionedTimestamp >= before && ownVersionedTimestamp <= after;
+        InMemoryTransitMetrics ownMetrics = new InMemoryTransitMetrics();
+        VehiclePositionCollection copy = new VehiclePositionCollection(STALE_AGE);
+        copy.setMetrics(ownMetrics);
+        copy.update(ownFeed);
+        assert ownMetrics.getFeedLagMillis().getMax() < 60_000;
+        assert metrics.getDropCount(TransitMetrics.DropReason.STALE) == 200;
+        // the second feed repeats the first
+        assert metrics.getDropCount(TransitMetrics.DropReason.OUT_OF_ORDER) == 900;
+
+        collection.purgeStale();
+        assert metrics.getPurgeNanos().getCount() == 1;
+
+        int size = collection.toFeedMessage(false).getSerializedSize();
+        assert metrics.getSerializedBytes(EncodedFeed.Format.PROTOBUF).getMax() == size;
+        collection.toJsonObject();
+        assert metrics.getSerializeNanos(EncodedFeed.Format.JSON).getCount() == 1;
+        assert metrics.getSerializedBytes(EncodedFeed.Format.JSON).getCount() == 0;
+    }
+
+    @Test
+    void snapshot() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        for (int i = 0; i < 1000; i++) {
+            collection.put(newVehiclePosition(Integer.toString(i), now - 100));
+        }
+        // the first snapshot picks up what is already there
+        VehiclePositionSnapshot before = collection.snapshot();
+        assert before.size() == 1000;
+        assert before.getVersion() <= collection.getVersion();
+
+        collection.put(newVehiclePosition("0", now));
+        collection.remove("1");
+        collection.put(newVehiclePosition("new", now));
+        VehiclePositionSnapshot after = collection.snapshot();
+        assert before.get("0").getEpochSecond() == now - 100;
+        assert before.get("1") != null && before.get("new") == null;
+        assert after.get("0").getEpochSecond() == now;
+        assert after.get("1") == null && after.get("new") != null;
+        assert after.size() == 1000;
+        assert after.getVersion() == collection.getVersion();
+
+        // snapshots taken while writers run are each internally consistent
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    collection.put(newVehiclePosition(thread + ":" + (i % 500), now - 50 + i / 500));
+                }
+            }));
+        }
+        while (!futures.stream().allMatch(Future::isDone)) {
+            VehiclePositionSnapshot snapshot = collection.snapshot();
+            assert snapshot.values().size() == snapshot.size();
+        }
+        for (Future<?> future: futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assert byVehicleId(collection).equals(collection.snapshot().values().stream().collect(Collectors.toMap(
+                p -> p.getVehicle().getId(), VehiclePosition::getGoogleVehiclePosition)));
+    }
+
+    @Test
+    void snapshotAfterLogWraps() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE, 100);
+        for (int i = 0; i < 500; i++) {
+            collection.put(newVehiclePosition(Integer.toString(i), now - 100));
+        }
+        assert collection.snapshot().size() == 500;
+        // writers keep it up to date, so reading it does no work
+        collection.put(newVehiclePosition("0", now));
+        collection.remove("1");
+        VehiclePositionSnapshot caughtUp = collection.snapshot();
+        assert caughtUp == collection.snapshot();
+        assert caughtUp.get("0").getEpochSecond() == now && caughtUp.get("1") == null;
+        assert caughtUp.getVersion() == collection.getVersion();
+        // a batch of more changes than the log holds
+        VehiclePosition[] batch = new VehiclePosition[300];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = newVehiclePosition(Integer.toString(i), now - 50);
+        }
+        collection.putAll(batch);
+        VehiclePositionSnapshot afterBatch = collection.snapshot();
+        assert afterBatch.getVersion() == collection.getVersion();
+        assert byVehicleId(collection).equals(afterBatch.values().stream().collect(Collectors.toMap(
+                p -> p.getVehicle().getId(), VehiclePosition::getGoogleVehiclePosition)));
+
+        // concurrent batches, each many times the log
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int round = 0; round < 20; round++) {
+                    VehiclePosition[] positions = new VehiclePosition[1000];
+                    for (int i = 0; i < positions.length; i++) {
+                        positions[i] = newVehiclePosition(thread + ":" + i, now - 40 + round);
+                    }
+                    collection.putAll(positions);
+                    collection.remove(thread + ":" + round);
+                }
+            }));
+        }
+        for (Future<?> future: futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        VehiclePositionSnapshot afterWriters = collection.snapshot();
+        assert afterWriters.getVersion() == collection.getVersion();
+        assert byVehicleId(collection).equals(afterWriters.values().stream().collect(Collectors.toMap(
+                p -> p.getVehicle().getId(), VehiclePosition::getGoogleVehiclePosition)));
+    }
+
+    @Test
+    void parallelPutAll() throws Exception {
+        // start in the past, so that the generator's stale reports are
+        // well past the collections' cutoff however long the test takes
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(23, 5, 200, 20_000,
+                Instant.now().minus(Duration.ofMinutes(10)));
+        generator.setStaleRate(0.05);
+        generator.setOutOfOrderRate(0.1);
+        generator.setDuplicateRate(0.1);
+        List<VehiclePosition> positions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            for (GtfsRealtime.FeedEntity entity: generator.nextFeed().getEntityList()) {
+                positions.add(new VehiclePosition(entity.getVehicle()));
+            }
+        }
+        // same vehicle and timestamp, different positions: the first one wins
+        long now = Instant.now().getEpochSecond();
+        positions.add(newVehiclePosition("tie", now, 30.0f, -97.0f));
+        positions.add(newVehiclePosition("tie", now, 31.0f, -98.0f));
+        VehiclePosition[] positionArray = positions.toArray(new VehiclePosition[0]);
+
+        VehiclePositionCollection sequential = new VehiclePositionCollection(STALE_AGE);
+        sequential.putAll(positionArray);
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            VehiclePositionCollection parallel = new VehiclePositionCollection(STALE_AGE);
+            parallel.putAll(positionArray, pool);
+            assert byVehicleId(parallel).equals(byVehicleId(sequential));
+            assert byVehicleId(parallel).get("tie").getPosition().getLatitude() == 30.0f;
+
+            GtfsRealtime.FeedMessage feedMessage = generator.nextFeed();
+            VehiclePositionCollection changed = parallel.update(feedMessage, pool);
+            VehiclePositionCollection expectedChanged = sequential.update(feedMessage);
+            assert byVehicleId(parallel).equals(byVehicleId(sequential));
+            assert byVehicleId(changed).equals(byVehicleId(expectedChanged));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void attributeQueries() throws Exception {
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(20, 3, 50, 5000);
+        ByteArrayOutputStream agencyTxt = new ByteArrayOutputStream();
+        ByteArrayOutputStream routesTxt = new ByteArrayOutputStream();
+        generator.writeAgencyTxt(agencyTxt);
+        generator.writeRoutesTxt(routesTxt);
+        AgencyCollection agencies = new AgencyCollection(new ByteArrayInputStream(agencyTxt.toByteArray()));
+        RouteCollection routes = new RouteCollection(agencies, new ByteArrayInputStream(routesTxt.toByteArray()));
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.update(generator.nextFeed());
+
+        // without indexes, queries scan; once enabled, the indexes pick up
+        // what is already there, and follow each later feed
+        Route first = routes.getAll().values().iterator().next();
+        for (int i = 0; i < 3; i++) {
+            if (i == 1) {
+                collection.enableAttributeIndexes();
+            } else if (i == 2) {
+                collection.update(generator.nextFeed());
+            }
+            for (Route route: routes.getAll().values()) {
+                List<VehiclePosition> onRoute = collection.findByRoute(route.getId());
+                assert onRoute.size() == collection.values().stream()
+                        .filter(p -> route.getId().equals(p.getGoogleVehiclePosition().getTrip().getRouteId()))
+                        .count();
+                for (VehiclePosition p: onRoute) {
+                    String tripId = p.getGoogleVehiclePosition().getTrip().getTripId();
+                    assert collection.findByTrip(tripId).contains(p);
+                }
+            }
+
+            long startNanos = System.nanoTime();
+            List<VehiclePosition> byType = collection.findByRouteType(routes, first.getType());
+            logger.info("findByRouteType: {} in {} us", byType.size(), (System.nanoTime() - startNanos) / 1000);
+            assert byType.size() == collection.values().stream()
+                    .filter(p -> routes.get(p.getGoogleVehiclePosition().getTrip().getRouteId()).getType()
+                            == first.getType())
+                    .count();
+            List<VehiclePosition> byAgency = collection.findByAgency(routes, first.getAgencyId());
+            assert !byAgency.isEmpty();
+            assert byAgency.size() == collection.values().stream()
+                    .filter(p -> first.getAgencyId().equals(
+                            routes.get(p.getGoogleVehiclePosition().getTrip().getRouteId()).getAgencyId()))
+                    .count();
+        }
+
+        // entries follow a vehicle from stop to stop, and go when it does
+        long now = Instant.now().getEpochSecond();
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("x"))
+                .setStopId("s1").setTimestamp(now - 10).build()));
+        assert collection.findByStop("s1").size() == 1;
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("x"))
+                .setStopId("s2").setTimestamp(now).build()));
+        assert collection.findByStop("s1").isEmpty();
+        assert collection.findByStop("s2").size() == 1;
+        // at the same stop, the new position replaces the old in place
+        VehiclePosition stillThere = new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("x"))
+                .setStopId("s2").setTimestamp(now + 1).build());
+        collection.put(stillThere);
+        assert collection.findByStop("s2").equals(List.of(stillThere));
+        collection.remove("x");
+        assert collection.findByStop("s2").isEmpty();
+        for (VehiclePosition p: collection.findByRoute(first.getId())) {
+            collection.remove(p.getVehicle().getId());
+        }
+        assert collection.findByRoute(first.getId()).isEmpty();
+    }
+
+    static Map<String, GtfsRealtime.VehiclePosition> byVehicleId(VehiclePositionCollection collection) {
+        return collection.values().stream().collect(Collectors.toMap(
+                p -> p.getVehicle().getId(), VehiclePosition::getGoogleVehiclePosition));
+    }
+
+    private static Map<String, VehiclePosition> byVehicleIdPositions(VehiclePositionCollection collection) {
+        Map<String, VehiclePosition> result = new HashMap<>();
+        for (VehiclePosition p: collection.values()) {
+            result.put(p.getVehicle().getId(), p);
+        }
+        return result;
+    }
+
+    static VehiclePosition newVehiclePosition(String vehicleId, long timestamp) {
+        return new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(vehicleId))
+                .setTimestamp(timestamp)
+                .build());
+    }
+
+    static VehiclePosition newVehiclePosition(String vehicleId, long timestamp, float latitude, float longitude) {
+        return new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(vehicleId))
+                .setPosition(GtfsRealtime.Position.newBuilder().setLatitude(latitude).setLongitude(longitude))
+                .setTimestamp(timestamp)
+                .build());
+    }
+
     private HttpURLConnection getHttpURLConnection() {
         HttpURLConnection urlConnection = null;
         URL url = null;
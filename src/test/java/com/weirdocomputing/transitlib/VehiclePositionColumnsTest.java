@@ -0,0 +1,154 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+class VehiclePositionColumnsTest {
+    private final Logger logger = LoggerFactory.getLogger(VehiclePositionColumnsTest.class);
+
+    @Test
+    void toColumns() throws Exception {
+        SyntheticFeedGenerator generator = new SyntheticFeedGenerator(6, 3, 40, 2000);
+        VehiclePositionCollection collection = new VehiclePositionCollection(Duration.ofMinutes(60));
+        collection.update(generator.nextFeed());
+        long now = generator.getTime().getEpochSecond();
+        // no position, no trip
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("bare"))
+                .setTimestamp(now)
+                .build()));
+        // location only, and a trip without a route
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("partial"))
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("lonely-trip"))
+                .setPosition(GtfsRealtime.Position.newBuilder().setLatitude(30.25f).setLongitude(-97.75f))
+                .setTimestamp(now)
+                .build()));
+        // a route without a trip
+        collection.put(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("deadhead"))
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setRouteId("lonely-route"))
+                .setPosition(GtfsRealtime.Position.newBuilder()
+                        .setLatitude(30.5f).setLongitude(-97.5f).setBearing(90f).setSpeed(0f))
+                .setTimestamp(now)
+                .build()));
+
+        VehiclePositionColumns columns = collection.toColumns();
+        Map<String, GtfsRealtime.VehiclePosition> expected = VehiclePositionCollectionTest.byVehicleId(collection);
+        logger.info("{} rows, {} trips, {} routes", columns.size(),
+                columns.getTripIdDictionary().length, columns.getRouteIdDictionary().length);
+        assert columns.size() == expected.size();
+        assertConsistent(columns);
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < columns.size(); i++) {
+            String vehicleId = columns.getVehicleId(i);
+            assert seen.add(vehicleId);
+            GtfsRealtime.VehiclePosition vp = expected.get(vehicleId);
+            GtfsRealtime.Position p = vp.getPosition();
+            assert same(columns.getLatitudes()[i], p.hasLatitude(), p.getLatitude());
+            assert same(columns.getLongitudes()[i], p.hasLongitude(), p.getLongitude());
+            assert same(columns.getBearings()[i], p.hasBearing(), p.getBearing());
+            assert same(columns.getSpeeds()[i], p.hasSpeed(), p.getSpeed());
+            assert columns.getTimestamps()[i] == vp.getTimestamp();
+            assert Objects.equals(columns.getTripId(i), vp.getTrip().hasTripId() ? vp.getTrip().getTripId() : null);
+            assert Objects.equals(columns.getRouteId(i), vp.getTrip().hasRouteId() ? vp.getTrip().getRouteId() : null);
+        }
+        assert seen.equals(expected.keySet());
+
+        int bare = rowOf(columns, "bare");
+        assert Float.isNaN(columns.getLatitudes()[bare]) && Float.isNaN(columns.getSpeeds()[bare]);
+        assert columns.getTripCodes()[bare] == VehiclePositionColumns.NO_CODE;
+        assert columns.getRouteCodes()[bare] == VehiclePositionColumns.NO_CODE;
+        int partial = rowOf(columns, "partial");
+        assert columns.getLatitudes()[partial] == 30.25f && Float.isNaN(columns.getBearings()[partial]);
+        assert "lonely-trip".equals(columns.getTripId(partial)) && columns.getRouteId(partial) == null;
+        int deadhead = rowOf(columns, "deadhead");
+        assert columns.getTripId(deadhead) == null && "lonely-route".equals(columns.getRouteId(deadhead));
+        assert columns.getSpeeds()[deadhead] == 0f;
+    }
+
+    @Test
+    void fromPositions() {
+        List<VehiclePosition> positions = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // three vehicles on two routes, each reported twice
+            positions.add(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                    .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("v" + i % 3))
+                    .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                            .setTripId("t" + i % 3).setRouteId("r" + i % 2))
+                    .setTimestamp(1_600_000_000L + i)
+                    .build()));
+        }
+        // no vehicle ID at all
+        positions.add(new VehiclePosition(GtfsRealtime.VehiclePosition.newBuilder()
+                .setTimestamp(1_600_000_000L)
+                .build()));
+        VehiclePositionColumns columns = VehiclePositionColumns.fromPositions(positions.toArray(new VehiclePosition[0]));
+        assert columns.size() == 7;
+        assertConsistent(columns);
+        // codes are assigned in order of first appearance, and reused
+        assert Arrays.equals(columns.getVehicleIdDictionary(), new String[] {"v0", "v1", "v2"});
+        assert Arrays.equals(columns.getRouteIdDictionary(), new String[] {"r0", "r1"});
+        assert Arrays.equals(columns.getVehicleCodes(), new int[] {0, 1, 2, 0, 1, 2, VehiclePositionColumns.NO_CODE});
+        assert Arrays.equals(columns.getRouteCodes(), new int[] {0, 1, 0, 1, 0, 1, VehiclePositionColumns.NO_CODE});
+        assert columns.getVehicleId(6) == null && columns.getTripId(6) == null;
+
+        VehiclePositionColumns empty = VehiclePositionColumns.fromPositions(new VehiclePosition[0]);
+        assert empty.size() == 0 && empty.getLatitudes().length == 0;
+        assert empty.getVehicleIdDictionary().length == 0;
+    }
+
+    /**
+     * Check that every array has a value per row, and that codes and
+     * dictionaries match one to one
+     */
+    private static void assertConsistent(VehiclePositionColumns columns) {
+        int size = columns.size();
+        assert columns.getLatitudes().length == size && columns.getLongitudes().length == size;
+        assert columns.getBearings().length == size && columns.getSpeeds().length == size;
+        assert columns.getTimestamps().length == size;
+        assertCodes(columns.getVehicleCodes(), columns.getVehicleIdDictionary(), size);
+        assertCodes(columns.getTripCodes(), columns.getTripIdDictionary(), size);
+        assertCodes(columns.getRouteCodes(), columns.getRouteIdDictionary(), size);
+    }
+
+    private static void assertCodes(int[] codes, String[] dictionary, int size) {
+        assert codes.length == size;
+        assert new HashSet<>(Arrays.asList(dictionary)).size() == dictionary.length;
+        boolean[] used = new boolean[dictionary.length];
+        for (int code: codes) {
+            assert code == VehiclePositionColumns.NO_CODE || (code >= 0 && code < dictionary.length);
+            if (code != VehiclePositionColumns.NO_CODE) {
+                used[code] = true;
+            }
+        }
+        for (boolean isUsed: used) {
+            assert isUsed;
+        }
+    }
+
+    private static boolean same(float actual, boolean isPresent, float expected) {
+        return isPresent ? actual == expected : Float.isNaN(actual);
+    }
+
+    private static int rowOf(VehiclePositionColumns columns, String vehicleId) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (vehicleId.equals(columns.getVehicleId(i))) {
+                return i;
+            }
+        }
+        throw new AssertionError(vehicleId);
+    }
+}
@@ -0,0 +1,164 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+class VehiclePositionFeedPollerTest {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    /**
+     * Stand-in feed publisher
+     */
+    static class FeedServer {
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        volatile byte[] feed;
+        volatile String etag;
+        volatile int status = 200;
+        volatile long delayMillis = 0;
+        final AtomicInteger requestCount = new AtomicInteger();
+        final AtomicInteger notModifiedCount = new AtomicInteger();
+        final AtomicInteger gzipCount = new AtomicInteger();
+
+        FeedServer() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/vehicles.pb", this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        void setFeed(GtfsRealtime.FeedMessage feedMessage, String etag) {
+            this.feed = feedMessage.toByteArray();
+            this.etag = etag;
+        }
+
+        URI getUri() {
+            return URI.create(String.format("http://%s:%d/vehicles.pb",
+                    server.getAddress().getHostString(), server.getAddress().getPort()));
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+            } else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = feed;
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    gzipCount.incrementAndGet();
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    try (GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream)) {
+                        gzipStream.write(body);
+                    }
+                    body = outputStream.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body);
+                }
+            }
+            exchange.close();
+        }
+
+        void stop() {
+            server.stop(0);
+            // interrupts handlers still delaying their responses
+            executor.shutdownNow();
+        }
+    }
+
+    static GtfsRealtime.FeedMessage newFeed(int vehicleCount, long timestamp) {
+        GtfsRealtime.FeedMessage.Builder builder = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0").setTimestamp(timestamp));
+        for (int i = 0; i < vehicleCount; i++) {
+            builder.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId(Integer.toString(i))
+                    .setVehicle(VehiclePositionCollectionTest.newVehiclePosition(
+                            Integer.toString(i), timestamp).getGoogleVehiclePosition()));
+        }
+        return builder.build();
+    }
+
+    @Test
+    void conditionalPoll() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        FeedServer server = new FeedServer();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        try (VehiclePositionFeedPoller poller = new VehiclePositionFeedPoller(server.getUri(), collection)) {
+            server.setFeed(newFeed(100, now - 30), "\"a\"");
+            VehiclePositionCollection changed = poller.poll();
+            assert changed != null && changed.size() == 100;
+            assert collection.size() == 100;
+            assert server.gzipCount.get() == 1;
+
+            // unchanged feed: one round trip, nothing applied
+            long version = collection.getVersion();
+            assert poller.poll() == null;
+            assert server.notModifiedCount.get() == 1;
+            assert collection.getVersion() == version;
+
+            server.setFeed(newFeed(150, now), "\"b\"");
+            changed = poller.poll();
+            assert changed != null && changed.size() == 150;
+            assert collection.size() == 150;
+            assert server.requestCount.get() == 3;
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void backoff() throws Exception {
+        FeedServer server = new FeedServer();
+        server.setFeed(newFeed(1, Instant.now().getEpochSecond()), "\"a\"");
+        server.status = 503;
+        Duration interval = Duration.ofSeconds(10);
+        try (VehiclePositionFeedPoller poller = new VehiclePositionFeedPoller(server.getUri(),
+                new VehiclePositionCollection(STALE_AGE))) {
+            assert poller.getNextDelay(interval).equals(interval);
+            for (int i = 1; i <= 10; i++) {
+                try {
+                    poller.poll();
+                    assert false;
+                } catch (IOException e) {
+                    assert poller.getConsecutiveFailures() == i;
+                }
+                Duration delay = poller.getNextDelay(interval);
+                assert delay.compareTo(interval) >= 0;
+                assert delay.compareTo(VehiclePositionFeedPoller.DEFAULT_MAX_BACKOFF) <= 0;
+            }
+            server.status = 200;
+            assert poller.poll() != null;
+            assert poller.getNextDelay(interval).equals(interval);
+        } finally {
+            server.stop();
+        }
+    }
+}
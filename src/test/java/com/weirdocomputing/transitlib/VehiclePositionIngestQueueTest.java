@@ -0,0 +1,153 @@
+package com.weirdocomputing.transitlib;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+class VehiclePositionIngestQueueTest {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    /**
+     * Writer threads that wait for the latch before they start applying
+     * @param latch latch
+     * @return thread factory
+     */
+    private static ThreadFactory gatedThreadFactory(CountDownLatch latch) {
+        return runnable -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                runnable.run();
+            });
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Test
+    void coalesces() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        CountDownLatch latch = new CountDownLatch(1);
+        try (VehiclePositionIngestQueue queue = new VehiclePositionIngestQueue(collection, 1000,
+                VehiclePositionIngestQueue.OverloadPolicy.DROP_OLDEST, gatedThreadFactory(latch))) {
+            for (int t = 0; t < 10; t++) {
+                for (int i = 0; i < 100; i++) {
+                    assert queue.offer(VehiclePositionCollectionTest.newVehiclePosition(
+                            Integer.toString(i), now - 100 + t), 0);
+                }
+            }
+            // older than what is waiting
+            assert !queue.offer(VehiclePositionCollectionTest.newVehiclePosition("0", now - 200), 0);
+            assert queue.getPendingCount() == 100;
+            assert queue.getCoalescedCount() == 901;
+            latch.countDown();
+            queue.flush();
+            assert queue.getAppliedCount() == 100;
+            assert collection.size() == 100;
+            for (VehiclePosition position: collection.values()) {
+                assert position.getEpochSecond() == now - 91;
+            }
+        }
+    }
+
+    @Test
+    void deletions() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        for (String vehicleId: new String[] {"a", "b", "c"}) {
+            collection.put(VehiclePositionCollectionTest.newVehiclePosition(vehicleId, now - 10));
+        }
+        GtfsRealtime.FeedMessage.Builder feed = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0")
+                        .setIncrementality(GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL)
+                        .setTimestamp(now));
+        // a moves, then is deleted
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("a")
+                .setVehicle(VehiclePositionCollectionTest.newVehiclePosition("a", now).getGoogleVehiclePosition()));
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("a").setIsDeleted(true)
+                .setVehicle(GtfsRealtime.VehiclePosition.newBuilder()
+                        .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("a"))));
+        // b is deleted by entity ID alone
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("b").setIsDeleted(true)
+                .setVehicle(GtfsRealtime.VehiclePosition.getDefaultInstance()));
+        // c is deleted, then comes back with an earlier position than it had
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("c").setIsDeleted(true)
+                .setVehicle(GtfsRealtime.VehiclePosition.newBuilder()
+                        .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("c"))));
+        feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("c")
+                .setVehicle(VehiclePositionCollectionTest.newVehiclePosition("c", now - 20).getGoogleVehiclePosition()));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        try (VehiclePositionIngestQueue queue = new VehiclePositionIngestQueue(collection, 1000,
+                VehiclePositionIngestQueue.OverloadPolicy.DROP_OLDEST, gatedThreadFactory(latch))) {
+            assert queue.offer(new ByteArrayInputStream(feed.build().toByteArray()), 0) == 5;
+            assert queue.getPendingCount() == 3;
+            assert queue.getCoalescedCount() == 2;
+            latch.countDown();
+            queue.flush();
+            assert queue.getAppliedCount() == 3;
+        }
+        assert collection.size() == 1;
+        assert VehiclePositionCollectionTest.byVehicleId(collection).get("c").getTimestamp() == now - 20;
+    }
+
+    @Test
+    void dropOldest() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        CountDownLatch latch = new CountDownLatch(1);
+        try (VehiclePositionIngestQueue queue = new VehiclePositionIngestQueue(collection, 100,
+                VehiclePositionIngestQueue.OverloadPolicy.DROP_OLDEST, gatedThreadFactory(latch))) {
+            // a burst of ten times capacity
+            for (int i = 0; i < 1000; i++) {
+                assert queue.offer(VehiclePositionCollectionTest.newVehiclePosition(Integer.toString(i), now), 0);
+                assert queue.getPendingCount() <= 100;
+            }
+            assert queue.getShedCount() == 900;
+            latch.countDown();
+            queue.flush();
+        }
+        assert collection.size() == 100;
+        assert VehiclePositionCollectionTest.byVehicleId(collection).containsKey("999");
+        assert !VehiclePositionCollectionTest.byVehicleId(collection).containsKey("899");
+    }
+
+    @Test
+    void dropLowerPriority() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        InMemoryTransitMetrics metrics = new InMemoryTransitMetrics();
+        collection.setMetrics(metrics);
+        CountDownLatch latch = new CountDownLatch(1);
+        try (VehiclePositionIngestQueue queue = new VehiclePositionIngestQueue(collection, 100,
+                VehiclePositionIngestQueue.OverloadPolicy.DROP_LOWER_PRIORITY, gatedThreadFactory(latch))) {
+            for (int i = 0; i < 100; i++) {
+                assert queue.offer(VehiclePositionCollectionTest.newVehiclePosition("low" + i, now), 0);
+            }
+            for (int i = 0; i < 50; i++) {
+                assert queue.offer(VehiclePositionCollectionTest.newVehiclePosition("high" + i, now), 1);
+            }
+            // nothing lower to make room
+            for (int i = 100; i < 110; i++) {
+                assert !queue.offer(VehiclePositionCollectionTest.newVehiclePosition("low" + i, now), 0);
+            }
+            assert queue.getShedCount() == 60;
+            assert metrics.getDropCount(TransitMetrics.DropReason.SHED) == 60;
+            latch.countDown();
+            queue.flush();
+        }
+        assert collection.size() == 100;
+        assert VehiclePositionCollectionTest.byVehicleId(collection).containsKey("high0");
+        assert VehiclePositionCollectionTest.byVehicleId(collection).containsKey("low50");
+        assert !VehiclePositionCollectionTest.byVehicleId(collection).containsKey("low49");
+    }
+}
@@ -0,0 +1,187 @@
+package com.weirdocomputing.transitlib;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class VehiclePositionPublisherTest {
+    private static final Duration STALE_AGE = Duration.ofMinutes(60);
+
+    /**
+     * Subscriber that records what it is sent and requests only when told
+     */
+    static class RecordingSubscriber implements Flow.Subscriber<List<VehiclePositionChange>> {
+        Flow.Subscription subscription;
+        final List<List<VehiclePositionChange>> batches = new ArrayList<>();
+        Throwable error;
+        boolean isComplete;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(List<VehiclePositionChange> batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            isComplete = true;
+        }
+
+        List<VehiclePositionChange> changes() {
+            List<VehiclePositionChange> changes = new ArrayList<>();
+            batches.forEach(changes::addAll);
+            return changes;
+        }
+    }
+
+    @Test
+    void coalescesWhileBehind() {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        collection.put(VehiclePositionCollectionTest.newVehiclePosition("existing", now - 60));
+        // deliver on the calling thread, so the test sees batches as soon as they are sent
+        VehiclePositionPublisher publisher = new VehiclePositionPublisher(Runnable::run, 100, 10_000);
+        collection.setPublisher(publisher);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        for (int i = 0; i < 1000; i++) {
+            collection.put(VehiclePositionCollectionTest.newVehiclePosition(Integer.toString(i), now - 30));
+        }
+        for (int i = 0; i < 500; i++) {
+            collection.put(VehiclePositionCollectionTest.newVehiclePosition(Integer.toString(i), now));
+        }
+        for (int i = 900; i < 1000; i++) {
+            collection.remove(Integer.toString(i));
+        }
+        collection.put(VehiclePositionCollectionTest.newVehiclePosition("existing", now));
+        collection.remove("existing");
+        assert subscriber.batches.isEmpty();
+
+        // one batch per request
+        subscriber.subscription.request(1);
+        assert subscriber.batches.size() == 1 && subscriber.batches.get(0).size() == 100;
+        subscriber.subscription.request(Long.MAX_VALUE);
+        List<VehiclePositionChange> changes = subscriber.changes();
+        assert subscriber.batches.size() == 10;
+        assert changes.size() == 901;
+        for (int i = 0; i < 900; i++) {
+            VehiclePositionChange change = changes.get(i);
+            assert change.getType() == VehiclePositionChange.Type.ADDED;
+            assert change.getVehicleId().equals(Integer.toString(i));
+            assert change.getPosition().getTimestamp().getEpochSecond() == (i < 500 ? now : now - 30);
+        }
+        assert changes.get(900).getType() == VehiclePositionChange.Type.REMOVED;
+        assert changes.get(900).getVersion() == collection.getVersion();
+
+        // caught up, changes are sent as they happen
+        collection.put(VehiclePositionCollectionTest.newVehiclePosition("0", now + 1));
+        assert subscriber.batches.size() == 11;
+        assert subscriber.batches.get(10).get(0).getType() == VehiclePositionChange.Type.UPDATED;
+
+        publisher.close();
+        assert subscriber.isComplete;
+        assert !publisher.hasSubscribers();
+    }
+
+    @Test
+    void concurrentWriters() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        ExecutorService delivery = Executors.newSingleThreadExecutor();
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            collection.setPublisher(new VehiclePositionPublisher(delivery, 100, 10_000));
+            // applies each batch to a mirror of the collection
+            Map<String, VehiclePosition> mirror = new ConcurrentHashMap<>();
+            collection.getPublisher().subscribe(new RecordingSubscriber() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(List<VehiclePositionChange> batch) {
+                    for (VehiclePositionChange change: batch) {
+                        if (change.getType() == VehiclePositionChange.Type.REMOVED) {
+                            mirror.remove(change.getVehicleId());
+                        } else {
+                            mirror.put(change.getVehicleId(), change.getPosition());
+                        }
+                    }
+                }
+            });
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int seed = t;
+                futures.add(writers.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20_000; i++) {
+                        String vehicleId = Integer.toString(random.nextInt(200));
+                        if (random.nextInt(20) == 0) {
+                            collection.remove(vehicleId);
+                        } else {
+                            collection.put(VehiclePositionCollectionTest.newVehiclePosition(
+                                    vehicleId, now - 3600 + random.nextInt(3600)));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future: futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            Map<String, VehiclePosition> expected = new HashMap<>();
+            for (VehiclePosition p: collection.values()) {
+                expected.put(p.getVehicle().getId(), p);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!mirror.equals(expected) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // each vehicle's changes arrived in the order they were made
+            assert mirror.equals(expected);
+        } finally {
+            writers.shutdownNow();
+            delivery.shutdownNow();
+        }
+    }
+
+    @Test
+    void overflow() {
+        long now = Instant.now().getEpochSecond();
+        VehiclePositionCollection collection = new VehiclePositionCollection(STALE_AGE);
+        VehiclePositionPublisher publisher = new VehiclePositionPublisher(Runnable::run, 100, 10);
+        collection.setPublisher(publisher);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        for (int i = 0; i < 10; i++) {
+            collection.put(VehiclePositionCollectionTest.newVehiclePosition(Integer.toString(i), now));
+        }
+        assert subscriber.error == null;
+        collection.put(VehiclePositionCollectionTest.newVehiclePosition("10", now));
+        assert subscriber.error != null;
+        assert !publisher.hasSubscribers();
+        assert subscriber.batches.isEmpty();
+    }
+}